@@ -5,6 +5,8 @@ var camMarker = null;
 var camAccuracy = null;
 var locationTimer = null;
 var sensorsTimer = null;
+var events = null;
+var eventsQuery = null;
 var lastLocationUpdate = 0;
 var autoCenter = false;
 var fitWidth = true;
@@ -62,40 +64,49 @@ function setImageSize() {
 	}
 }
 
+function showStreams(json) {
+	"use strict";
+	var wifimjpeg = document.getElementById("wifimjpeg");
+	var wifih264 = document.getElementById("wifih264");
+	var mjpeg_streams = 0;
+	var mjpeg_clients = "Clients:";
+	var h264_streams = 0;
+	var h264_clients = "Clients:";
+	var connections = json.connections;
+	for (var i = 0; i < connections.length; i++) {
+		if (connections[i].MJPEG_stream) {
+			mjpeg_streams++;
+			mjpeg_clients += "\n" + connections[i].client_address;
+		}
+		if (connections[i].H264_stream) {
+			h264_streams++;
+			h264_clients += "\n" + connections[i].client_address;
+		}
+	}
+	wifimjpeg.src = mjpeg_streams > 0 ? "images/wifi_mjpeg.png" : "images/wifi_none.png";
+	wifimjpeg.title = mjpeg_streams > 0 ? mjpeg_clients : "";
+	wifimjpeg.style.visibility = "visible";
+	wifih264.src = h264_streams > 0 ? "images/wifi_h264.png" : "images/wifi_none.png";
+	wifih264.title = h264_streams > 0 ? h264_clients : "";
+	wifih264.style.visibility = "visible";
+}
+
+function hideStreams() {
+	"use strict";
+	document.getElementById("wifimjpeg").style.visibility = "hidden";
+	document.getElementById("wifih264").style.visibility = "hidden";
+}
+
 function getStreams() {
 	"use strict";
 	var xhttp = new XMLHttpRequest();
 	xhttp.onreadystatechange = function() {
 		if (xhttp.readyState === 4) {
-			var wifimjpeg = document.getElementById("wifimjpeg");
-			var wifih264 = document.getElementById("wifih264");
 			if (xhttp.status === 200) {
-				var json = JSON.parse(xhttp.responseText);
-				var mjpeg_streams = 0;
-				var mjpeg_clients = "Clients:";
-				var h264_streams = 0;
-				var h264_clients = "Clients:";
-				var connections = json.connections;
-				for (var i = 0; i < connections.length; i++) {
-					if (connections[i].MJPEG_stream) {
-						mjpeg_streams++;
-						mjpeg_clients += "\n" + connections[i].client_address;
-					}
-					if (connections[i].H264_stream) {
-						h264_streams++;
-						h264_clients += "\n" + connections[i].client_address;
-					}
-				}
-				wifimjpeg.src = mjpeg_streams > 0 ? "images/wifi_mjpeg.png" : "images/wifi_none.png";
-				wifimjpeg.title = mjpeg_streams > 0 ? mjpeg_clients : "";
-				wifimjpeg.style.visibility = "visible";
-				wifih264.src = h264_streams > 0 ? "images/wifi_h264.png" : "images/wifi_none.png";
-				wifih264.title = h264_streams > 0 ? h264_clients : "";
-				wifih264.style.visibility = "visible";
+				showStreams(JSON.parse(xhttp.responseText));
 				setTimeout(getStreams, 2500);
 			} else {
-				wifimjpeg.style.visibility = "hidden";
-				wifih264.style.visibility = "hidden";
+				hideStreams();
 				setTimeout(getStreams, 5000);
 			}
 		}
@@ -104,33 +115,42 @@ function getStreams() {
 	xhttp.send();
 }
 
+function showSensors(json) {
+	"use strict";
+	var battery = document.getElementById("battery");
+	var torch = document.getElementById("torch");
+	var connection = json.battery.connection;
+	var level = json.battery.level;
+	var perc = "000" + Math.round(level / 20) * 20;
+	perc = perc.slice(-3);
+	var image = "images/battery_";
+	image += (connection === "unplugged" ? "discharging" : "charging");
+	image += "_" + perc + ".png";
+	battery.src = image;
+	battery.title = "Battery level " + Math.round(level) + "%";
+	battery.style.visibility = "visible";
+	var torchState = json.torch;
+	torch.src = torchState ? "images/torch_on.png" : "images/torch_off.png";
+	torch.title = "Torch " + (torchState ? "on" : "off");
+	torch.style.visibility = "visible";
+}
+
+function hideSensors() {
+	"use strict";
+	document.getElementById("battery").style.visibility = "hidden";
+	document.getElementById("torch").style.visibility = "hidden";
+}
+
 function getSensors() {
 	"use strict";
 	var xhttp = new XMLHttpRequest();
 	xhttp.onreadystatechange = function() {
 		if (xhttp.readyState === 4) {
-			var battery = document.getElementById("battery");
-			var torch = document.getElementById("torch");
 			if (xhttp.status === 200) {
-				var json = JSON.parse(xhttp.responseText);
-				var connection = json.battery.connection;
-				var level = json.battery.level;
-				var perc = "000" + Math.round(level / 20) * 20;
-				perc = perc.slice(-3);
-				var image = "images/battery_";
-				image += (connection === "unplugged" ? "discharging" : "charging");
-				image += "_" + perc + ".png";
-				battery.src = image;
-				battery.title = "Battery level " + Math.round(level) + "%";
-				battery.style.visibility = "visible";
-				var torchState = json.torch;
-				torch.src = torchState ? "images/torch_on.png" : "images/torch_off.png";
-				torch.title = "Torch " + (torchState ? "on" : "off");
-				torch.style.visibility = "visible";
+				showSensors(JSON.parse(xhttp.responseText));
 				setTimeout(getSensors, 2500);
 			} else {
-				battery.style.visibility = "hidden";
-				torch.style.visibility = "hidden";
+				hideSensors();
 				setTimeout(getSensors, 10000);
 			}
 		}
@@ -139,6 +159,36 @@ function getSensors() {
 	xhttp.send();
 }
 
+function showLocation(json) {
+	"use strict";
+	if (camMarker === null || camAccuracy === null) {
+		return false;
+	}
+	if (json === null || json.location.accuracy === -1) {
+		camAccuracy.setOptions({
+			strokeColor: '#FF0000',
+			fillColor: '#FF0000',
+		});
+		return false;
+	}
+	var camLocation = {lat: json.location.latitude, lng: json.location.longitude};
+	var locationUpdate = json.location.time;
+	if (locationUpdate > lastLocationUpdate) {
+		if (autoCenter) {
+			map.setCenter(camLocation);
+		}
+		lastLocationUpdate = locationUpdate;
+	}
+	camMarker.setPosition(camLocation);
+	camAccuracy.setCenter(camLocation);
+	camAccuracy.setRadius(json.location.accuracy);
+	camAccuracy.setOptions({
+		strokeColor: '#00FF00',
+		fillColor: '#00FF00',
+	});
+	return true;
+}
+
 function getLocation() {
 	"use strict";
 	var xhttp = new XMLHttpRequest();
@@ -146,36 +196,13 @@ function getLocation() {
 		if (xhttp.readyState === 4) {
 			if (camMarker !== null && camAccuracy !== null) {
 				if (xhttp.status === 200) {
-					var json = JSON.parse(xhttp.responseText);
-					if (json.location.accuracy !== -1) {
-						var camLocation = {lat: json.location.latitude, lng: json.location.longitude};
-						var locationUpdate = json.location.time;
-						if (locationUpdate > lastLocationUpdate) {
-							if (autoCenter) {
-								map.setCenter(camLocation);
-							}
-							lastLocationUpdate = locationUpdate;
-						}
-						camMarker.setPosition(camLocation);
-						camAccuracy.setCenter(camLocation);
-						camAccuracy.setRadius(json.location.accuracy);
-						camAccuracy.setOptions({
-							strokeColor: '#00FF00',
-							fillColor: '#00FF00',
-						});
+					if (showLocation(JSON.parse(xhttp.responseText))) {
 						locationTimer = setTimeout(getLocation, 5000);
 					} else {
-						camAccuracy.setOptions({
-							strokeColor: '#FF0000',
-							fillColor: '#FF0000',
-						});
 						locationTimer = setTimeout(getLocation, 20000);
 					}
 				} else {
-					camAccuracy.setOptions({
-						strokeColor: '#FF0000',
-						fillColor: '#FF0000',
-					});
+					showLocation(null);
 					locationTimer = setTimeout(getLocation, 30000);
 				}
 			}
@@ -186,21 +213,28 @@ function getLocation() {
 	xhttp.send();
 }
 
+function showMoreSensors(json) {
+	"use strict";
+	var temperature = document.getElementById("temperature");
+	var pressure = document.getElementById("pressure");
+	var humidity = document.getElementById("humidity");
+	var light = document.getElementById("light");
+	if (temperature === null || pressure === null || humidity === null || light === null) {
+		return;
+	}
+	temperature.innerHTML = json.temperature === 9999 ? "-" : json.temperature;
+	pressure.innerHTML = json.pressure === 9999 ? "-" : json.pressure;
+	humidity.innerHTML = json.humidity === 9999 ? "-" : json.humidity;
+	light.innerHTML = json.light === 9999 ? "-" : json.light;
+}
+
 function getMoreSensors() {
 	"use strict";
 	var xhttp = new XMLHttpRequest();
 	xhttp.onreadystatechange = function() {
 		if (xhttp.readyState === 4) {
 			if (xhttp.status === 200) {
-				var json = JSON.parse(xhttp.responseText);
-				var temperature = document.getElementById("temperature");
-				temperature.innerHTML = json.temperature === 9999 ? "-" : json.temperature;
-				var pressure = document.getElementById("pressure");
-				pressure.innerHTML = json.pressure === 9999 ? "-" : json.pressure;
-				var humidity = document.getElementById("humidity");
-				humidity.innerHTML = json.humidity === 9999 ? "-" : json.humidity;
-				var light = document.getElementById("light");
-				light.innerHTML = json.light === 9999 ? "-" : json.light;
+				showMoreSensors(JSON.parse(xhttp.responseText));
 				sensorsTimer = setTimeout(getMoreSensors, 2500);
 			} else {
 				sensorsTimer = setTimeout(getMoreSensors, 10000);
@@ -212,6 +246,42 @@ function getMoreSensors() {
 	xhttp.send();
 }
 
+function openEvents(query) {
+	"use strict";
+	if (events !== null) {
+		if (query === eventsQuery && events.readyState !== EventSource.CLOSED) {
+			return;
+		}
+		events.close();
+	}
+	eventsQuery = query;
+	events = new EventSource("events" + query);
+	events.addEventListener("status", function (e) {
+		var json = JSON.parse(e.data);
+		showStreams(json);
+		showLocation(json);
+	}, false);
+	events.addEventListener("sensors", function (e) {
+		var json = JSON.parse(e.data);
+		showSensors(json);
+		showMoreSensors(json);
+	}, false);
+	events.onerror = function () {
+		hideStreams();
+		hideSensors();
+	};
+}
+
+function startEvents() {
+	"use strict";
+	if (typeof EventSource === "undefined") {
+		getStreams();
+		getSensors();
+	} else {
+		openEvents("");
+	}
+}
+
 function h264URL() {
 	"use strict";
 	document.write("rtsp://" + window.location.host + "/video/h264");
@@ -326,6 +396,9 @@ function navigate(dst) {
 					"onmousedown=\"startZoomIn()\" onmouseup=\"stopZoom()\" onmouseleave=\"stopZoom()\"/>" +
 				"</div>";
 				setImageSize();
+			if (events !== null) {
+				openEvents("");
+			}
 			break;
 		case "map":
 			if (mapReady) {
@@ -387,7 +460,11 @@ function navigate(dst) {
 									fillColor: '#00FF00',
 									fillOpacity: 0.2
 								});
-								locationTimer = setTimeout(getLocation, 5000);
+								if (events !== null) {
+									openEvents("?gps-mode=fine");
+								} else {
+									locationTimer = setTimeout(getLocation, 5000);
+								}
 							} else {
 								mapDiv.innerHTML = 
 									"<div class=\"warning\">" +
@@ -430,7 +507,11 @@ function navigate(dst) {
 						"<td class=\"unit\">lx</td>" +
 					"</tr>" +
 				"</table>";
-			sensorsTimer = setTimeout(getMoreSensors, 1000);
+			if (events !== null) {
+				openEvents("?sensors=trigger");
+			} else {
+				sensorsTimer = setTimeout(getMoreSensors, 1000);
+			}
 			break;
 	}
 }
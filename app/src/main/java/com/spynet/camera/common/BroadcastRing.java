@@ -0,0 +1,196 @@
+/*
+ * This file is part of spyNet Camera, the Android IP camera
+ *
+ * Copyright (C) 2016-2017 Paolo Dematteis
+ *
+ * spyNet Camera is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * spyNet Camera is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Paolo Dematteis - spynet314@gmail.com
+ */
+
+package com.spynet.camera.common;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Defines a single-writer, multi-reader ring buffer.<br>
+ * The writer publishes items in O(1), without waiting for the readers and regardless of
+ * their number. Each reader has its own cursor: a reader that falls behind by more than
+ * the ring capacity skips ahead to the most recent item.
+ */
+public class BroadcastRing<T> {
+
+    private final int mMask;                            // Index mask (capacity - 1)
+    private final AtomicReferenceArray<T> mItems;       // The items
+    private final AtomicLongArray mSequences;           // The sequence number of each slot
+    private final AtomicInteger mWaiters;               // Number of readers waiting for an item
+    private final Object mLock = new Object();          // Used to wait for new items
+    private volatile long mHead;                        // Sequence number of the next item
+
+    /**
+     * Defines a reader, that keeps its own position in the ring.<br>
+     * A reader is intended to be used by a single thread.
+     */
+    public class Reader {
+
+        private long mNext;                             // Sequence number of the next item to read
+        private long mSkipped;                          // Number of items skipped so far
+
+        /**
+         * Creates a new Reader positioned after the last published item.
+         */
+        private Reader() {
+            mNext = mHead;
+        }
+
+        /**
+         * Discards the items not read yet.
+         */
+        public void clear() {
+            mNext = mHead;
+        }
+
+        /**
+         * @return the number of items that have been skipped because the reader fell behind
+         */
+        public long getSkipped() {
+            return mSkipped;
+        }
+
+        /**
+         * Gets the next item, waiting if necessary.
+         *
+         * @param timeout the max time to wait in ms
+         * @return the next item, null if the timeout expires
+         * @throws InterruptedException if interrupted while waiting
+         */
+        @Nullable
+        public T poll(long timeout) throws InterruptedException {
+            if (mHead <= mNext && !await(mNext, timeout))
+                return null;
+            while (true) {
+                long head = mHead;
+                // Skip ahead if the slots have been overwritten
+                if (head - mNext > mItems.length()) {
+                    mSkipped += head - 1 - mNext;
+                    mNext = head - 1;
+                }
+                int index = (int) (mNext & mMask);
+                long seq = mSequences.get(index);
+                T item = mItems.get(index);
+                if (seq == mNext && mSequences.get(index) == seq) {
+                    mNext++;
+                    return item;
+                }
+                // Overwritten while reading, try again
+            }
+        }
+
+        /**
+         * Gets the most recent item, waiting if necessary.<br>
+         * The older items not read yet are discarded, they are not counted as skipped.
+         *
+         * @param timeout the max time to wait in ms
+         * @return the most recent item, null if the timeout expires
+         * @throws InterruptedException if interrupted while waiting
+         */
+        @Nullable
+        public T pollLatest(long timeout) throws InterruptedException {
+            if (mHead <= mNext && !await(mNext, timeout))
+                return null;
+            mNext = Math.max(mNext, mHead - 1);
+            return poll(timeout);
+        }
+    }
+
+    /**
+     * Creates a new BroadcastRing object.
+     *
+     * @param capacity the ring capacity, rounded up to a power of 2
+     */
+    public BroadcastRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mMask = size - 1;
+        mItems = new AtomicReferenceArray<>(size);
+        mSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+            mSequences.set(i, -1);
+        mWaiters = new AtomicInteger();
+    }
+
+    /**
+     * @return a new reader, positioned after the last published item
+     */
+    public Reader newReader() {
+        return new Reader();
+    }
+
+    /**
+     * Publishes an item.<br>
+     * To be called by a single thread.
+     *
+     * @param item the item to publish
+     */
+    public void publish(T item) {
+        long seq = mHead;
+        int index = (int) (seq & mMask);
+        mSequences.set(index, -1);
+        mItems.set(index, item);
+        mSequences.set(index, seq);
+        mHead = seq + 1;
+        if (mWaiters.get() > 0) {
+            synchronized (mLock) {
+                mLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return the last published item, null if none
+     */
+    @Nullable
+    public T getLast() {
+        long head = mHead;
+        if (head == 0)
+            return null;
+        return mItems.get((int) ((head - 1) & mMask));
+    }
+
+    /**
+     * Waits for the item with the specified sequence number to be published.
+     *
+     * @return false if the timeout expires
+     */
+    private boolean await(long seq, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (mLock) {
+            mWaiters.incrementAndGet();
+            try {
+                while (mHead <= seq) {
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0)
+                        return false;
+                    mLock.wait(wait);
+                }
+                return true;
+            } finally {
+                mWaiters.decrementAndGet();
+            }
+        }
+    }
+}
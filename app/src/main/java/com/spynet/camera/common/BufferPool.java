@@ -0,0 +1,129 @@
+/*
+ * This file is part of spyNet Camera, the Android IP camera
+ *
+ * Copyright (C) 2016-2017 Paolo Dematteis
+ *
+ * spyNet Camera is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * spyNet Camera is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Paolo Dematteis - spynet314@gmail.com
+ */
+
+package com.spynet.camera.common;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Defines a thread-safe pool of byte arrays.<br>
+ * Arrays are kept in size classes of exactly the requested length, so that a recycled
+ * array can be used in place of a new one without changing its {@code length}; this fits
+ * the raw frames, that all have the same size for a given resolution.
+ */
+public class BufferPool {
+
+    private final int mMaxBuffers;                      // Max number of arrays kept for each size
+    private final ConcurrentHashMap<Integer, SizeClass> // The size classes, by array length
+            mClasses;                                   //
+    private final AtomicLong mAllocated;                // Number of arrays allocated so far
+    private final AtomicLong mReused;                   // Number of arrays reused so far
+
+    /**
+     * Defines the free arrays of a given length.
+     */
+    private static class SizeClass {
+        final ConcurrentLinkedQueue<byte[]> buffers = new ConcurrentLinkedQueue<>();
+        final AtomicInteger count = new AtomicInteger();
+    }
+
+    /**
+     * Creates a new BufferPool object.
+     *
+     * @param maxBuffers the max number of free arrays kept for each size
+     */
+    public BufferPool(int maxBuffers) {
+        mMaxBuffers = maxBuffers;
+        mClasses = new ConcurrentHashMap<>();
+        mAllocated = new AtomicLong();
+        mReused = new AtomicLong();
+    }
+
+    /**
+     * Gets an array from the pool, or allocates a new one if none is available.<br>
+     * The array content is undefined.
+     *
+     * @param length the array length
+     * @return the array
+     */
+    @NotNull
+    public byte[] obtain(int length) {
+        SizeClass sizeClass = mClasses.get(length);
+        if (sizeClass != null) {
+            byte[] buffer = sizeClass.buffers.poll();
+            if (buffer != null) {
+                sizeClass.count.decrementAndGet();
+                mReused.incrementAndGet();
+                return buffer;
+            }
+        }
+        mAllocated.incrementAndGet();
+        return new byte[length];
+    }
+
+    /**
+     * Gives an array back to the pool.<br>
+     * The caller must not use the array anymore. If the pool is full the array is left
+     * to the garbage collector.
+     *
+     * @param buffer the array to recycle
+     */
+    public void recycle(@NotNull byte[] buffer) {
+        SizeClass sizeClass = mClasses.get(buffer.length);
+        if (sizeClass == null) {
+            SizeClass newClass = new SizeClass();
+            sizeClass = mClasses.putIfAbsent(buffer.length, newClass);
+            if (sizeClass == null)
+                sizeClass = newClass;
+        }
+        if (sizeClass.count.incrementAndGet() > mMaxBuffers) {
+            sizeClass.count.decrementAndGet();
+            return;
+        }
+        sizeClass.buffers.offer(buffer);
+    }
+
+    /**
+     * Discards all the free arrays, e.g. when the frame size changes.
+     */
+    public void clear() {
+        mClasses.clear();
+    }
+
+    /**
+     * @return the number of arrays allocated because the pool was empty
+     */
+    public long getAllocated() {
+        return mAllocated.get();
+    }
+
+    /**
+     * @return the number of arrays taken from the pool
+     */
+    public long getReused() {
+        return mReused.get();
+    }
+}
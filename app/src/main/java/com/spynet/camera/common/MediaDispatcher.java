@@ -0,0 +1,160 @@
+/*
+ * This file is part of spyNet Camera, the Android IP camera
+ *
+ * Copyright (C) 2016-2017 Paolo Dematteis
+ *
+ * spyNet Camera is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * spyNet Camera is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Paolo Dematteis - spynet314@gmail.com
+ */
+
+package com.spynet.camera.common;
+
+import android.util.Log;
+
+import com.google.firebase.crash.FirebaseCrash;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+
+/**
+ * Defines the dispatcher that decouples a media producer from its consumers.<br>
+ * The producer publishes into a preallocated {@link BroadcastRing} and returns immediately;
+ * each consumer drains the ring on its own thread, so that a slow consumer never throttles
+ * the producer nor the other consumers. A consumer that falls behind by more than the ring
+ * capacity loses the oldest items and is notified, to apply its own drop policy.
+ */
+public class MediaDispatcher<T> implements Closeable {
+
+    // Max time to wait for an item in ms, before checking for interruption
+    private static final int DRAIN_TIMEOUT = 1000;
+
+    private static final String TAG = MediaDispatcher.class.getSimpleName();
+
+    private final BroadcastRing<T> mRing;               // The ring shared by all the consumers
+    private final ArrayList<Thread> mThreads;           // The drain threads
+
+    /**
+     * Defines the interface that a consumer has to implement to receive the items.<br>
+     * The methods are called on the consumer drain thread.
+     */
+    public interface Consumer<T> {
+        /**
+         * Notifies a new item.
+         *
+         * @param item the item
+         * @throws InterruptedException if interrupted while waiting
+         */
+        void onData(T item) throws InterruptedException;
+
+        /**
+         * Notifies that some items have been lost because the consumer was too slow.<br>
+         * Called before the first item that follows the gap.
+         *
+         * @param count the number of lost items
+         */
+        void onOverrun(long count);
+    }
+
+    /**
+     * Creates a new MediaDispatcher object.
+     *
+     * @param capacity the number of items that a consumer may lag behind the producer
+     */
+    public MediaDispatcher(int capacity) {
+        mRing = new BroadcastRing<>(capacity);
+        mThreads = new ArrayList<>();
+    }
+
+    /**
+     * Stops all the drain threads.
+     */
+    @Override
+    public void close() {
+        ArrayList<Thread> threads;
+        synchronized (mThreads) {
+            threads = new ArrayList<>(mThreads);
+            mThreads.clear();
+        }
+        for (Thread t : threads)
+            t.interrupt();
+        for (Thread t : threads) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Log.e(TAG, "interrupted while waiting for a drain thread to stop");
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Adds a consumer, that receives the items published from now on.
+     *
+     * @param name     the consumer name, used to name its thread
+     * @param consumer the consumer
+     */
+    public void addConsumer(@NotNull String name, @NotNull final Consumer<T> consumer) {
+        final BroadcastRing<T>.Reader reader = mRing.newReader();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain(reader, consumer);
+            }
+        }, TAG + "-" + name);
+        synchronized (mThreads) {
+            mThreads.add(thread);
+        }
+        thread.start();
+    }
+
+    /**
+     * Publishes an item to all the consumers.<br>
+     * To be called by a single thread, it never waits for the consumers.
+     *
+     * @param item the item to publish
+     */
+    public void publish(@NotNull T item) {
+        mRing.publish(item);
+    }
+
+    /**
+     * Delivers the items to a consumer, until interrupted.
+     */
+    private void drain(BroadcastRing<T>.Reader reader, Consumer<T> consumer) {
+        Log.d(TAG, "drain thread started");
+        long skipped = 0;
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                T item = reader.poll(DRAIN_TIMEOUT);
+                if (item == null)
+                    continue;
+                if (reader.getSkipped() != skipped) {
+                    consumer.onOverrun(reader.getSkipped() - skipped);
+                    skipped = reader.getSkipped();
+                }
+                consumer.onData(item);
+            } catch (InterruptedException e) {
+                break;
+            } catch (Exception e) {
+                FirebaseCrash.report(e);
+                Log.e(TAG, "unexpected exception while dispatching an item, continue", e);
+            }
+        }
+        Log.d(TAG, "drain thread stopped");
+    }
+}
@@ -28,7 +28,7 @@ import android.provider.BaseColumns;
  */
 public final class ConnectionsContract {
 
-    public static final int DATABASE_VERSION = 3;
+    public static final int DATABASE_VERSION = 4;
     public static final String DATABASE_NAME = "Connections.db";
 
     /**
@@ -69,6 +69,16 @@ public final class ConnectionsContract {
                         COLUMN_NAME_START + " INTEGER," +
                         COLUMN_NAME_STOP + " INTEGER)";
 
+        // Used by the retention pruning
+        static final String SQL_CREATE_INDEX_START =
+                "CREATE INDEX IF NOT EXISTS " + TABLE_NAME + "_" + COLUMN_NAME_START + " ON " +
+                        TABLE_NAME + " (" + COLUMN_NAME_START + ")";
+
+        // Used by the stop timestamp and host name updates
+        static final String SQL_CREATE_INDEX_STREAM =
+                "CREATE INDEX IF NOT EXISTS " + TABLE_NAME + "_" + COLUMN_NAME_STREAM + " ON " +
+                        TABLE_NAME + " (" + COLUMN_NAME_HOST_IP + ", " + COLUMN_NAME_STREAM + ")";
+
         static final String SQL_DELETE_TABLE =
                 "DROP TABLE IF EXISTS " + TABLE_NAME;
     }
@@ -26,10 +26,10 @@ import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
-import java.net.InetAddress;
-
 /**
- * Helper class to handle the database where the incoming connections are logged.
+ * Helper class to handle the database where the incoming connections are logged.<br>
+ * The write methods work on an open database, so that many of them can be batched in
+ * a single transaction (see {@link ConnectionsJournal}).
  */
 public class ConnectionsDbHelper extends SQLiteOpenHelper {
 
@@ -45,10 +45,18 @@ public class ConnectionsDbHelper extends SQLiteOpenHelper {
     @Override
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(ConnectionsContract.ConnectionsTable.SQL_CREATE_TABLE);
+        db.execSQL(ConnectionsContract.ConnectionsTable.SQL_CREATE_INDEX_START);
+        db.execSQL(ConnectionsContract.ConnectionsTable.SQL_CREATE_INDEX_STREAM);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion == 3) {
+            // Same table, just add the indexes
+            db.execSQL(ConnectionsContract.ConnectionsTable.SQL_CREATE_INDEX_START);
+            db.execSQL(ConnectionsContract.ConnectionsTable.SQL_CREATE_INDEX_STREAM);
+            return;
+        }
         // Recreate the database
         db.execSQL(ConnectionsContract.ConnectionsTable.SQL_DELETE_TABLE);
         onCreate(db);
@@ -62,62 +70,76 @@ public class ConnectionsDbHelper extends SQLiteOpenHelper {
     /**
      * Creates a new entry in the database.
      *
-     * @param host           the remote host IP address or name
+     * @param db             the writable database
+     * @param hostName       the remote host name
+     * @param hostAddress    the remote host IP address
      * @param userAgent      the user-agent
      * @param info           additional information
      * @param streamID       the ID of the stream (0 if this is not a stream log)
      * @param startTimestamp the start timestamp
      * @param stopTimestamp  the stop timestamp (0 if not yet available)
      */
-    public void log(InetAddress host, String userAgent, String info,
-                    long streamID, long startTimestamp, long stopTimestamp) {
-        SQLiteDatabase db = getWritableDatabase();
+    void log(SQLiteDatabase db, String hostName, String hostAddress, String userAgent, String info,
+             long streamID, long startTimestamp, long stopTimestamp) {
         ContentValues entry = new ContentValues();
-        entry.put(ConnectionsContract.ConnectionsTable.COLUMN_NAME_HOST_NAME, host.getHostName());
-        entry.put(ConnectionsContract.ConnectionsTable.COLUMN_NAME_HOST_IP, host.getHostAddress());
+        entry.put(ConnectionsContract.ConnectionsTable.COLUMN_NAME_HOST_NAME, hostName);
+        entry.put(ConnectionsContract.ConnectionsTable.COLUMN_NAME_HOST_IP, hostAddress);
         entry.put(ConnectionsContract.ConnectionsTable.COLUMN_NAME_USERAGENT, userAgent);
         entry.put(ConnectionsContract.ConnectionsTable.COLUMN_NAME_INFO, info);
         entry.put(ConnectionsContract.ConnectionsTable.COLUMN_NAME_STREAM, streamID);
         entry.put(ConnectionsContract.ConnectionsTable.COLUMN_NAME_START, startTimestamp);
         entry.put(ConnectionsContract.ConnectionsTable.COLUMN_NAME_STOP, stopTimestamp);
         db.insert(ConnectionsContract.ConnectionsTable.TABLE_NAME, null, entry);
-        db.close();
     }
 
     /**
      * Adds the stop timestamp to a previously logged entry.
      *
-     * @param host          the remote host that started the connection
+     * @param db            the writable database
+     * @param hostAddress   the IP address of the remote host that started the connection
      * @param streamID      the ID of the stream
      * @param stopTimestamp the stop timestamp
      */
-    public void log(InetAddress host, long streamID, long stopTimestamp) {
-        if (host == null)
-            throw new IllegalArgumentException("host == null");
+    void log(SQLiteDatabase db, String hostAddress, long streamID, long stopTimestamp) {
+        if (hostAddress == null)
+            throw new IllegalArgumentException("hostAddress == null");
         if (streamID == 0)
             throw new IllegalArgumentException("streamID == 0");
         if (stopTimestamp == 0)
             throw new IllegalArgumentException("stopTimestamp == 0");
-        SQLiteDatabase db = getWritableDatabase();
         ContentValues entry = new ContentValues();
         entry.put(ConnectionsContract.ConnectionsTable.COLUMN_NAME_STOP, stopTimestamp);
         db.update(ConnectionsContract.ConnectionsTable.TABLE_NAME, entry,
                 ConnectionsContract.ConnectionsTable.COLUMN_NAME_HOST_IP + " = ? AND " +
                         ConnectionsContract.ConnectionsTable.COLUMN_NAME_STREAM + " = ?",
-                new String[]{host.getHostAddress(), String.valueOf(streamID)});
-        db.close();
+                new String[]{hostAddress, String.valueOf(streamID)});
+    }
+
+    /**
+     * Replaces the IP address logged in place of the host name, once resolved.
+     *
+     * @param db          the writable database
+     * @param hostAddress the remote host IP address
+     * @param hostName    the resolved host name
+     */
+    void updateHostName(SQLiteDatabase db, String hostAddress, String hostName) {
+        ContentValues entry = new ContentValues();
+        entry.put(ConnectionsContract.ConnectionsTable.COLUMN_NAME_HOST_NAME, hostName);
+        db.update(ConnectionsContract.ConnectionsTable.TABLE_NAME, entry,
+                ConnectionsContract.ConnectionsTable.COLUMN_NAME_HOST_IP + " = ? AND " +
+                        ConnectionsContract.ConnectionsTable.COLUMN_NAME_HOST_NAME + " = ?",
+                new String[]{hostAddress, hostAddress});
     }
 
     /**
      * Drops the entries that are older than the specified timestamp.
      *
+     * @param db        the writable database
      * @param timestamp the timestamp
      */
-    public void drop(long timestamp) {
-        SQLiteDatabase db = getWritableDatabase();
+    void drop(SQLiteDatabase db, long timestamp) {
         db.delete(ConnectionsContract.ConnectionsTable.TABLE_NAME,
                 ConnectionsContract.ConnectionsTable.COLUMN_NAME_START + " < ?",
                 new String[]{String.valueOf(timestamp)});
-        db.close();
     }
 }
@@ -0,0 +1,270 @@
+/*
+ * This file is part of spyNet Camera, the Android IP camera
+ *
+ * Copyright (C) 2016-2017 Paolo Dematteis
+ *
+ * spyNet Camera is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * spyNet Camera is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Paolo Dematteis - spynet314@gmail.com
+ */
+
+package com.spynet.camera.db;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.google.firebase.crash.FirebaseCrash;
+import com.spynet.camera.network.HostResolver;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Defines the write-behind journal of the connections log.<br>
+ * The events are queued in memory and written on a background thread, in a single
+ * transaction for each batch: a batch is written periodically, or as soon as enough events
+ * are queued. The entries older than the retention time are pruned periodically, too.
+ * Logging an event never touches the database on the caller thread.
+ */
+public class ConnectionsJournal implements Closeable {
+
+    // Max time an event stays in memory in ms
+    private static final long FLUSH_PERIOD = 2000;
+    // Number of queued events that triggers an immediate flush
+    private static final int FLUSH_THRESHOLD = 32;
+    // Delay of the first retention pruning in ms
+    private static final long PRUNE_DELAY = 60 * 1000;
+    // Period of the retention pruning in ms
+    private static final long PRUNE_PERIOD = 60 * 60 * 1000;
+    // Max time to wait for the last flush on close in ms
+    private static final long CLOSE_TIMEOUT = 2000;
+
+    private static final String TAG = ConnectionsJournal.class.getSimpleName();
+
+    private final ConnectionsDbHelper mDbHelper;        // The database helper
+    private final long mRetention;                      // Retention time of the entries in ms
+    private final ConcurrentLinkedQueue<Event> mEvents; // The events to be written
+    private final AtomicInteger mQueued;                // Number of events in mEvents
+    private final AtomicBoolean mFlushRequested;        // Whether an immediate flush is scheduled
+    private final ScheduledExecutorService mExecutor;   // The thread that writes the database
+    private final HostResolver.Callback mHostResolved;  // Callback to log the resolved host names
+
+    /**
+     * Defines a queued event.
+     */
+    private static final class Event {
+
+        static final int START = 0;                     // A stream started
+        static final int STOP = 1;                      // A stream stopped
+        static final int HOST_NAME = 2;                 // A host name has been resolved
+
+        final int type;                                 // The event type
+        final String hostName;                          // The host name (START, HOST_NAME)
+        final String hostAddress;                       // The host IP address
+        final String userAgent;                         // The user-agent (START)
+        final String info;                              // Additional information (START)
+        final long streamID;                            // The stream ID (START, STOP)
+        final long timestamp;                           // Start or stop timestamp (START, STOP)
+
+        Event(int type, String hostName, String hostAddress, String userAgent, String info,
+              long streamID, long timestamp) {
+            this.type = type;
+            this.hostName = hostName;
+            this.hostAddress = hostAddress;
+            this.userAgent = userAgent;
+            this.info = info;
+            this.streamID = streamID;
+            this.timestamp = timestamp;
+        }
+    }
+
+    /**
+     * Creates a new ConnectionsJournal object.
+     *
+     * @param context   the {@link Context} to use to open or create the database
+     * @param retention the time the entries are kept in ms
+     */
+    public ConnectionsJournal(@NotNull Context context, long retention) {
+        mDbHelper = new ConnectionsDbHelper(context);
+        mRetention = retention;
+        mEvents = new ConcurrentLinkedQueue<>();
+        mQueued = new AtomicInteger();
+        mFlushRequested = new AtomicBoolean();
+        mHostResolved = new HostResolver.Callback() {
+            @Override
+            public void onHostResolved(InetAddress address, String hostName) {
+                enqueue(new Event(Event.HOST_NAME,
+                        hostName, address.getHostAddress(), null, null, 0, 0));
+            }
+        };
+        mExecutor = Executors.newSingleThreadScheduledExecutor();
+        mExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, FLUSH_PERIOD, FLUSH_PERIOD, TimeUnit.MILLISECONDS);
+        mExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                prune();
+            }
+        }, PRUNE_DELAY, PRUNE_PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes the queued events and closes the database.<br>
+     * The events logged afterwards are discarded.
+     */
+    @Override
+    public void close() {
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                    mDbHelper.close();
+                }
+            });
+        } catch (Exception e) {
+            Log.w(TAG, "journal already closed");
+            return;
+        }
+        mExecutor.shutdown();
+        try {
+            if (!mExecutor.awaitTermination(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS))
+                Log.w(TAG, "timeout while writing the last events");
+        } catch (InterruptedException e) {
+            Log.e(TAG, "interrupted while writing the last events");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Logs the start of a stream.<br>
+     * The host name is resolved in background, until then the IP address is logged in its place.
+     *
+     * @param host           the remote host
+     * @param userAgent      the user-agent
+     * @param info           additional information
+     * @param streamID       the ID of the stream
+     * @param startTimestamp the start timestamp
+     */
+    public void logStart(@NotNull InetAddress host, String userAgent, String info,
+                         long streamID, long startTimestamp) {
+        String hostName = HostResolver.get().resolve(host, mHostResolved);
+        enqueue(new Event(Event.START,
+                hostName, host.getHostAddress(), userAgent, info, streamID, startTimestamp));
+    }
+
+    /**
+     * Logs the stop of a stream.
+     *
+     * @param host          the remote host that started the stream
+     * @param streamID      the ID of the stream
+     * @param stopTimestamp the stop timestamp
+     */
+    public void logStop(@NotNull InetAddress host, long streamID, long stopTimestamp) {
+        if (streamID == 0)
+            throw new IllegalArgumentException("streamID == 0");
+        if (stopTimestamp == 0)
+            throw new IllegalArgumentException("stopTimestamp == 0");
+        enqueue(new Event(Event.STOP,
+                null, host.getHostAddress(), null, null, streamID, stopTimestamp));
+    }
+
+    /**
+     * Queues an event, requesting an immediate flush if enough events are queued.
+     */
+    private void enqueue(Event event) {
+        mEvents.offer(event);
+        if (mQueued.incrementAndGet() >= FLUSH_THRESHOLD && mFlushRequested.compareAndSet(false, true)) {
+            try {
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        mFlushRequested.set(false);
+                        flush();
+                    }
+                });
+            } catch (Exception e) {
+                mFlushRequested.set(false);
+                Log.w(TAG, "journal closed, event discarded");
+            }
+        }
+    }
+
+    /**
+     * Writes the queued events in a single transaction, on the journal thread.
+     */
+    private void flush() {
+        if (mEvents.isEmpty())
+            return;
+        ArrayList<Event> batch = new ArrayList<>();
+        Event event;
+        while ((event = mEvents.poll()) != null) {
+            mQueued.decrementAndGet();
+            batch.add(event);
+        }
+        try {
+            SQLiteDatabase db = mDbHelper.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                for (Event e : batch) {
+                    switch (e.type) {
+                        case Event.START:
+                            mDbHelper.log(db, e.hostName, e.hostAddress, e.userAgent, e.info,
+                                    e.streamID, e.timestamp, 0);
+                            break;
+                        case Event.STOP:
+                            mDbHelper.log(db, e.hostAddress, e.streamID, e.timestamp);
+                            break;
+                        case Event.HOST_NAME:
+                            mDbHelper.updateHostName(db, e.hostAddress, e.hostName);
+                            break;
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            Log.v(TAG, batch.size() + " events written");
+        } catch (Exception e) {
+            FirebaseCrash.report(e);
+            Log.e(TAG, "unexpected exception while writing the connections log", e);
+        }
+    }
+
+    /**
+     * Drops the entries older than the retention time, on the journal thread.
+     */
+    private void prune() {
+        try {
+            mDbHelper.drop(mDbHelper.getWritableDatabase(), System.currentTimeMillis() - mRetention);
+        } catch (Exception e) {
+            FirebaseCrash.report(e);
+            Log.e(TAG, "unexpected exception while pruning the connections log", e);
+        }
+    }
+}
@@ -97,7 +97,8 @@ public abstract class AudioCodec {
 
     /**
      * Pushes new data to the codec queue.<br>
-     * If the queue is full, the data is silently dropped.
+     * If the queue is full, the data is silently dropped.<br>
+     * The codec takes over the caller reference, it releases the data once processed or dropped.
      *
      * @param data the audio data to be processed
      * @return true if the data has been added successfully, false if it was dropped
@@ -107,6 +108,7 @@ public abstract class AudioCodec {
         if (mQueue.offer(data, QUEUE_WRITE_TIMEOUT, TimeUnit.MILLISECONDS))
             return true;
         Log.v(TAG, "cannot add the data, the queue is full");
+        data.release();
         return false;
     }
 
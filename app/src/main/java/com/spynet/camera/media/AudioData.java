@@ -23,8 +23,16 @@ package com.spynet.camera.media;
 
 import android.media.AudioFormat;
 
+import com.spynet.camera.common.BufferPool;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
- * Defines a buffer containing audio data.
+ * Defines a buffer containing audio data.<br>
+ * The data of a buffer obtained from a {@link BufferPool} is reference counted, as for
+ * {@link VideoFrame}.
  */
 public class AudioData {
 
@@ -34,6 +42,19 @@ public class AudioData {
     private final byte[] data;                      // The audio data
     private final int format;                       // The data format
     private final long timestamp;                   // The timestamp
+    private final BufferPool pool;                  // The pool that owns the data, null if none
+    private final AtomicInteger references;         // Number of holders of the pooled data
+
+    /**
+     * Creates a new AudioData object that takes ownership of the data.
+     */
+    private AudioData(byte[] data, int format, long timestamp, BufferPool pool) {
+        this.data = data;
+        this.format = format;
+        this.timestamp = timestamp;
+        this.pool = pool;
+        this.references = (pool != null ? new AtomicInteger(1) : null);
+    }
 
     /**
      * Creates a new AudioData object that contains uncompressed audio.
@@ -43,9 +64,7 @@ public class AudioData {
      * @param timestamp the timestamp
      */
     public AudioData(byte[] data, int format, long timestamp) {
-        this.data = (data != null ? data.clone() : null);
-        this.format = format;
-        this.timestamp = timestamp;
+        this(data != null ? data.clone() : null, format, timestamp, null);
     }
 
     /**
@@ -55,9 +74,7 @@ public class AudioData {
      * @param timestamp the timestamp
      */
     public AudioData(byte[] data, long timestamp) {
-        this.data = (data != null ? data.clone() : null);
-        this.format = FORMAT_AAC;
-        this.timestamp = timestamp;
+        this(data != null ? data.clone() : null, FORMAT_AAC, timestamp, null);
     }
 
     /**
@@ -66,9 +83,57 @@ public class AudioData {
      * @param data the raw data
      */
     public AudioData(byte[] data) {
-        this.data = (data != null ? data.clone() : null);
-        this.format = FORMAT_AUDIO_CONFIG;
-        this.timestamp = 0;
+        this(data != null ? data.clone() : null, FORMAT_AUDIO_CONFIG, 0, null);
+    }
+
+    /**
+     * Creates a new AudioData object that contains uncompressed audio, copying the data
+     * into an array taken from the pool.<br>
+     * The caller holds the only reference, and has to release it.
+     *
+     * @param pool      the pool to get the array from
+     * @param data      the raw data
+     * @param format    the data format ({@link AudioFormat})
+     * @param timestamp the timestamp
+     * @return the new AudioData
+     */
+    public static AudioData obtain(@NotNull BufferPool pool, @NotNull byte[] data,
+                                   int format, long timestamp) {
+        byte[] buffer = pool.obtain(data.length);
+        System.arraycopy(data, 0, buffer, 0, data.length);
+        return new AudioData(buffer, format, timestamp, pool);
+    }
+
+    /**
+     * Creates a new AudioData object that contains compressed audio, without copying
+     * the data. The caller must not modify the data afterwards.
+     *
+     * @param data      the raw data
+     * @param timestamp the timestamp
+     * @return the new AudioData
+     */
+    public static AudioData wrap(byte[] data, long timestamp) {
+        return new AudioData(data, FORMAT_AAC, timestamp, null);
+    }
+
+    /**
+     * Adds a reference to the pooled data, to be released with {@link #release()}.
+     *
+     * @return this buffer
+     */
+    public AudioData retain() {
+        if (pool != null)
+            references.incrementAndGet();
+        return this;
+    }
+
+    /**
+     * Releases a reference to the pooled data; the data goes back to the pool when the
+     * last reference is released, the buffer must not be used anymore.
+     */
+    public void release() {
+        if (pool != null && references.decrementAndGet() == 0)
+            pool.recycle(data);
     }
 
     /**
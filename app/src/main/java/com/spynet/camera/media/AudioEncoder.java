@@ -162,7 +162,8 @@ public class AudioEncoder extends AudioCodec implements Closeable {
         AudioData audioData;                // Incoming uncompressed audio data
 
         // Reset the input queue
-        mQueue.clear();
+        while ((audioData = mQueue.poll()) != null)
+            audioData.release();
 
         // Encoder loop
         Log.d(TAG, "encoder loop started");
@@ -181,6 +182,7 @@ public class AudioEncoder extends AudioCodec implements Closeable {
                             if (data.length > inBuffer.capacity()) {
                                 Log.e(TAG, "insufficient buffer size (" + inBuffer.capacity() + "), " +
                                         "data length is " + data.length);
+                                audioData.release();
                                 break;
                             }
                             inBuffer.put(data);
@@ -190,6 +192,7 @@ public class AudioEncoder extends AudioCodec implements Closeable {
                             Log.w(TAG, "null data received");
                             mEncoder.queueInputBuffer(inputBufferId, 0, 0, 0, 0);
                         }
+                        audioData.release();
                     } else {
                         Log.e(TAG, "timeout reading from the queue");
                         mEncoder.queueInputBuffer(inputBufferId, 0, 0, 0, 0);
@@ -23,16 +23,22 @@ package com.spynet.camera.media;
 
 import android.util.Log;
 
+import com.spynet.camera.common.BufferPool;
 import com.spynet.camera.common.Image;
 
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
 
 /**
- * Defines an MJPEG video encoder.
+ * Defines an MJPEG video encoder.<br>
+ * Only the variants currently requested by the consumers are encoded (see
+ * {@link MJPEGVariants}), each one at the rate of its fastest subscriber and never faster
+ * than the configured frame rate. A frame is compressed once for each variant that needs it.
  */
 public class MJPEGEncoder implements Closeable {
 
@@ -41,9 +47,15 @@ public class MJPEGEncoder implements Closeable {
     private static final int QUEUE_CAPACITY = 5;        // Frame queue capacity
     private static final int QUEUE_WRITE_TIMEOUT = 5;   // Timeout to write to the queue in ms
     private static final int QUEUE_READ_TIMEOUT = 1000; // Timeout to read from the queue in ms
+    private static final int SCALE_POOL_SIZE = 2;       // Scaled frames kept for each size
 
     private final BlockingQueue<VideoFrame> mQueue;     // The queue used to pass video data to the MJPEGEncoder
     private final CodecCallback mCodecCallback;         // The CodecCallback implemented by the client
+    private final BufferPool mScalePool;                // The arrays used to scale the frames
+    private final HashMap<MJPEGVariant, Long>           // Timestamp of the last frame of each variant
+            mLastTimes;                                 //
+    private volatile MJPEGVariants.Demand[] mDemands;   // The demands applied to the last frame
+    private volatile long mNextDue;                     // Timestamp from which a frame is required
     private Thread mEncoderThread;                      // The encoding thread
     private volatile long mFrameDelay;                  // The delay between frames in microseconds
     private volatile int mQuality;                      // The JPEG compression quality
@@ -57,12 +69,14 @@ public class MJPEGEncoder implements Closeable {
          * This callback is invoked on the encoder thread.
          *
          * @param encoder   the MJPEGEncoder that called this callback
+         * @param variant   the variant, null for the frames at the configured quality and size
          * @param data      encoded video data
          * @param width     the desired width for pictures, in pixels
          * @param height    the desired height for pictures, in pixels
          * @param timestamp the timestamp in microseconds
          */
-        void onDataAvailable(MJPEGEncoder encoder, byte[] data, int width, int height, long timestamp);
+        void onDataAvailable(MJPEGEncoder encoder, MJPEGVariant variant,
+                             byte[] data, int width, int height, long timestamp);
     }
 
     /**
@@ -73,18 +87,35 @@ public class MJPEGEncoder implements Closeable {
     public MJPEGEncoder(CodecCallback callback) {
         mQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
         mCodecCallback = callback;
+        mScalePool = new BufferPool(SCALE_POOL_SIZE);
+        mLastTimes = new HashMap<>();
+    }
+
+    /**
+     * Checks whether a frame would be encoded, so that the caller can skip the
+     * frames that nobody requires without copying them.
+     *
+     * @param timestamp the frame timestamp in microseconds
+     * @return true if the frame is required by some consumer
+     */
+    public boolean wantsFrame(long timestamp) {
+        return MJPEGVariants.get().getDemands() != mDemands || timestamp >= mNextDue;
     }
 
     /**
      * Pushes a new frame to the encoder queue.<br>
-     * If the queue is full, the frame is silently dropped.
+     * If the queue is full, the frame is silently dropped.<br>
+     * The encoder takes over the caller reference, it releases the frame once compressed or dropped.
      *
      * @param frame the frame to be processed
      * @return true if the frame has been added successfully, false if it was dropped
      * @throws InterruptedException if interrupted while waiting
      */
     public boolean push(VideoFrame frame) throws InterruptedException {
-        return mQueue.offer(frame, QUEUE_WRITE_TIMEOUT, TimeUnit.MILLISECONDS);
+        if (mQueue.offer(frame, QUEUE_WRITE_TIMEOUT, TimeUnit.MILLISECONDS))
+            return true;
+        frame.release();
+        return false;
     }
 
     /**
@@ -133,24 +164,43 @@ public class MJPEGEncoder implements Closeable {
      */
     private void doEncode() {
         VideoFrame frame;
-        long lastTime = 0;
         try {
             Log.v(TAG, "start encoding");
             while (!Thread.currentThread().isInterrupted()) {
                 // Get a frame from the queue
                 if ((frame = pop()) == null)
                     continue;
-                // Control the fps
-                if (frame.getTimestamp() < lastTime + mFrameDelay)
-                    continue;
-                lastTime = frame.getTimestamp();
-                // Compress the JPEG image
-                ByteArrayOutputStream out = new ByteArrayOutputStream();
-                Image.compressToJpeg(frame.getData(), frame.getWidth(), frame.getHeight(),
-                        frame.getFormat(), mQuality, out);
+                // Control the fps of each variant
+                long timestamp = frame.getTimestamp();
+                MJPEGVariants.Demand[] demands = MJPEGVariants.get().getDemands();
+                ArrayList<MJPEGVariant> due = new ArrayList<>(demands.length);
+                for (MJPEGVariants.Demand d : demands) {
+                    Long last = mLastTimes.get(d.getVariant());
+                    if (last == null || timestamp - last >= Math.max(d.getInterval(), mFrameDelay))
+                        due.add(d.getVariant());
+                }
+                // Compress the JPEG images
+                byte[][] jpegs = new byte[due.size()][];
+                try {
+                    for (int i = 0; i < jpegs.length; i++) {
+                        jpegs[i] = compress(frame, due.get(i));
+                        mLastTimes.put(due.get(i), timestamp);
+                    }
+                } finally {
+                    frame.release();
+                    updateNextDue(demands);
+                }
                 if (mCodecCallback != null) {
-                    mCodecCallback.onDataAvailable(this, out.toByteArray(),
-                            frame.getWidth(), frame.getHeight(), frame.getTimestamp());
+                    for (int i = 0; i < jpegs.length; i++) {
+                        MJPEGVariant variant = due.get(i);
+                        if (jpegs[i] == null)
+                            continue;
+                        mCodecCallback.onDataAvailable(this,
+                                variant.isDefault(mQuality) ? null : variant, jpegs[i],
+                                variant.getWidth(frame.getWidth()),
+                                variant.getHeight(frame.getHeight()),
+                                timestamp);
+                    }
                 }
             }
         } catch (InterruptedException e) {
@@ -159,4 +209,57 @@ public class MJPEGEncoder implements Closeable {
             Log.v(TAG, "stop encoding");
         }
     }
+
+    /**
+     * Computes when the next frame will be required, on the encoder thread.
+     */
+    private void updateNextDue(MJPEGVariants.Demand[] demands) {
+        if (demands != mDemands)
+            mLastTimes.keySet().retainAll(variantsOf(demands));
+        long nextDue = Long.MAX_VALUE;
+        for (MJPEGVariants.Demand d : demands) {
+            Long last = mLastTimes.get(d.getVariant());
+            long due = last == null ? 0 : last + Math.max(d.getInterval(), mFrameDelay);
+            nextDue = Math.min(nextDue, due);
+        }
+        mNextDue = nextDue;
+        mDemands = demands;
+    }
+
+    /**
+     * @return the variants of the demands
+     */
+    private static ArrayList<MJPEGVariant> variantsOf(MJPEGVariants.Demand[] demands) {
+        ArrayList<MJPEGVariant> variants = new ArrayList<>(demands.length);
+        for (MJPEGVariants.Demand d : demands)
+            variants.add(d.getVariant());
+        return variants;
+    }
+
+    /**
+     * Compresses a frame as required by a variant.
+     *
+     * @return the JPEG image, null if the frame format cannot be scaled
+     */
+    private byte[] compress(VideoFrame frame, MJPEGVariant variant) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (variant.getScale() == 1) {
+            Image.compressToJpeg(frame.getData(), frame.getWidth(), frame.getHeight(),
+                    frame.getFormat(), variant.getQuality(), out);
+            return out.toByteArray();
+        }
+        byte[] scaled = mScalePool.obtain(
+                variant.getBufferSize(frame.getWidth(), frame.getHeight(), frame.getFormat()));
+        try {
+            if (!variant.scale(frame.getData(), frame.getWidth(), frame.getHeight(),
+                    frame.getFormat(), scaled))
+                return null;
+            Image.compressToJpeg(scaled,
+                    variant.getWidth(frame.getWidth()), variant.getHeight(frame.getHeight()),
+                    frame.getFormat(), variant.getQuality(), out);
+            return out.toByteArray();
+        } finally {
+            mScalePool.recycle(scaled);
+        }
+    }
 }
@@ -0,0 +1,210 @@
+/*
+ * This file is part of spyNet Camera, the Android IP camera
+ *
+ * Copyright (C) 2016-2017 Paolo Dematteis
+ *
+ * spyNet Camera is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * spyNet Camera is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Paolo Dematteis - spynet314@gmail.com
+ */
+
+package com.spynet.camera.media;
+
+import android.graphics.ImageFormat;
+
+import com.spynet.camera.common.Utils;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Defines a variant of the MJPEG stream, i.e. a JPEG quality and a scale factor.<br>
+ * The clients' requests are mapped to a small ladder of variants, so that the clients that
+ * ask for similar streams share the same encoding.
+ */
+public final class MJPEGVariant {
+
+    // The supported scale divisors
+    private static final int[] SCALES = {1, 2, 4};
+    // The supported qualities, in addition to the configured one
+    private static final int[] QUALITIES = {75, 50, 25};
+
+    private final int mQuality;                         // The JPEG quality
+    private final int mScale;                           // The scale divisor
+
+    /**
+     * Creates a new MJPEGVariant object.
+     *
+     * @param quality the JPEG quality, 0-100
+     * @param scale   the scale divisor
+     */
+    public MJPEGVariant(int quality, int scale) {
+        mQuality = quality;
+        mScale = scale;
+    }
+
+    /**
+     * Maps the parameters requested by a client to the nearest variant.
+     *
+     * @param quality    the requested JPEG quality (1-100), null for the configured one
+     * @param scale      the requested scale factor (0-1), null for the full size
+     * @param maxQuality the configured JPEG quality, never exceeded
+     * @return the variant
+     */
+    public static MJPEGVariant select(@Nullable String quality, @Nullable String scale, int maxQuality) {
+        int q = maxQuality;
+        int requested = Utils.tryParseInt(quality, maxQuality);
+        if (requested < maxQuality) {
+            for (int level : QUALITIES) {
+                if (level < maxQuality && Math.abs(level - requested) < Math.abs(q - requested))
+                    q = level;
+            }
+        }
+        int s = SCALES[0];
+        double factor = Utils.tryParseDouble(scale, 1);
+        if (factor > 0 && factor < 1) {
+            // Nearest on a logarithmic scale
+            for (int divisor : SCALES) {
+                if (Math.abs(Math.log(factor * divisor)) < Math.abs(Math.log(factor * s)))
+                    s = divisor;
+            }
+        }
+        return new MJPEGVariant(q, s);
+    }
+
+    /**
+     * @return the JPEG quality
+     */
+    public int getQuality() {
+        return mQuality;
+    }
+
+    /**
+     * @return the scale divisor
+     */
+    public int getScale() {
+        return mScale;
+    }
+
+    /**
+     * @return the key that identifies the frames of this variant
+     */
+    public String getKey() {
+        return "q" + mQuality + "s" + mScale;
+    }
+
+    /**
+     * @param width the full frame width
+     * @return the scaled frame width
+     */
+    public int getWidth(int width) {
+        return (width / mScale) & ~1;
+    }
+
+    /**
+     * @param height the full frame height
+     * @return the scaled frame height
+     */
+    public int getHeight(int height) {
+        return (height / mScale) & ~1;
+    }
+
+    /**
+     * @param maxQuality the configured JPEG quality
+     * @return true if this is the variant encoded by default
+     */
+    public boolean isDefault(int maxQuality) {
+        return mQuality == maxQuality && mScale == 1;
+    }
+
+    /**
+     * Scales a raw frame down.<br>
+     * Only ImageFormat.NV21 and ImageFormat.YUY2 are supported, the pixels are subsampled.
+     *
+     * @param data   the raw frame
+     * @param width  the frame width
+     * @param height the frame height
+     * @param format the frame pixel format (ImageFormat)
+     * @param out    the scaled frame, at least {@link #getBufferSize} bytes
+     * @return false if the format is not supported
+     */
+    public boolean scale(byte[] data, int width, int height, int format, byte[] out) {
+        int w = getWidth(width);
+        int h = getHeight(height);
+        if (format == ImageFormat.NV21) {
+            // Luma plane
+            int i = 0;
+            for (int y = 0; y < h; y++) {
+                int row = y * mScale * width;
+                for (int x = 0; x < w; x++)
+                    out[i++] = data[row + x * mScale];
+            }
+            // Interleaved VU plane, one pair every 2x2 pixels
+            int chroma = width * height;
+            for (int y = 0; y < h / 2; y++) {
+                int row = chroma + y * mScale * width;
+                for (int x = 0; x < w / 2; x++) {
+                    int j = row + x * mScale * 2;
+                    out[i++] = data[j];
+                    out[i++] = data[j + 1];
+                }
+            }
+            return true;
+        } else if (format == ImageFormat.YUY2) {
+            // Packed Y0 U Y1 V, one chroma pair every 2 pixels
+            int i = 0;
+            for (int y = 0; y < h; y++) {
+                int row = y * mScale * width * 2;
+                for (int x = 0; x < w; x += 2) {
+                    int j0 = row + x * mScale * 2;
+                    int j1 = row + (x + 1) * mScale * 2;
+                    int uv = row + ((x * mScale) & ~1) * 2;
+                    out[i++] = data[j0];
+                    out[i++] = data[uv + 1];
+                    out[i++] = data[j1];
+                    out[i++] = data[uv + 3];
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the size of the scaled frame in bytes
+     */
+    public int getBufferSize(int width, int height, int format) {
+        int pixels = getWidth(width) * getHeight(height);
+        return format == ImageFormat.YUY2 ? pixels * 2 : pixels * 3 / 2;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof MJPEGVariant))
+            return false;
+        MJPEGVariant v = (MJPEGVariant) o;
+        return mQuality == v.mQuality && mScale == v.mScale;
+    }
+
+    @Override
+    public int hashCode() {
+        return mQuality * 31 + mScale;
+    }
+
+    @Override
+    public String toString() {
+        return getKey();
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * This file is part of spyNet Camera, the Android IP camera
+ *
+ * Copyright (C) 2016-2017 Paolo Dematteis
+ *
+ * spyNet Camera is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * spyNet Camera is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Paolo Dematteis - spynet314@gmail.com
+ */
+
+package com.spynet.camera.media;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Defines the process-wide registry of the MJPEG streams requested by the consumers.<br>
+ * Each consumer subscribes to a variant at its own frame rate: a variant is encoded only
+ * while it has at least one subscriber, at the highest rate requested for it. The encoder
+ * reads the demands on every frame, without locking.
+ */
+public final class MJPEGVariants {
+
+    private static final MJPEGVariants mInstance        // The process-wide registry
+            = new MJPEGVariants();                      //
+
+    private final ArrayList<Subscription> mSubscriptions; // The active subscriptions
+    private volatile Demand[] mDemands;                 // The demand of each subscribed variant
+    private volatile int mFrameRequests;                // Number of pending single frame requests
+
+    /**
+     * Defines a subscription, to be closed when the consumer stops.
+     */
+    public final class Subscription implements Closeable {
+
+        private final MJPEGVariant mVariant;            // The subscribed variant
+        private final double mFps;                      // The requested frame rate
+        private final boolean mSingle;                  // Whether a single frame is requested
+
+        private Subscription(MJPEGVariant variant, double fps, boolean single) {
+            mVariant = variant;
+            mFps = fps;
+            mSingle = single;
+        }
+
+        /**
+         * Cancels the subscription.
+         */
+        @Override
+        public void close() {
+            unsubscribe(this);
+        }
+    }
+
+    /**
+     * Defines the demand for a variant.
+     */
+    public static final class Demand {
+
+        private final MJPEGVariant mVariant;            // The variant
+        private final long mInterval;                   // The min interval between frames in us
+
+        private Demand(MJPEGVariant variant, long interval) {
+            mVariant = variant;
+            mInterval = interval;
+        }
+
+        /**
+         * @return the variant
+         */
+        public MJPEGVariant getVariant() {
+            return mVariant;
+        }
+
+        /**
+         * @return the interval between two frames required by the fastest subscriber, in us
+         */
+        public long getInterval() {
+            return mInterval;
+        }
+    }
+
+    /**
+     * Creates a new MJPEGVariants object.
+     */
+    private MJPEGVariants() {
+        mSubscriptions = new ArrayList<>();
+        mDemands = new Demand[0];
+    }
+
+    /**
+     * @return the process-wide registry
+     */
+    public static MJPEGVariants get() {
+        return mInstance;
+    }
+
+    /**
+     * Subscribes to a variant, starting its encoding if required.
+     *
+     * @param variant the variant
+     * @param fps     the frame rate required by the subscriber
+     * @return the subscription, to be closed when the frames are not required anymore
+     */
+    @NotNull
+    public synchronized Subscription subscribe(@NotNull MJPEGVariant variant, double fps) {
+        Subscription subscription = new Subscription(variant, fps, false);
+        mSubscriptions.add(subscription);
+        update();
+        return subscription;
+    }
+
+    /**
+     * Requests the next frame of a variant, e.g. for a snapshot.<br>
+     * Unlike {@link #subscribe(MJPEGVariant, double)}, the frames are encoded even if the
+     * continuous MJPEG stream is not enabled.
+     *
+     * @param variant the variant
+     * @return the request, to be closed as soon as the frame has been received
+     */
+    @NotNull
+    public synchronized Subscription requestFrame(@NotNull MJPEGVariant variant) {
+        Subscription subscription = new Subscription(variant, Double.POSITIVE_INFINITY, true);
+        mSubscriptions.add(subscription);
+        mFrameRequests++;
+        update();
+        return subscription;
+    }
+
+    /**
+     * Cancels a subscription, stopping the encoding of its variant if it was the last one.
+     */
+    private synchronized void unsubscribe(Subscription subscription) {
+        if (mSubscriptions.remove(subscription)) {
+            if (subscription.mSingle)
+                mFrameRequests--;
+            update();
+        }
+    }
+
+    /**
+     * @return true if some single frame request is pending
+     */
+    public boolean hasFrameRequests() {
+        return mFrameRequests > 0;
+    }
+
+    /**
+     * Gets the current demands.<br>
+     * A new array is published on every change, so that the reference identifies the set.
+     *
+     * @return the demand of each variant that has at least one subscriber
+     */
+    @NotNull
+    public Demand[] getDemands() {
+        return mDemands;
+    }
+
+    /**
+     * Publishes the demands, the caller must hold the lock.
+     */
+    private void update() {
+        LinkedHashMap<MJPEGVariant, Double> rates = new LinkedHashMap<>();
+        for (Subscription s : mSubscriptions) {
+            Double fps = rates.get(s.mVariant);
+            if (fps == null || s.mFps > fps)
+                rates.put(s.mVariant, s.mFps);
+        }
+        ArrayList<Demand> demands = new ArrayList<>(rates.size());
+        for (Map.Entry<MJPEGVariant, Double> entry : rates.entrySet()) {
+            if (entry.getValue() > 0)
+                demands.add(new Demand(entry.getKey(), (long) (1000000.0 / entry.getValue())));
+        }
+        mDemands = demands.toArray(new Demand[demands.size()]);
+    }
+}
@@ -43,6 +43,7 @@ import android.util.Log;
 import android.view.Surface;
 
 import com.spynet.camera.R;
+import com.spynet.camera.common.BufferPool;
 import com.spynet.camera.common.Image;
 import com.spynet.camera.gl.EGLRecordableContext;
 import com.spynet.camera.gl.NV21Renderer;
@@ -82,11 +83,17 @@ public class Recorder
     private final static int AUTOFOCUS_DELAY = 2000;
     // Time interval at which the fps is updated onn the overlay, in milliseconds
     private final static int FPS_UPDATE_TIME = 5000;
+    // Max number of free raw frames kept for reuse (the encoders queue up to 15 frames)
+    private final static int FRAME_POOL_SIZE = 16;
+    // Max number of free raw audio buffers kept for reuse
+    private final static int AUDIO_POOL_SIZE = 16;
 
     private final String TAG = getClass().getSimpleName();
 
     private final Context mContext;                     // The context that uses the Recorder
     private final ArrayList<CameraInfo> mCameraInfo;    // The information of all the available cameras
+    private final BufferPool mFramePool;                // Pool of the raw frames sent to the encoders
+    private final BufferPool mAudioPool;                // Pool of the raw audio sent to the encoder
     private RecorderCallback mCallback;                 // The RecorderCallback implemented by mContext
     private BroadcastReceiver mScreenCaptureReceiver;   // The BroadcastReceiver to receive screen capture authorization
     private Camera mCamera;                             // LiveCamera that will generate the video stream
@@ -202,6 +209,8 @@ public class Recorder
 
         // Read the information of all the available cameras
         mCameraInfo = new ArrayList<>(readCameraInfo(mContext));
+        mFramePool = new BufferPool(FRAME_POOL_SIZE);
+        mAudioPool = new BufferPool(AUDIO_POOL_SIZE);
 
         // Read preferences
         int cameraId = SettingsActivity.getCameraIndex(mContext);
@@ -252,6 +261,7 @@ public class Recorder
             mCamera.setZoom(zoom);
             mFrameSize = mCamera.getFrameSize();
             mFrameFormat = mCamera.getFrameFormat();
+            mFramePool.clear();
             if (INITIAL_AUTOFOCUS) {
                 new Handler().postDelayed(new Runnable() {
                     @Override
@@ -714,6 +724,21 @@ public class Recorder
         return mVideoEncoder != null ? mVideoEncoder.getBitrate() : 0;
     }
 
+    /**
+     * Changes the H264 bitrate while recording, e.g. to adapt it to the network.<br>
+     * The configured bitrate is not changed.
+     *
+     * @param bitrate the desired bitrate in bps
+     */
+    public synchronized void setH264Bitrate(int bitrate) {
+        if (mVideoEncoder == null || mVideoEncoder.getBitrate() == bitrate)
+            return;
+        if (mVideoEncoder.setBitrate(bitrate) && mCallback != null) {
+            mCallback.onBitrateChanged(mVideoEncoder.getBitrate(),
+                    mAudioEncoder != null ? mAudioEncoder.getBitrate() : 0);
+        }
+    }
+
     /**
      * Requests a reference frame to be generate as soon as possible.
      */
@@ -760,10 +785,12 @@ public class Recorder
 
     @Override
     public void onFrameAvailable(byte[] data, long timestamp) {
-        // Send the frame to the MJPEG encoder
-        if (mMJPEGEncoder != null && mMJPEGEnabled) {
+        // Send the frame to the MJPEG encoder, only if some consumer requires it
+        if (mMJPEGEncoder != null &&
+                (mMJPEGEnabled || MJPEGVariants.get().hasFrameRequests()) &&
+                mMJPEGEncoder.wantsFrame(timestamp)) {
             try {
-                mMJPEGEncoder.push(new VideoFrame(
+                mMJPEGEncoder.push(VideoFrame.obtain(mFramePool,
                         data, mFrameSize.x, mFrameSize.y, mFrameFormat, timestamp));
             } catch (InterruptedException e) {
                 Log.e(TAG, "cannot send the frame to the MJPEG encoder, operation interrupted");
@@ -784,7 +811,7 @@ public class Recorder
                             break;
                     }
                     try {
-                        mVideoEncoder.push(new VideoFrame(
+                        mVideoEncoder.push(VideoFrame.obtain(mFramePool,
                                 data, mFrameSize.x, mFrameSize.y, mFrameFormat, timestamp));
                     } catch (InterruptedException e) {
                         Log.e(TAG, "cannot send the frame to the encoder, operation interrupted");
@@ -808,11 +835,13 @@ public class Recorder
     }
 
     @Override
-    public void onDataAvailable(MJPEGEncoder encoder, byte[] data, int width, int height, long timestamp) {
+    public void onDataAvailable(MJPEGEncoder encoder, MJPEGVariant variant,
+                                byte[] data, int width, int height, long timestamp) {
         if (encoder == mMJPEGEncoder) {
-            // Forward to the client
+            // Forward to the client, the variants are identified by their key
             if (mCallback != null) {
-                mCallback.onDataAvailable(new VideoFrame(data, width, height, timestamp));
+                mCallback.onDataAvailable(VideoFrame.wrap(data, width, height,
+                        variant != null ? variant.getKey() : null, timestamp));
             }
         }
     }
@@ -831,7 +860,7 @@ public class Recorder
                         mVideoCfgSent = true;
                     }
                 }
-                mCallback.onDataAvailable(new VideoFrame(data, info.presentationTimeUs));
+                mCallback.onDataAvailable(VideoFrame.wrap(data, info.presentationTimeUs));
             }
         }
     }
@@ -855,7 +884,7 @@ public class Recorder
         // Send data to the encoder
         if (mAudioEncoder != null) {
             try {
-                mAudioEncoder.push(new AudioData(
+                mAudioEncoder.push(AudioData.obtain(mAudioPool,
                         data, mAudioRecorder.getAudioFormat(), timestamp));
             } catch (InterruptedException e) {
                 Log.e(TAG, "cannot send the data to the encoder, operation interrupted");
@@ -876,7 +905,7 @@ public class Recorder
                         mAudioCfgSent = true;
                     }
                 }
-                mCallback.onDataAvailable(new AudioData(data, info.presentationTimeUs));
+                mCallback.onDataAvailable(AudioData.wrap(data, info.presentationTimeUs));
             }
         }
     }
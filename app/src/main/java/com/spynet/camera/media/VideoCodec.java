@@ -97,7 +97,8 @@ public abstract class VideoCodec {
 
     /**
      * Pushes a new frame to the codec queue.<br>
-     * If the queue is full, the frame is silently dropped.
+     * If the queue is full, the frame is silently dropped.<br>
+     * The codec takes over the caller reference, it releases the frame once processed or dropped.
      *
      * @param frame the frame to be processed
      * @return true if the frame has been added successfully, false if it was dropped
@@ -107,6 +108,7 @@ public abstract class VideoCodec {
         if (mQueue.offer(frame, QUEUE_WRITE_TIMEOUT, TimeUnit.MILLISECONDS))
             return true;
         Log.v(TAG, "cannot add the frame, the queue is full");
+        frame.release();
         return false;
     }
 
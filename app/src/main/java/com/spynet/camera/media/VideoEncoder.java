@@ -50,7 +50,8 @@ public class VideoEncoder extends VideoCodec implements Closeable {
     private Thread mEncoderThread;                  // The encoding thread
     private Surface mInputSurface;                  // The input Surface
     private int mColorFormat;                       // The input buffer color format
-    private int mBitrate;                           // The stream bitrate
+    private volatile boolean mStarted;              // Whether the encoder is started
+    private volatile int mBitrate;                  // The stream bitrate
     private volatile ByteBuffer mSPS;               // The Sequence Parameter Set
     private volatile ByteBuffer mPPS;               // The Picture Parameter Set
 
@@ -95,6 +96,7 @@ public class VideoEncoder extends VideoCodec implements Closeable {
 
         // Start the encoder
         mEncoder.start();
+        mStarted = true;
         mInputBuffers = mEncoder.getInputBuffers();
         mOutputBuffers = mEncoder.getOutputBuffers();
         startEncoding();
@@ -109,6 +111,7 @@ public class VideoEncoder extends VideoCodec implements Closeable {
      */
     @Override
     public void close() {
+        mStarted = false;
         stopEncoding();
         try {
             mEncoder.stop();
@@ -128,6 +131,7 @@ public class VideoEncoder extends VideoCodec implements Closeable {
      * instead of relying on the garbage collector to do this for you at some point in the future.
      */
     public void release() {
+        mStarted = false;
         mEncoder.release();
         if (mInputSurface != null)
             mInputSurface.release();
@@ -189,13 +193,44 @@ public class VideoEncoder extends VideoCodec implements Closeable {
     }
 
     /**
-     * Requests a reference frame to be generate as soon as possible.
+     * Changes the bitrate while encoding.<br>
+     * Supported from KitKat, on older devices the bitrate is not changed.
+     * Nothing is done if the encoder is not running.
+     *
+     * @param bitrate the desired bitrate in bps
+     * @return true if the bitrate has been changed
+     */
+    public boolean setBitrate(int bitrate) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT && mStarted) {
+            Bundle bundle = new Bundle();
+            bundle.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+            try {
+                mEncoder.setParameters(bundle);
+            } catch (IllegalStateException e) {
+                // The encoder has been stopped meanwhile, or it died
+                Log.w(TAG, "cannot change the bitrate", e);
+                return false;
+            }
+            mBitrate = bitrate;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Requests a reference frame to be generate as soon as possible.<br>
+     * Nothing is done if the encoder is not running.
      */
     public void requestSyncFrame() {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT && mStarted) {
             Bundle bundle = new Bundle();
             bundle.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
-            mEncoder.setParameters(bundle);
+            try {
+                mEncoder.setParameters(bundle);
+            } catch (IllegalStateException e) {
+                // The encoder has been stopped meanwhile, or it died
+                Log.w(TAG, "cannot request a sync frame", e);
+            }
         }
     }
 
@@ -252,7 +287,8 @@ public class VideoEncoder extends VideoCodec implements Closeable {
         VideoFrame videoFrame;              // Incoming uncompressed frame
 
         // Reset the input queue
-        mQueue.clear();
+        while ((videoFrame = mQueue.poll()) != null)
+            videoFrame.release();
 
         // Encoder loop
         Log.d(TAG, "encoder loop started");
@@ -272,6 +308,7 @@ public class VideoEncoder extends VideoCodec implements Closeable {
                                 if (data.length > inBuffer.capacity()) {
                                     Log.e(TAG, "insufficient buffer size (" + inBuffer.capacity() + "), " +
                                             "data length is " + data.length);
+                                    videoFrame.release();
                                     break;
                                 }
                                 inBuffer.put(data);
@@ -281,6 +318,7 @@ public class VideoEncoder extends VideoCodec implements Closeable {
                                 Log.w(TAG, "null frame received");
                                 mEncoder.queueInputBuffer(inputBufferId, 0, 0, 0, 0);
                             }
+                            videoFrame.release();
                         } else {
                             Log.e(TAG, "timeout reading from the queue");
                             mEncoder.queueInputBuffer(inputBufferId, 0, 0, 0, 0);
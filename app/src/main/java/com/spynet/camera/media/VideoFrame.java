@@ -23,8 +23,17 @@ package com.spynet.camera.media;
 
 import android.graphics.ImageFormat;
 
+import com.spynet.camera.common.BufferPool;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
- * Defines a video data frame.
+ * Defines a video data frame.<br>
+ * The data of a frame obtained from a {@link BufferPool} is reference counted: it goes back
+ * to the pool when the last holder calls {@link #release()}. For the other frames
+ * {@link #retain()} and {@link #release()} do nothing.
  */
 public class VideoFrame {
 
@@ -37,6 +46,23 @@ public class VideoFrame {
     private final int format;                       // The data format
     private final String key;                       // The configuration key
     private final long timestamp;                   // The timestamp
+    private final BufferPool pool;                  // The pool that owns the data, null if none
+    private final AtomicInteger references;         // Number of holders of the pooled data
+
+    /**
+     * Creates a new VideoFrame object that takes ownership of the data.
+     */
+    private VideoFrame(byte[] data, int width, int height, int format, String key, long timestamp,
+                       BufferPool pool) {
+        this.data = data;
+        this.width = width;
+        this.height = height;
+        this.format = format;
+        this.key = key;
+        this.timestamp = timestamp;
+        this.pool = pool;
+        this.references = (pool != null ? new AtomicInteger(1) : null);
+    }
 
     /**
      * Creates a new VideoFrame object that contains an uncompressed video frame.
@@ -48,12 +74,7 @@ public class VideoFrame {
      * @param timestamp the frame timestamp
      */
     public VideoFrame(byte[] data, int width, int height, int format, long timestamp) {
-        this.data = (data != null ? data.clone() : null);
-        this.width = width;
-        this.height = height;
-        this.format = format;
-        this.timestamp = timestamp;
-        this.key = null;
+        this(data != null ? data.clone() : null, width, height, format, null, timestamp, null);
     }
 
     /**
@@ -65,12 +86,7 @@ public class VideoFrame {
      * @param timestamp the frame timestamp
      */
     public VideoFrame(byte[] data, int width, int height, long timestamp) {
-        this.data = (data != null ? data.clone() : null);
-        this.width = width;
-        this.height = height;
-        this.format = FORMAT_JPEG;
-        this.timestamp = timestamp;
-        this.key = null;
+        this(data != null ? data.clone() : null, width, height, FORMAT_JPEG, null, timestamp, null);
     }
 
     /**
@@ -80,12 +96,7 @@ public class VideoFrame {
      * @param timestamp the frame timestamp
      */
     public VideoFrame(byte[] data, long timestamp) {
-        this.data = (data != null ? data.clone() : null);
-        this.width = -1;
-        this.height = -1;
-        this.format = FORMAT_H264;
-        this.timestamp = timestamp;
-        this.key = null;
+        this(data != null ? data.clone() : null, -1, -1, FORMAT_H264, null, timestamp, null);
     }
 
     /**
@@ -95,12 +106,95 @@ public class VideoFrame {
      * @param key  the
      */
     public VideoFrame(byte[] data, String key) {
-        this.data = (data != null ? data.clone() : null);
-        this.width = -1;
-        this.height = -1;
-        this.format = FORMAT_VIDEO_CONFIG;
-        this.timestamp = -1;
-        this.key = key;
+        this(data != null ? data.clone() : null, -1, -1, FORMAT_VIDEO_CONFIG, key, -1, null);
+    }
+
+    /**
+     * Creates a new VideoFrame object that contains an uncompressed video frame, copying
+     * the data into an array taken from the pool.<br>
+     * The caller holds the only reference, and has to release it.
+     *
+     * @param pool      the pool to get the array from
+     * @param data      the raw frame data
+     * @param width     the frame width
+     * @param height    the frame height
+     * @param format    the frame pixel format ({@link ImageFormat})
+     * @param timestamp the frame timestamp
+     * @return the new VideoFrame
+     */
+    public static VideoFrame obtain(@NotNull BufferPool pool, @NotNull byte[] data,
+                                    int width, int height, int format, long timestamp) {
+        byte[] buffer = pool.obtain(data.length);
+        System.arraycopy(data, 0, buffer, 0, data.length);
+        return new VideoFrame(buffer, width, height, format, null, timestamp, pool);
+    }
+
+    /**
+     * Creates a new VideoFrame object that contains a JPEG compressed video frame,
+     * without copying the data. The caller must not modify the data afterwards.
+     *
+     * @param data      the raw frame data
+     * @param width     the frame width
+     * @param height    the frame height
+     * @param timestamp the frame timestamp
+     * @return the new VideoFrame
+     */
+    public static VideoFrame wrap(byte[] data, int width, int height, long timestamp) {
+        return new VideoFrame(data, width, height, FORMAT_JPEG, null, timestamp, null);
+    }
+
+    /**
+     * Creates a new VideoFrame object that contains a JPEG compressed video frame of an
+     * MJPEG variant, without copying the data. The caller must not modify the data afterwards.
+     *
+     * @param data      the raw frame data
+     * @param width     the frame width
+     * @param height    the frame height
+     * @param key       the variant key ({@link MJPEGVariant#getKey()}), null for the default one
+     * @param timestamp the frame timestamp
+     * @return the new VideoFrame
+     */
+    public static VideoFrame wrap(byte[] data, int width, int height, String key, long timestamp) {
+        return new VideoFrame(data, width, height, FORMAT_JPEG, key, timestamp, null);
+    }
+
+    /**
+     * Creates a new VideoFrame object that contains a compressed video slice,
+     * without copying the data. The caller must not modify the data afterwards.
+     *
+     * @param data      the raw frame data
+     * @param timestamp the frame timestamp
+     * @return the new VideoFrame
+     */
+    public static VideoFrame wrap(byte[] data, long timestamp) {
+        return new VideoFrame(data, -1, -1, FORMAT_H264, null, timestamp, null);
+    }
+
+    /**
+     * Adds a reference to the pooled data, to be released with {@link #release()}.
+     *
+     * @return this frame
+     */
+    public VideoFrame retain() {
+        if (pool != null)
+            references.incrementAndGet();
+        return this;
+    }
+
+    /**
+     * Releases a reference to the pooled data; the data goes back to the pool when the
+     * last reference is released, the frame must not be used anymore.
+     *
+     * @throws IllegalStateException if all the references have already been released
+     */
+    public void release() throws IllegalStateException {
+        if (pool == null)
+            return;
+        int count = references.decrementAndGet();
+        if (count == 0)
+            pool.recycle(data);
+        else if (count < 0)
+            throw new IllegalStateException("frame already released");
     }
 
     /**
@@ -161,8 +255,9 @@ public class VideoFrame {
     }
 
     /**
-     * @return the key that identifies the configuration type, {@code null} if the buffer
-     * does not contains video configuration information.
+     * @return the key that identifies the configuration type or the MJPEG variant,
+     * {@code null} if the buffer contains neither video configuration information
+     * nor a JPEG frame of a variant.
      */
     public String getKey() {
         return key;
@@ -0,0 +1,296 @@
+/*
+ * This file is part of spyNet Camera, the Android IP camera
+ *
+ * Copyright (C) 2016-2017 Paolo Dematteis
+ *
+ * spyNet Camera is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * spyNet Camera is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Paolo Dematteis - spynet314@gmail.com
+ */
+
+package com.spynet.camera.network;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.spynet.camera.common.Utils;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Defines the in-memory cache of the static files served by the StreamServer.<br>
+ * Each file is read only once, and compressible files are gzipped in advance. The files
+ * are preloaded in background when the cache is created, the ones requested in the meantime
+ * are loaded on demand.
+ */
+final class AssetCache {
+
+    private static final String TAG = AssetCache.class.getSimpleName();
+
+    // Marks the files that cannot be read
+    private static final Asset MISSING = new Asset(null, new byte[0], null, null, null);
+
+    private final Context mContext;                     // The context that holds the assets
+    private final ConcurrentHashMap<String, Asset>      // The cached files, by asset path
+            mAssets;                                    //
+
+    /**
+     * Defines a cached file.
+     */
+    static final class Asset {
+
+        private final String mContentType;              // The MIME type
+        private final byte[] mData;                     // The file content
+        private final byte[] mGzipData;                 // The gzipped content, null if not worth
+        private final String mETag;                     // The strong ETag of the content
+        private final String mGzipETag;                 // The strong ETag of the gzipped content
+
+        /**
+         * Creates a new Asset object.
+         */
+        private Asset(String contentType, byte[] data, byte[] gzipData, String eTag, String gzipETag) {
+            mContentType = contentType;
+            mData = data;
+            mGzipData = gzipData;
+            mETag = eTag;
+            mGzipETag = gzipETag;
+        }
+
+        /**
+         * @return the MIME type
+         */
+        String getContentType() {
+            return mContentType;
+        }
+
+        /**
+         * @param gzip whether the gzipped content is required
+         * @return the content
+         */
+        byte[] getData(boolean gzip) {
+            return gzip ? mGzipData : mData;
+        }
+
+        /**
+         * @param gzip whether the gzipped content is required
+         * @return the ETag of the content, quotes included
+         */
+        String getETag(boolean gzip) {
+            return gzip ? mGzipETag : mETag;
+        }
+
+        /**
+         * @return true if the file has a gzipped content
+         */
+        boolean hasGzip() {
+            return mGzipData != null;
+        }
+
+        /**
+         * @return true if the file is text, that should be revalidated on every use
+         */
+        boolean isText() {
+            return mContentType != null &&
+                    (mContentType.startsWith("text/") || mContentType.contains("javascript"));
+        }
+    }
+
+    /**
+     * Creates a new AssetCache object and starts preloading the files.
+     *
+     * @param context the context that holds the assets
+     * @param root    the assets folder to preload
+     */
+    AssetCache(@NotNull Context context, @NotNull final String root) {
+        mContext = context;
+        mAssets = new ConcurrentHashMap<>();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                preload(root);
+                Log.v(TAG, mAssets.size() + " files cached");
+            }
+        }, TAG);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Gets a file, loading it if not cached yet.
+     *
+     * @param path the asset path
+     * @return the file, null if it does not exist
+     */
+    @Nullable
+    Asset get(@NotNull String path) {
+        Asset asset = mAssets.get(path);
+        if (asset == null) {
+            // Missing files are not cached, the clients may request any path
+            asset = load(path);
+            if (asset == MISSING)
+                return null;
+            mAssets.put(path, asset);
+        }
+        return asset;
+    }
+
+    /**
+     * Loads all the files of a folder and its sub-folders.
+     */
+    private void preload(String folder) {
+        String[] names;
+        try {
+            names = mContext.getAssets().list(folder);
+        } catch (IOException e) {
+            Log.e(TAG, "cannot list the assets in " + folder, e);
+            return;
+        }
+        if (names == null)
+            return;
+        for (String name : names) {
+            String path = folder + "/" + name;
+            if (mAssets.containsKey(path))
+                continue;
+            Asset asset = load(path);
+            if (asset != MISSING) {
+                mAssets.putIfAbsent(path, asset);
+            } else {
+                // Not a file, it may be a folder
+                preload(path);
+            }
+        }
+    }
+
+    /**
+     * Reads a file and prepares its gzipped content.
+     *
+     * @return the file, MISSING if it cannot be read
+     */
+    private Asset load(String path) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (!Utils.readAssetFile(mContext, path, out))
+            return MISSING;
+        byte[] data = out.toByteArray();
+        String contentType = URLConnection.getFileNameMap().getContentTypeFor(path);
+        if (contentType == null && path.endsWith(".js"))
+            contentType = "application/javascript";
+        if (contentType == null && path.endsWith(".css"))
+            contentType = "text/css";
+        byte[] gzipData = null;
+        if (isCompressible(contentType)) {
+            gzipData = gzip(data);
+            if (gzipData != null && gzipData.length >= data.length)
+                gzipData = null;
+        }
+        return new Asset(contentType, data, gzipData,
+                eTag(data), gzipData != null ? eTag(gzipData) : null);
+    }
+
+    /**
+     * @return true if the content type is worth compressing
+     */
+    private static boolean isCompressible(String contentType) {
+        return contentType != null &&
+                (contentType.startsWith("text/") ||
+                        contentType.contains("javascript") ||
+                        contentType.contains("json") ||
+                        contentType.contains("xml"));
+    }
+
+    /**
+     * @return the gzipped data, null on error
+     */
+    private static byte[] gzip(byte[] data) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2);
+            GZIPOutputStream gzip = new GZIPOutputStream(out);
+            gzip.write(data);
+            gzip.close();
+            return out.toByteArray();
+        } catch (IOException e) {
+            Log.e(TAG, "cannot compress the asset", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return a strong ETag derived from the data digest, quotes included
+     */
+    private static String eTag(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(data);
+            StringBuilder sb = new StringBuilder(2 + 2 * 10);
+            sb.append('"');
+            for (int i = 0; i < 10; i++)
+                sb.append(String.format("%02x", digest[i]));
+            return sb.append('"').toString();
+        } catch (NoSuchAlgorithmException e) {
+            return "\"" + Integer.toHexString(Arrays.hashCode(data)) + "-" + data.length + "\"";
+        }
+    }
+
+    /**
+     * Checks whether the client accepts gzipped content.
+     *
+     * @param acceptEncoding the Accept-Encoding header, may be null
+     * @return true if gzip is acceptable
+     */
+    static boolean acceptsGzip(@Nullable String acceptEncoding) {
+        if (acceptEncoding == null)
+            return false;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim().toLowerCase();
+            if (!name.equals("gzip") && !name.equals("x-gzip"))
+                continue;
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim();
+                if (param.startsWith("q=") && Utils.tryParseFloat(param.substring(2), 1) <= 0)
+                    return false;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether the cached copy of the client is still valid.
+     *
+     * @param ifNoneMatch the If-None-Match header, may be null
+     * @param eTag        the ETag of the current content
+     * @return true if the header matches the ETag
+     */
+    static boolean matches(@Nullable String ifNoneMatch, @NotNull String eTag) {
+        if (ifNoneMatch == null)
+            return false;
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/"))
+                tag = tag.substring(2);
+            if (tag.equals("*") || tag.equals(eTag))
+                return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * This file is part of spyNet Camera, the Android IP camera
+ *
+ * Copyright (C) 2016-2017 Paolo Dematteis
+ *
+ * spyNet Camera is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * spyNet Camera is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Paolo Dematteis - spynet314@gmail.com
+ */
+
+package com.spynet.camera.network;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Defines the congestion controller that adapts the H264 bitrate to the network.<br>
+ * The encoder is shared by all the sessions, so the bitrate follows the worst one: it is
+ * decreased as soon as a session reports congestion (loss, growing RTT or a write backlog),
+ * and increased slowly only after all the sessions have been clear for a while. Between
+ * the two thresholds the bitrate is held, so that it does not oscillate.<br>
+ * The controller does not depend on Android nor on the clock, the caller feeds the samples
+ * and the time: to be used by a single thread.
+ */
+final class BitrateController {
+
+    // Decisions
+    static final int HOLD = 0;                          // The bitrate is unchanged
+    static final int DECREASE = 1;                      // Some session is congested
+    static final int INCREASE = 2;                      // All the sessions have been clear for a while
+    static final int RESET = 3;                         // No session, back to the max bitrate
+    static final String[] DECISIONS = {"hold", "decrease", "increase", "reset"};
+
+    // Fraction lost in %, above which a session is congested
+    private static final double LOSS_HIGH = 10;
+    // Fraction lost in %, below which a session is clear
+    private static final double LOSS_LOW = 2;
+    // RTT growth over the session min in ms, above which a session is congested
+    private static final double RTT_RISE = 150;
+    // Jitter in ms, above which a session is not clear
+    private static final double JITTER_HIGH = 50;
+    // Queued slices, from which a session is congested
+    private static final int BACKLOG_HIGH = 5;
+    // Queued slices, above which a session is not clear
+    private static final int BACKLOG_LOW = 1;
+    // Bitrate factors applied on decrease and increase
+    private static final double DECREASE_FACTOR = 0.85;
+    private static final double INCREASE_FACTOR = 1.1;
+    // Min time between two decreases in ms, to let the feedback reflect the previous one
+    private static final long DECREASE_HOLD = 2000;
+    // Time all the sessions must be clear before an increase in ms
+    private static final long INCREASE_HOLD = 3000;
+
+    private final int mMinBitrate;                      // The min bitrate in bps
+    private final int mMaxBitrate;                      // The max bitrate in bps
+    private final HashMap<Object, Session> mSessions;   // The sessions reported in the current round
+    private int mTarget;                                // The target bitrate in bps
+    private long mLastDecrease;                         // Time of the last decrease in ms
+    private long mClearSince;                           // Time since all the sessions are clear in ms, -1 if not
+
+    /**
+     * Defines the feedback of a session.
+     */
+    private static final class Session {
+        int reports = 0;                                // Number of RTCP reports at the last sample
+        double minRTT = -1;                             // Min RTT seen in ms, -1 if unknown
+        double fractionLost;                            // Last fraction lost in %
+        double rtt = -1;                                // Last RTT in ms, -1 if unknown
+        double jitter;                                  // Last jitter in ms
+        int backlog;                                    // Queued slices
+        boolean fresh;                                  // Whether a new RTCP report has been sampled
+        boolean reported;                               // Whether reported in the current round
+    }
+
+    /**
+     * Creates a new BitrateController object, starting from the max bitrate.
+     *
+     * @param minBitrate the min bitrate in bps
+     * @param maxBitrate the max bitrate in bps
+     */
+    BitrateController(int minBitrate, int maxBitrate) {
+        mMinBitrate = Math.min(minBitrate, maxBitrate);
+        mMaxBitrate = maxBitrate;
+        mSessions = new HashMap<>();
+        mTarget = maxBitrate;
+        mLastDecrease = Long.MIN_VALUE / 2;
+        mClearSince = -1;
+    }
+
+    /**
+     * Feeds the feedback of a session, to be called for each session before {@link #update}.
+     *
+     * @param session      the session identity
+     * @param reports      the number of RTCP reports received so far, the loss, RTT and
+     *                     jitter are evaluated only when it changes
+     * @param fractionLost the last fraction lost in %
+     * @param rtt          the last round trip time in ms, -1 if unknown
+     * @param jitter       the last interarrival jitter in ms
+     * @param backlog      the number of slices waiting to be sent
+     */
+    void report(Object session, int reports, double fractionLost, double rtt, double jitter, int backlog) {
+        Session s = mSessions.get(session);
+        if (s == null) {
+            s = new Session();
+            mSessions.put(session, s);
+        }
+        s.fresh = reports != s.reports;
+        s.reports = reports;
+        if (s.fresh) {
+            s.fractionLost = fractionLost;
+            s.rtt = rtt;
+            s.jitter = jitter;
+            if (rtt >= 0 && (s.minRTT < 0 || rtt < s.minRTT))
+                s.minRTT = rtt;
+        }
+        s.backlog = backlog;
+        s.reported = true;
+    }
+
+    /**
+     * Decides the target bitrate from the feedback reported since the previous call.<br>
+     * The sessions not reported are forgotten.
+     *
+     * @param now the current time in ms
+     * @return the decision
+     */
+    int update(long now) {
+        boolean congested = false;
+        boolean clear = true;
+        Iterator<Map.Entry<Object, Session>> i = mSessions.entrySet().iterator();
+        while (i.hasNext()) {
+            Session s = i.next().getValue();
+            if (!s.reported) {
+                i.remove();
+                continue;
+            }
+            s.reported = false;
+            double rise = s.rtt >= 0 && s.minRTT >= 0 ? s.rtt - s.minRTT : 0;
+            // Stale reports have already been evaluated, only the backlog is current
+            if (s.fresh && (s.fractionLost >= LOSS_HIGH || rise >= RTT_RISE))
+                congested = true;
+            if (s.backlog >= BACKLOG_HIGH)
+                congested = true;
+            if (s.fractionLost > LOSS_LOW || rise >= RTT_RISE / 2 ||
+                    s.jitter >= JITTER_HIGH || s.backlog > BACKLOG_LOW)
+                clear = false;
+        }
+        if (mSessions.isEmpty()) {
+            mClearSince = -1;
+            if (mTarget == mMaxBitrate)
+                return HOLD;
+            mTarget = mMaxBitrate;
+            return RESET;
+        }
+        if (congested || !clear) {
+            mClearSince = -1;
+            if (congested && now - mLastDecrease >= DECREASE_HOLD && mTarget > mMinBitrate) {
+                mTarget = Math.max(mMinBitrate, (int) (mTarget * DECREASE_FACTOR));
+                mLastDecrease = now;
+                return DECREASE;
+            }
+            return HOLD;
+        }
+        if (mClearSince < 0)
+            mClearSince = now;
+        if (now - mClearSince >= INCREASE_HOLD && mTarget < mMaxBitrate) {
+            mTarget = Math.min(mMaxBitrate, (int) (mTarget * INCREASE_FACTOR));
+            mClearSince = now;
+            return INCREASE;
+        }
+        return HOLD;
+    }
+
+    /**
+     * @return the target bitrate in bps
+     */
+    int getTarget() {
+        return mTarget;
+    }
+}
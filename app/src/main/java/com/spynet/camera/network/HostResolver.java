@@ -0,0 +1,193 @@
+/*
+ * This file is part of spyNet Camera, the Android IP camera
+ *
+ * Copyright (C) 2016-2017 Paolo Dematteis
+ *
+ * spyNet Camera is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * spyNet Camera is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Paolo Dematteis - spynet314@gmail.com
+ */
+
+package com.spynet.camera.network;
+
+import android.util.Log;
+
+import com.google.firebase.crash.FirebaseCrash;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Defines the process-wide asynchronous reverse DNS resolver.<br>
+ * The callers get the textual IP address immediately, the host name as soon as the lookup,
+ * performed in background, completes. The results are kept in a bounded LRU cache; the
+ * failed lookups are cached too, for a shorter time, so that a LAN without PTR records is
+ * not queried again on every request.
+ */
+public final class HostResolver {
+
+    // Time a resolved host name is kept in ms
+    private static final long POSITIVE_TTL = 60 * 60 * 1000;
+    // Time a failed lookup is kept in ms
+    private static final long NEGATIVE_TTL = 5 * 60 * 1000;
+    // Max number of cached addresses
+    private static final int MAX_ENTRIES = 256;
+    // Max number of concurrent lookups
+    private static final int MAX_THREADS = 2;
+    // Time an idle lookup thread is kept alive in s
+    private static final long THREAD_KEEP_ALIVE = 30;
+
+    private static final String TAG = HostResolver.class.getSimpleName();
+
+    private static final HostResolver mInstance         // The process-wide resolver
+            = new HostResolver();                       //
+
+    private final LinkedHashMap<String, Entry> mCache;  // The lookup results, by IP address (LRU)
+    private final HashMap<String, ArrayList<Callback>>  // The callbacks waiting for a lookup
+            mPending;                                   //
+    private final ThreadPoolExecutor mExecutor;         // The lookup threads
+
+    /**
+     * Defines a lookup result.
+     */
+    private static final class Entry {
+        final String hostName;                          // The host name, null if not resolved
+        final long expiry;                              // Expiration time in ms
+
+        Entry(String hostName, long expiry) {
+            this.hostName = hostName;
+            this.expiry = expiry;
+        }
+    }
+
+    /**
+     * Defines the interface to be notified when a host name is resolved.
+     */
+    public interface Callback {
+        /**
+         * Notifies that a host name has been resolved.<br>
+         * Called on a lookup thread, only if the lookup succeeded.
+         *
+         * @param address  the address
+         * @param hostName the host name
+         */
+        void onHostResolved(InetAddress address, String hostName);
+    }
+
+    /**
+     * Creates a new HostResolver object.
+     */
+    private HostResolver() {
+        mCache = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+        mPending = new HashMap<>();
+        mExecutor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS,
+                THREAD_KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(@NotNull Runnable r) {
+                        Thread thread = new Thread(r, TAG);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return the process-wide resolver
+     */
+    public static HostResolver get() {
+        return mInstance;
+    }
+
+    /**
+     * Gets the host name of an address, never blocks.<br>
+     * If the host name is not known yet, a lookup is started and the textual IP address
+     * is returned; the callback, if any, is notified when the lookup succeeds.
+     *
+     * @param address  the address to resolve
+     * @param callback the callback to notify the host name, null if not required
+     * @return the host name if known, the textual IP address otherwise
+     */
+    public String resolve(@NotNull final InetAddress address, @Nullable Callback callback) {
+        final String ip = address.getHostAddress();
+        synchronized (this) {
+            Entry entry = mCache.get(ip);
+            if (entry != null && entry.expiry > System.currentTimeMillis())
+                return entry.hostName != null ? entry.hostName : ip;
+            ArrayList<Callback> callbacks = mPending.get(ip);
+            if (callbacks == null) {
+                callbacks = new ArrayList<>();
+                mPending.put(ip, callbacks);
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        lookup(ip, address);
+                    }
+                });
+            }
+            if (callback != null && !callbacks.contains(callback))
+                callbacks.add(callback);
+        }
+        return ip;
+    }
+
+    /**
+     * Performs a lookup, on a lookup thread.
+     */
+    private void lookup(String ip, InetAddress address) {
+        String hostName;
+        try {
+            // A new object, so that the host name cached by the address is not used
+            hostName = InetAddress.getByAddress(address.getAddress()).getHostName();
+            if (hostName.equals(ip))
+                hostName = null;
+        } catch (UnknownHostException e) {
+            hostName = null;
+        }
+        ArrayList<Callback> callbacks;
+        synchronized (this) {
+            long ttl = hostName != null ? POSITIVE_TTL : NEGATIVE_TTL;
+            mCache.put(ip, new Entry(hostName, System.currentTimeMillis() + ttl));
+            callbacks = mPending.remove(ip);
+        }
+        Log.v(TAG, ip + " resolved to " + (hostName != null ? hostName : "nothing"));
+        if (hostName == null || callbacks == null)
+            return;
+        for (Callback c : callbacks) {
+            try {
+                c.onHostResolved(address, hostName);
+            } catch (Exception e) {
+                FirebaseCrash.report(e);
+                Log.e(TAG, "unexpected exception while notifying the host name", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * This file is part of spyNet Camera, the Android IP camera
+ *
+ * Copyright (C) 2016-2017 Paolo Dematteis
+ *
+ * spyNet Camera is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * spyNet Camera is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Paolo Dematteis - spynet314@gmail.com
+ */
+
+package com.spynet.camera.network;
+
+import com.spynet.camera.common.TimeStamp;
+
+/**
+ * Defines the adaptive frame rate of a MJPEG session.<br>
+ * After each frame the session reports how long the write took and when the frame was
+ * captured. A write that blocks means that the kernel send buffer is full, i.e. the link
+ * cannot carry the current rate; a latency above the target means that the frames reach
+ * the client late. In both cases the rate is cut multiplicatively, otherwise it is raised
+ * slowly back to the rate requested by the client.<br>
+ * The kernel send queue itself is not observable from Java, the write blocking time is
+ * used in its place.
+ */
+final class MJPEGRateControl {
+
+    // Target latency from the frame capture to the socket in us
+    private static final long TARGET_LATENCY = 500000;
+    // Write time that reveals a full send buffer, as a fraction of the frame interval
+    private static final double STALL_RATIO = 0.5;
+    // Min write time considered a stall in us, to ignore the scheduling jitter
+    private static final long MIN_STALL_TIME = 20000;
+    // Factor applied to the rate on congestion
+    private static final double DECREASE_FACTOR = 0.75;
+    // Factor applied to the rate when the link keeps up
+    private static final double INCREASE_FACTOR = 1.1;
+    // Min time between two increases in us
+    private static final long INCREASE_PERIOD = 1000000;
+    // Weight of a new sample in the smoothed values
+    private static final double SMOOTHING = 0.25;
+
+    private final double mMinFps;                       // Min rate
+    private final double mMaxFps;                       // Max rate, as requested by the client
+    private volatile double mFps;                       // Current rate
+    private volatile long mLatency;                     // Smoothed latency in us
+    private volatile long mWriteTime;                   // Smoothed write time in us
+    private long mLastChange;                           // Time of the last rate change in us
+
+    /**
+     * Creates a new MJPEGRateControl object, starting at the max rate.
+     *
+     * @param minFps the min rate
+     * @param maxFps the max rate
+     */
+    MJPEGRateControl(double minFps, double maxFps) {
+        mMinFps = minFps;
+        mMaxFps = Math.max(minFps, maxFps);
+        mFps = mMaxFps;
+    }
+
+    /**
+     * @return the current interval between two frames in us
+     */
+    long getInterval() {
+        return (long) (1000000.0 / mFps);
+    }
+
+    /**
+     * @return the current rate
+     */
+    double getFps() {
+        return mFps;
+    }
+
+    /**
+     * @return the smoothed latency from the frame capture to the socket in us
+     */
+    long getLatency() {
+        return mLatency;
+    }
+
+    /**
+     * @return the smoothed time spent writing a frame in us
+     */
+    long getWriteTime() {
+        return mWriteTime;
+    }
+
+    /**
+     * Reports a frame sent, and adjusts the rate.<br>
+     * To be called by the thread that sends the stream.
+     *
+     * @param timestamp the frame capture timestamp in us ({@link TimeStamp})
+     * @param writeTime the time spent writing the frame in us
+     */
+    void onFrameSent(long timestamp, long writeTime) {
+        long now = TimeStamp.getTimeStamp();
+        long latency = Math.max(now - timestamp, 0);
+        mLatency = mLatency == 0 ? latency : (long) (mLatency + SMOOTHING * (latency - mLatency));
+        mWriteTime = (long) (mWriteTime + SMOOTHING * (writeTime - mWriteTime));
+        boolean stalled = writeTime > MIN_STALL_TIME && writeTime > STALL_RATIO * getInterval();
+        if (stalled || latency > TARGET_LATENCY) {
+            // Give the previous cut the time to take effect
+            if (now - mLastChange > mLatency) {
+                mFps = Math.max(mFps * DECREASE_FACTOR, mMinFps);
+                mLastChange = now;
+            }
+        } else if (mLatency < TARGET_LATENCY / 2 && mFps < mMaxFps) {
+            if (now - mLastChange > INCREASE_PERIOD) {
+                mFps = Math.min(mFps * INCREASE_FACTOR, mMaxFps);
+                mLastChange = now;
+            }
+        }
+    }
+}
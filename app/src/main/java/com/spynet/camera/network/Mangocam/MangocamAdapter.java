@@ -28,7 +28,10 @@ import android.content.res.Resources;
 import android.util.Log;
 
 import com.spynet.camera.R;
+import com.spynet.camera.common.BroadcastRing;
 import com.spynet.camera.common.Utils;
+import com.spynet.camera.media.MJPEGVariant;
+import com.spynet.camera.media.MJPEGVariants;
 import com.spynet.camera.media.VideoFrame;
 import com.spynet.camera.network.Mangocam.API.DisconnectCommand;
 import com.spynet.camera.network.Mangocam.API.HelloCommand;
@@ -75,9 +78,13 @@ public class MangocamAdapter implements Closeable, StreamConnection.ConnectionCa
 
     // Timeout to read from the server in ms
     private final static int READ_TIMEOUT = 5000;
+    // Number of JPEG frames kept for the uploads
+    private final static int FRAME_RING_CAPACITY = 4;
 
     // List used to keep track of all the active connections
     private final ConcurrentLinkedQueue<StreamConnection> mConnections;
+    // Ring shared by the upload connections
+    private final BroadcastRing<VideoFrame> mFrameRing;
 
     private final Context mContext;                     // The context that uses the MangocamAdapter
     private final Random mRandom;                       // Random generator
@@ -170,6 +177,7 @@ public class MangocamAdapter implements Closeable, StreamConnection.ConnectionCa
         mClipboard = (ClipboardManager) mContext.getSystemService(Context.CLIPBOARD_SERVICE);
         mNotification = new MangocamNotification(mContext);
         mConnections = new ConcurrentLinkedQueue<>();
+        mFrameRing = new BroadcastRing<>(FRAME_RING_CAPACITY);
         mStreams = new ConcurrentHashMap<>();
         // Read the hosts list from preferences, use the default host if none
         mHosts = SettingsActivity.getMangoServers(mContext);
@@ -222,15 +230,14 @@ public class MangocamAdapter implements Closeable, StreamConnection.ConnectionCa
     }
 
     /**
-     * Pushes an uncompressed video data buffer to the queue.
+     * Publishes a JPEG frame to the upload connections.
      *
-     * @param frame the uncompressed video data
+     * @param frame the JPEG frame
      * @throws InterruptedException if interrupted while waiting
      */
     public void push(VideoFrame frame) throws InterruptedException {
-        // Forward to all the opened connections
-        for (StreamConnection c : mConnections)
-            c.push(frame);
+        if (frame.isJPEG())
+            mFrameRing.publish(frame);
     }
 
     /**
@@ -584,23 +591,41 @@ public class MangocamAdapter implements Closeable, StreamConnection.ConnectionCa
      */
     private void sendMJPEG(StreamConnection connection) throws IOException, InterruptedException {
 
-        VideoFrame frame;
+        final BroadcastRing<VideoFrame>.Reader reader = mFrameRing.newReader();
         double mjpegFps = Math.min(
                 SettingsActivity.getMJPEGFrameSpeed(mContext),
                 mSendCmd.getRate());
         long uploadStart = System.currentTimeMillis();
         long delay = (long) (1000000.0 / mjpegFps);
-        long lastTime = 0;
 
-        connection.clearFrames();
         connection.write(mSendCmd.getQuery());
+        // The encoder follows the fastest subscriber, the upload uses the configured quality
+        MJPEGVariants.Subscription subscription = MJPEGVariants.get().subscribe(
+                new MJPEGVariant(SettingsActivity.getMJPEGQuality(mContext), 1), mjpegFps);
+        try {
+            sendMJPEGFrames(connection, reader, delay, uploadStart);
+        } finally {
+            subscription.close();
+        }
+    }
+
+    /**
+     * Uploads the MJPEG images, until the network is lost or the upload has to be split.
+     */
+    private void sendMJPEGFrames(StreamConnection connection, BroadcastRing<VideoFrame>.Reader reader,
+                                 long delay, long uploadStart)
+            throws IOException, InterruptedException {
+        VideoFrame frame;
+        long lastTime = 0;
         while (!Thread.currentThread().isInterrupted()) {
             // Check if the network is available
             if (!(mWiFiAvailable || mMobileAvailable))
                 break;
-            // Get a frame from the queue
-            if ((frame = connection.popFrame()) == null)
+            // Get a frame from the ring
+            if ((frame = reader.poll(READ_TIMEOUT)) == null) {
+                Log.v(TAG, "cannot get the frame, the ring is empty");
                 continue;
+            }
             // Control the fps
             if (frame.getTimestamp() < lastTime + delay)
                 continue;
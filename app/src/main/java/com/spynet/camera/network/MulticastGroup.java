@@ -0,0 +1,375 @@
+/*
+ * This file is part of spyNet Camera, the Android IP camera
+ *
+ * Copyright (C) 2016-2017 Paolo Dematteis
+ *
+ * spyNet Camera is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * spyNet Camera is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Paolo Dematteis - spynet314@gmail.com
+ */
+
+package com.spynet.camera.network;
+
+import android.util.Log;
+
+import com.spynet.camera.common.Utils;
+import com.spynet.camera.media.AudioData;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Defines the RTP multicast delivery of a track, shared by all the RTSP sessions that set
+ * it up with a multicast transport.<br>
+ * The group owns a single sender, fed by the server like a connection, that streams to the
+ * group while at least one session is playing: the uplink cost does not depend on the number
+ * of viewers, and the SSRC and the sequence numbers do not change when the sessions join or
+ * leave. Each session is notified as a stream of its own, the sessions that join a running
+ * sender request a sync frame instead of replaying the GOP.
+ */
+final class MulticastGroup implements RTPSource, Closeable {
+
+    private static final String TAG = MulticastGroup.class.getSimpleName();
+
+    private static final int QUEUE_CAPACITY = 10;       // Frame queue capacity
+    private static final int QUEUE_READ_TIMEOUT = 5000; // Timeout to read from the queue in ms
+
+    private final String mName;                     // The track name
+    private final boolean mVideo;                   // Whether the track is the video one
+    private final String mType;                     // The stream type
+    private final InetAddress mAddress;             // The multicast group address
+    private final int mPort;                        // The group port used by the RTP protocol
+    private final int mTTL;                         // The time-to-live of the packets
+    private final int mClockRate;                   // The track clock rate in Hz
+    private final ConcurrentHashMap<StreamConnection, Long>
+            mMembers;                               // The connections playing the track, with their stream id
+    private final BlockingQueue<RTPSlice>
+            mSliceQueue;                            // The slices to send
+    private final BlockingQueue<AudioData>
+            mAudioQueue;                            // The audio buffers to send
+    private volatile boolean mStreaming;            // Whether the sender is streaming
+    private volatile boolean mDesynced;             // Whether a reference slice has been dropped
+    private UDPTransport mTransport;                // The sockets to send from, null if idle
+    private Closeable mSender;                      // The packetizer, null if idle
+
+    /**
+     * Creates a new MulticastGroup object.
+     *
+     * @param name      the track name
+     * @param video     true for the video track, false for the audio one
+     * @param address   the multicast group address
+     * @param port      the group port used by the RTP protocol, RTCP uses the next one
+     * @param ttl       the time-to-live of the packets
+     * @param clockRate the track clock rate in Hz
+     */
+    MulticastGroup(@NotNull String name, boolean video,
+                   @NotNull InetAddress address, int port, int ttl, int clockRate) {
+        mName = name;
+        mVideo = video;
+        mType = video ? StreamConnection.TYPE_H264 : StreamConnection.TYPE_AAC;
+        mAddress = address;
+        mPort = port;
+        mTTL = ttl;
+        mClockRate = clockRate;
+        mMembers = new ConcurrentHashMap<>();
+        mSliceQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        mAudioQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    }
+
+    /**
+     * @return the multicast group address
+     */
+    InetAddress getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * @return the group port used by the RTP protocol
+     */
+    int getRTPPort() {
+        return mPort;
+    }
+
+    /**
+     * @return the group port used by the RTCP protocol
+     */
+    int getRTCPPort() {
+        return mPort + 1;
+    }
+
+    /**
+     * @return the time-to-live of the packets
+     */
+    int getTTL() {
+        return mTTL;
+    }
+
+    /**
+     * @return the track clock rate in Hz
+     */
+    int getClockRate() {
+        return mClockRate;
+    }
+
+    /**
+     * @return the number of connections playing the track
+     */
+    int getMembers() {
+        return mMembers.size();
+    }
+
+    /**
+     * Adds a connection to the group, starting the sender if it is the first one.<br>
+     * The connection is notified that its stream has started. The connections that join
+     * a running sender request a sync frame, to start decoding as soon as possible.
+     *
+     * @param connection the connection that starts playing
+     * @throws IOException if the sockets cannot be bound
+     */
+    void join(@NotNull StreamConnection connection) throws IOException {
+        long id = Utils.getUniqueID();
+        synchronized (this) {
+            if (mMembers.containsKey(connection))
+                return;
+            if (mSender == null)
+                startSender();
+            else if (mVideo)
+                connection.requestControl("video-sync", "send");
+            mMembers.put(connection, id);
+            Log.v(TAG, mName + " joined, " + mMembers.size() + " members");
+        }
+        connection.notifyStreamStarted(mType, id);
+    }
+
+    /**
+     * Removes a connection from the group, stopping the sender if it is the last one.<br>
+     * The connection is notified that its stream has stopped.
+     *
+     * @param connection the connection that stops playing
+     */
+    void leave(@NotNull StreamConnection connection) {
+        Long id;
+        synchronized (this) {
+            id = mMembers.remove(connection);
+            if (id == null)
+                return;
+            Log.v(TAG, mName + " left, " + mMembers.size() + " members");
+            if (mMembers.isEmpty())
+                stopSender();
+        }
+        connection.notifyStreamStopped(mType, id);
+    }
+
+    /**
+     * Stops the sender and closes the sockets.<br>
+     * The remaining connections are notified that their stream has stopped.
+     */
+    @Override
+    public void close() {
+        Map<StreamConnection, Long> members;
+        synchronized (this) {
+            members = new HashMap<>(mMembers);
+            mMembers.clear();
+            stopSender();
+        }
+        for (Map.Entry<StreamConnection, Long> member : members.entrySet())
+            member.getKey().notifyStreamStopped(mType, member.getValue());
+    }
+
+    /**
+     * Pushes a compressed video slice to the queue of the sender.<br>
+     * When the queue is full, the non-reference slices are dropped first. If a reference
+     * slice has to be dropped, the following slices are dropped up to the next IDR,
+     * that is requested.
+     *
+     * @param slice the video slice
+     * @return true if the data was added successfully, false otherwise
+     */
+    boolean push(RTPSlice slice) {
+        if (!mVideo || !mStreaming)
+            return false;
+        // An IDR makes the queued slices useless, make room for it
+        if (slice.isIDR()) {
+            if (mDesynced || mSliceQueue.remainingCapacity() == 0) {
+                StreamMetrics.get().drop(StreamMetrics.DROP_H264_FLUSHED, mSliceQueue.size());
+                mSliceQueue.clear();
+                mDesynced = false;
+            }
+            return mSliceQueue.offer(slice);
+        }
+        // Skip to the next IDR
+        if (mDesynced) {
+            StreamMetrics.get().drop(StreamMetrics.DROP_H264_DESYNCED, 1);
+            return false;
+        }
+        if (mSliceQueue.offer(slice))
+            return true;
+        StreamMetrics.get().drop(StreamMetrics.DROP_H264_QUEUE_FULL, 1);
+        if (slice.isReference()) {
+            Log.v(TAG, mName + " queue full, reference slice dropped, waiting for the next IDR");
+            mDesynced = true;
+            requestControl("video-sync", "send");
+        }
+        return false;
+    }
+
+    /**
+     * Drops the following slices up to the next IDR.<br>
+     * Used when some slices have been lost before reaching the group.
+     */
+    void desync() {
+        mDesynced = true;
+    }
+
+    /**
+     * Pushes an audio data buffer to the queue of the sender.
+     *
+     * @param data the audio data
+     * @return true if the data was added successfully, false otherwise
+     */
+    boolean push(AudioData data) {
+        if (mVideo || !mStreaming || !data.isAAC())
+            return false;
+        if (mAudioQueue.offer(data))
+            return true;
+        StreamMetrics.get().drop(StreamMetrics.DROP_AAC_QUEUE_FULL, 1);
+        return false;
+    }
+
+    @Override
+    public void clearSlices() {
+        mSliceQueue.clear();
+    }
+
+    @Override
+    public RTPSlice popSlice() throws InterruptedException {
+        return mSliceQueue.poll(QUEUE_READ_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    @Nullable
+    @Override
+    public RTPSlice peekSlice() {
+        return mSliceQueue.peek();
+    }
+
+    /**
+     * The sender starts with the first member, that waits for the next IDR.
+     */
+    @Nullable
+    @Override
+    public List<RTPSlice> takePreroll() {
+        return null;
+    }
+
+    @Override
+    public void clearAudio() {
+        mAudioQueue.clear();
+    }
+
+    @Override
+    public AudioData popAudio() throws InterruptedException {
+        return mAudioQueue.poll(QUEUE_READ_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Called by the sender, the members are notified when they join.
+     */
+    @Override
+    public void notifyStreamStarted(String type, long id) {
+        mStreaming = true;
+        Log.d(TAG, mName + " sender started");
+    }
+
+    /**
+     * Called by the sender, the members are notified when they leave.
+     */
+    @Override
+    public void notifyStreamStopped(String type, long id) {
+        mStreaming = false;
+        Log.d(TAG, mName + " sender stopped");
+    }
+
+    /**
+     * Forwards the request through one of the members, they share the same server.
+     */
+    @Override
+    public void requestControl(String action, String params) {
+        for (StreamConnection member : mMembers.keySet()) {
+            member.requestControl(action, params);
+            break;
+        }
+    }
+
+    /**
+     * The group is not torn down by the RTCP of a single member, the members leave
+     * with their RTSP session.
+     */
+    @Override
+    public void teardownRTP() {
+    }
+
+    /**
+     * Starts the sender, fed by the group queues.
+     */
+    private void startSender() throws IOException {
+        mTransport = new UDPTransport(mName + "-multicast");
+        mTransport.setMulticastTTL(mTTL);
+        int seq = new Random().nextInt() & 0xFFFF;
+        if (mVideo) {
+            UDPVideoPacketizer sender = new UDPVideoPacketizer(this, mTransport,
+                    mAddress, getRTPPort(), getRTCPPort(), mClockRate, seq);
+            sender.start();
+            mSender = sender;
+        } else {
+            UDPAudioPacketizer sender = new UDPAudioPacketizer(this, mTransport,
+                    mAddress, getRTPPort(), getRTCPPort(), mClockRate, seq);
+            sender.start();
+            mSender = sender;
+        }
+    }
+
+    /**
+     * Stops the sender, if any, and closes the sockets.
+     */
+    private void stopSender() {
+        if (mSender != null) {
+            try {
+                mSender.close();
+            } catch (IOException e) {
+                Log.e(TAG, "cannot stop the " + mName + " sender", e);
+            }
+            mSender = null;
+        }
+        if (mTransport != null) {
+            mTransport.close();
+            mTransport = null;
+        }
+        mStreaming = false;
+        mDesynced = false;
+        mSliceQueue.clear();
+        mAudioQueue.clear();
+    }
+}
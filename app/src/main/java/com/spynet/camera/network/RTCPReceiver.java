@@ -0,0 +1,320 @@
+/*
+ * This file is part of spyNet Camera, the Android IP camera
+ *
+ * Copyright (C) 2016-2017 Paolo Dematteis
+ *
+ * spyNet Camera is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * spyNet Camera is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Paolo Dematteis - spynet314@gmail.com
+ */
+
+package com.spynet.camera.network;
+
+import android.util.Log;
+
+import com.spynet.camera.common.TimeStamp;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Defines the receiver of the RTCP packets sent by a client for an RTP stream.<br>
+ * The receiver reports (RR, or the report blocks of an SR) about the stream SSRC are kept
+ * as network statistics: fraction lost, cumulative loss, jitter and round trip time. The
+ * client CNAME is taken from the SDES packets, a BYE about the client SSRC tears the RTSP
+ * session down, and the generic NACKs (RFC 4585) are passed to the sender to retransmit
+ * the lost packets.<br>
+ * The client SSRC is learned from the first packet received from the client address; the
+ * packets of other SSRCs are then ignored, so that another client cannot end the session.<br>
+ * The packets are received by the UDPTransport of the track for UDP, or on the RTSP
+ * connection for the interleaved transport (RFC 2326, section 10.12).
+ */
+final class RTCPReceiver {
+
+    private static final String TAG = RTCPReceiver.class.getSimpleName();
+
+    // RTCP packet types (RFC 3550, section 12.1)
+    private static final int PT_SR = 200;
+    private static final int PT_RR = 201;
+    private static final int PT_SDES = 202;
+    private static final int PT_BYE = 203;
+    private static final int PT_RTPFB = 205;
+
+    // Transport layer feedback message types
+    private static final int FMT_NACK = 1;
+
+    // SDES item types
+    private static final int SDES_END = 0;
+    private static final int SDES_CNAME = 1;
+
+    private final RTPSource mSource;                // The source of the stream
+    private final int mSSRC;                        // The SSRC of the stream
+    private final int mClockRate;                   // The stream clock rate in Hz
+    private final NackHandler mNackHandler;         // The handler of the NACKs, null if not supported
+    private int mReports;                           // Number of reports received
+    private int mFractionLost;                      // Last fraction lost, in 1/256
+    private int mCumulativeLost;                    // Cumulative number of packets lost
+    private long mJitter;                           // Interarrival jitter in timestamp units
+    private long mRTT;                              // Round trip time in 1/65536 s, -1 if unknown
+    private String mCName;                          // The client canonical name, null if unknown
+    private int mNacks;                             // Number of lost packets notified by NACK
+    private boolean mClientKnown;                   // Whether the client SSRC has been learned
+    private int mClientSSRC;                        // The client SSRC, if known
+
+    /**
+     * Defines the interface that the sender implements to retransmit the lost packets.
+     */
+    interface NackHandler {
+        /**
+         * Notifies a packet reported lost by the client.<br>
+         * Called on the receiving thread.
+         *
+         * @param seq the 16-bit sequence number of the lost packet
+         */
+        void onNack(int seq);
+    }
+
+    /**
+     * Creates a new RTCPReceiver object.
+     *
+     * @param source    the source of the stream
+     * @param ssrc      the SSRC of the stream
+     * @param clockRate the stream clock rate in Hz
+     * @param handler   the handler of the NACKs, null if the retransmissions are not supported
+     */
+    RTCPReceiver(@NotNull RTPSource source, int ssrc, int clockRate,
+                 @Nullable NackHandler handler) {
+        mSource = source;
+        mSSRC = ssrc;
+        mClockRate = clockRate;
+        mNackHandler = handler;
+        mRTT = -1;
+    }
+
+    /**
+     * Parses an RTCP compound packet.<br>
+     * On BYE from the client SSRC the RTSP session is torn down.
+     *
+     * @param data     the buffer that holds the packet
+     * @param offset   the offset of the packet in the buffer
+     * @param length   the packet length
+     * @param verified whether the packet comes from the client address (or its RTSP
+     *                 connection), false if it has been routed by the host address only
+     */
+    void onPacket(byte[] data, int offset, int length, boolean verified) {
+        boolean bye = false;
+        int end = offset + length;
+        synchronized (this) {
+            // The first packet starts with the sender SSRC (the first chunk or SSRC
+            // for SDES and BYE), it has to be the client one
+            if (end - offset < 8) {
+                Log.w(TAG, "truncated RTCP packet, dropped");
+                return;
+            }
+            int sender = readInt(data, offset + 4);
+            if (!mClientKnown) {
+                if (!verified)
+                    return;
+                mClientKnown = true;
+                mClientSSRC = sender;
+            } else if (sender != mClientSSRC) {
+                Log.v(TAG, "RTCP packet from another SSRC, dropped");
+                return;
+            }
+            while (end - offset >= 4) {
+                if (((data[offset] & 0xFF) >> 6) != 2) {
+                    Log.w(TAG, "invalid RTCP version, packet dropped");
+                    return;
+                }
+                int count = data[offset] & 0x1F;
+                int type = data[offset + 1] & 0xFF;
+                int size = (((data[offset + 2] & 0xFF) << 8 | (data[offset + 3] & 0xFF)) + 1) * 4;
+                if (size > end - offset) {
+                    Log.w(TAG, "truncated RTCP packet, dropped");
+                    return;
+                }
+                switch (type) {
+                    case PT_SR:
+                        parseReports(data, offset + 28, count, offset + size);
+                        break;
+                    case PT_RR:
+                        parseReports(data, offset + 8, count, offset + size);
+                        break;
+                    case PT_SDES:
+                        parseSDES(data, offset + 4, count, offset + size);
+                        break;
+                    case PT_BYE:
+                        // Never trust a BYE that may come from another client of the host
+                        if (verified && parseBYE(data, offset + 4, count, offset + size))
+                            bye = true;
+                        break;
+                    case PT_RTPFB:
+                        if (count == FMT_NACK)
+                            parseNACK(data, offset + 8, offset + size);
+                        break;
+                }
+                offset += size;
+            }
+        }
+        if (bye) {
+            Log.d(TAG, "BYE received, tearing down the session");
+            mSource.teardownRTP();
+        }
+    }
+
+    /**
+     * Parses the report blocks, keeping the ones about the stream SSRC.
+     */
+    private void parseReports(byte[] data, int offset, int count, int end) {
+        for (int i = 0; i < count && offset + 24 <= end; i++, offset += 24) {
+            if (readInt(data, offset) != mSSRC)
+                continue;
+            mReports++;
+            mFractionLost = data[offset + 4] & 0xFF;
+            // 24-bit signed, it may be negative because of the duplicates
+            mCumulativeLost = (readInt(data, offset + 4) << 8) >> 8;
+            mJitter = readInt(data, offset + 12) & 0xFFFFFFFFL;
+            long lsr = readInt(data, offset + 16) & 0xFFFFFFFFL;
+            long dlsr = readInt(data, offset + 20) & 0xFFFFFFFFL;
+            if (lsr != 0) {
+                // Middle 32 bits of the NTP timestamp, in 1/65536 s
+                long now = (TimeStamp.getNTPTimeStamp() >>> 16) & 0xFFFFFFFFL;
+                long rtt = (now - lsr - dlsr) & 0xFFFFFFFFL;
+                // A negative RTT wraps to a huge value, due to the clock resolution
+                mRTT = rtt < 0x80000000L ? rtt : 0;
+            }
+        }
+    }
+
+    /**
+     * Parses the SSRCs of a BYE packet.
+     *
+     * @return true if the client SSRC is leaving
+     */
+    private boolean parseBYE(byte[] data, int offset, int count, int end) {
+        for (int i = 0; i < count && offset + 4 <= end; i++, offset += 4) {
+            if (readInt(data, offset) == mClientSSRC)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Parses the generic NACK feedback about the stream SSRC.<br>
+     * Each entry notifies a lost packet (PID) and a bitmask of the 16 following ones (BLP).
+     */
+    private void parseNACK(byte[] data, int offset, int end) {
+        if (offset + 4 > end || readInt(data, offset) != mSSRC)
+            return;
+        for (offset += 4; offset + 4 <= end; offset += 4) {
+            int pid = (data[offset] & 0xFF) << 8 | (data[offset + 1] & 0xFF);
+            int blp = (data[offset + 2] & 0xFF) << 8 | (data[offset + 3] & 0xFF);
+            nack(pid);
+            for (int i = 0; i < 16; i++) {
+                if ((blp & (1 << i)) != 0)
+                    nack(pid + i + 1);
+            }
+        }
+    }
+
+    /**
+     * Notifies a lost packet to the handler.
+     */
+    private void nack(int seq) {
+        mNacks++;
+        if (mNackHandler != null)
+            mNackHandler.onNack(seq & 0xFFFF);
+    }
+
+    /**
+     * Parses the SDES chunks, looking for the CNAME.
+     */
+    private void parseSDES(byte[] data, int offset, int count, int end) {
+        int base = offset;
+        for (int i = 0; i < count && offset + 4 <= end; i++) {
+            offset += 4;    // SSRC/CSRC
+            while (offset < end && (data[offset] & 0xFF) != SDES_END) {
+                if (offset + 2 > end)
+                    return;
+                int type = data[offset] & 0xFF;
+                int size = data[offset + 1] & 0xFF;
+                if (offset + 2 + size > end)
+                    return;
+                if (type == SDES_CNAME && mCName == null)
+                    mCName = new String(data, offset + 2, size);
+                offset += 2 + size;
+            }
+            // Skip the terminator and the padding up to the next 32-bit boundary
+            offset = base + ((offset - base + 4) & ~3);
+        }
+    }
+
+    /**
+     * Reads a big endian 32-bit integer.
+     */
+    private static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xFF) << 24 | (data[offset + 1] & 0xFF) << 16 |
+                (data[offset + 2] & 0xFF) << 8 | (data[offset + 3] & 0xFF);
+    }
+
+    /**
+     * @return the number of reports received
+     */
+    synchronized int getReports() {
+        return mReports;
+    }
+
+    /**
+     * @return the fraction of packets lost since the previous report, in %
+     */
+    synchronized double getFractionLost() {
+        return mFractionLost * 100 / 256.0;
+    }
+
+    /**
+     * @return the cumulative number of packets lost
+     */
+    synchronized int getCumulativeLost() {
+        return mCumulativeLost;
+    }
+
+    /**
+     * @return the interarrival jitter in ms
+     */
+    synchronized double getJitter() {
+        return mClockRate > 0 ? mJitter * 1000.0 / mClockRate : 0;
+    }
+
+    /**
+     * @return the round trip time in ms, -1 if unknown
+     */
+    synchronized double getRTT() {
+        return mRTT >= 0 ? mRTT * 1000.0 / 65536 : -1;
+    }
+
+    /**
+     * @return the number of lost packets notified by NACK
+     */
+    synchronized int getNacks() {
+        return mNacks;
+    }
+
+    /**
+     * @return the client canonical name, null if unknown
+     */
+    @Nullable
+    synchronized String getCName() {
+        return mCName;
+    }
+}
@@ -46,28 +46,30 @@ public abstract class RTPAudioPacketizer implements Closeable {
     protected final int CLOSE_TIMEOUT = 1000;       // Close timeout in ms
     protected final int RTCP_INTERVAL = 2500;       // RTCP interval in ms
 
-    protected final StreamConnection mConnection;   // The connection that owns the packetizer
+    protected final RTPSource mSource;              // The source of the media
 
     private final int mPacketSize;                  // Maximum RTP packet size
     private final int mClockRate;                   // Clock rate in Hz
     private final int mSSRC;                        // The Synchronization source (SSRC)
+    private final RTCPReceiver mReceiver;           // Receives the client reports
     private int mSeq;                               // First packet sequence number
     private Thread mStreamThread;                   // The streaming thread
 
     /**
      * Creates a new RTPAudioPacketizer object
      *
-     * @param connection the StreamConnection that owns the packetizer
+     * @param source     the source of the media, e.g. the StreamConnection of the session
      * @param clock      the clock rate in Hz
      * @param packetSize maximum RTP packets size
      * @param seq        the sequence number of the first packet
      */
-    public RTPAudioPacketizer(@NotNull StreamConnection connection, int clock, int packetSize, int seq) {
-        mConnection = connection;
+    public RTPAudioPacketizer(@NotNull RTPSource source, int clock, int packetSize, int seq) {
+        mSource = source;
         mClockRate = clock;
         mPacketSize = packetSize;
         mSSRC = new Random().nextInt();
         mSeq = seq;
+        mReceiver = new RTCPReceiver(source, mSSRC, clock, null);
     }
 
     /**
@@ -132,6 +134,13 @@ public abstract class RTPAudioPacketizer implements Closeable {
         return mSSRC;
     }
 
+    /**
+     * @return the receiver of the RTCP packets sent by the client
+     */
+    RTCPReceiver getReceiver() {
+        return mReceiver;
+    }
+
     /**
      * Streams the slices using RTP protocol.
      */
@@ -171,8 +180,8 @@ public abstract class RTPAudioPacketizer implements Closeable {
 
         // Streaming loop
         Log.d(TAG, "packetizer started");
-        mConnection.clearAudio();
-        mConnection.notifyStreamStarted(StreamConnection.TYPE_AAC, id);
+        mSource.clearAudio();
+        mSource.notifyStreamStarted(StreamConnection.TYPE_AAC, id);
         try {
             while (!Thread.currentThread().isInterrupted()) {
                 // Handle RTCP
@@ -206,7 +215,7 @@ public abstract class RTPAudioPacketizer implements Closeable {
                     rtcpSend(rtcp, rtcp.length);
                 }
                 // Get audio data from the queue
-                AudioData audio = mConnection.popAudio();
+                AudioData audio = mSource.popAudio();
                 if (audio == null)
                     return;
                 data = audio.getData();
@@ -230,6 +239,8 @@ public abstract class RTPAudioPacketizer implements Closeable {
                 }
                 packets++;
                 octets += data.length;
+                StreamMetrics.get().rtpSent(StreamMetrics.STREAM_AAC, 1, data.length);
+                StreamMetrics.get().frameOut(StreamMetrics.STREAM_AAC, audio.getTimestamp());
             }
         } catch (InterruptedException e) {
             Log.v(TAG, "stream interrupted");
@@ -239,7 +250,7 @@ public abstract class RTPAudioPacketizer implements Closeable {
             FirebaseCrash.report(e);
             Log.e(TAG, "unexpected exception", e);
         } finally {
-            mConnection.notifyStreamStopped(StreamConnection.TYPE_AAC, id);
+            mSource.notifyStreamStopped(StreamConnection.TYPE_AAC, id);
             Log.d(TAG, "packetizer stopped");
         }
     }
@@ -0,0 +1,153 @@
+/*
+ * This file is part of spyNet Camera, the Android IP camera
+ *
+ * Copyright (C) 2016-2017 Paolo Dematteis
+ *
+ * spyNet Camera is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * spyNet Camera is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Paolo Dematteis - spynet314@gmail.com
+ */
+
+package com.spynet.camera.network;
+
+/**
+ * Defines the ring of the RTP packets recently sent by a video session, indexed by
+ * sequence number, to answer the generic NACKs (RFC 4585) with retransmissions.<br>
+ * Only the references to the payloads are kept: the payloads are shared by all the sessions
+ * through the {@link RTPSlice}, each session only stores what makes its own header.<br>
+ * The ring is written and read by the streaming thread; the NACKs may be queued by any
+ * thread.
+ */
+final class RTPHistory {
+
+    // Max number of lost packets waiting to be retransmitted
+    private static final int MAX_REQUESTS = 64;
+
+    private final int mMask;                            // Ring index mask, the capacity is a power of 2
+    private final int[] mSeqs;                          // The sequence number of each packet, -1 if empty
+    private final int[] mTimestamps;                    // The RTP timestamp of each packet
+    private final boolean[] mMarkers;                   // The marker bit of each packet
+    private final RTPSlice.Payloads[] mPayloads;        // The payloads holding each packet
+    private final int[] mIndexes;                       // The index of each packet in its payloads
+    private final long[] mTimes;                        // The time each packet has been sent in us
+    private final int[] mRequests;                      // The sequence numbers requested by the client
+    private int mRequestStart;                          // First request in the queue
+    private int mRequestCount;                          // Number of requests in the queue
+
+    /**
+     * Creates a new RTPHistory object.
+     *
+     * @param capacity the number of packets kept, rounded up to a power of 2
+     */
+    RTPHistory(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mMask = size - 1;
+        mSeqs = new int[size];
+        mTimestamps = new int[size];
+        mMarkers = new boolean[size];
+        mPayloads = new RTPSlice.Payloads[size];
+        mIndexes = new int[size];
+        mTimes = new long[size];
+        mRequests = new int[MAX_REQUESTS];
+        for (int i = 0; i < size; i++)
+            mSeqs[i] = -1;
+    }
+
+    /**
+     * Records a packet that has been sent.
+     *
+     * @param seq       the 16-bit sequence number
+     * @param timestamp the RTP timestamp
+     * @param marker    the marker bit
+     * @param payloads  the payloads holding the packet
+     * @param index     the index of the packet in the payloads
+     * @param time      the current time in us
+     */
+    void add(int seq, int timestamp, boolean marker, RTPSlice.Payloads payloads, int index, long time) {
+        int i = seq & mMask;
+        mSeqs[i] = seq & 0xFFFF;
+        mTimestamps[i] = timestamp;
+        mMarkers[i] = marker;
+        mPayloads[i] = payloads;
+        mIndexes[i] = index;
+        mTimes[i] = time;
+    }
+
+    /**
+     * Finds a packet.
+     *
+     * @param seq     the 16-bit sequence number
+     * @param minTime the min time the packet has been sent in us, older packets are stale
+     * @return the ring index of the packet, -1 if not available anymore
+     */
+    int find(int seq, long minTime) {
+        int i = seq & mMask;
+        return mSeqs[i] == (seq & 0xFFFF) && mTimes[i] >= minTime ? i : -1;
+    }
+
+    /**
+     * @return the RTP timestamp of the packet at the ring index
+     */
+    int getTimestamp(int i) {
+        return mTimestamps[i];
+    }
+
+    /**
+     * @return the marker bit of the packet at the ring index
+     */
+    boolean getMarker(int i) {
+        return mMarkers[i];
+    }
+
+    /**
+     * @return the payloads holding the packet at the ring index
+     */
+    RTPSlice.Payloads getPayloads(int i) {
+        return mPayloads[i];
+    }
+
+    /**
+     * @return the index in its payloads of the packet at the ring index
+     */
+    int getIndex(int i) {
+        return mIndexes[i];
+    }
+
+    /**
+     * Queues a retransmission request, dropped if the queue is full.
+     *
+     * @param seq the 16-bit sequence number of the lost packet
+     * @return true if the request has been queued
+     */
+    synchronized boolean request(int seq) {
+        if (mRequestCount == mRequests.length)
+            return false;
+        mRequests[(mRequestStart + mRequestCount++) % mRequests.length] = seq & 0xFFFF;
+        return true;
+    }
+
+    /**
+     * Takes the next retransmission request.
+     *
+     * @return the 16-bit sequence number, -1 if none
+     */
+    synchronized int poll() {
+        if (mRequestCount == 0)
+            return -1;
+        int seq = mRequests[mRequestStart];
+        mRequestStart = (mRequestStart + 1) % mRequests.length;
+        mRequestCount--;
+        return seq;
+    }
+}
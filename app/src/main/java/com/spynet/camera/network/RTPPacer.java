@@ -0,0 +1,189 @@
+/*
+ * This file is part of spyNet Camera, the Android IP camera
+ *
+ * Copyright (C) 2016-2017 Paolo Dematteis
+ *
+ * spyNet Camera is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * spyNet Camera is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Paolo Dematteis - spynet314@gmail.com
+ */
+
+package com.spynet.camera.network;
+
+import com.spynet.camera.common.TimeStamp;
+
+/**
+ * Defines the token bucket that paces the RTP packets of a session.<br>
+ * The packets of a picture are spread over a fraction of the frame interval, instead of
+ * being sent back-to-back: a large IDR would otherwise overflow the Wi-Fi and access point
+ * buffers, and be lost exactly when the client needs it. The first packets of a picture
+ * are sent at once, up to the bucket depth, the next ones wait for their tokens.<br>
+ * Not thread-safe, to be used by the streaming thread only.
+ */
+final class RTPPacer {
+
+    // Frame interval assumed until it is measured, in us
+    private static final long DEFAULT_INTERVAL = 66666;
+    // Range of the measured frame interval in us
+    private static final long MIN_INTERVAL = 10000;
+    private static final long MAX_INTERVAL = 200000;
+    // Min time to sleep in us, shorter waits are carried over to the next packets
+    private static final long MIN_SLEEP = 1000;
+
+    // The clock used out of the tests
+    private static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long now() {
+            return TimeStamp.getTimeStamp();
+        }
+
+        @Override
+        public void sleep(long us) throws InterruptedException {
+            Thread.sleep(us / 1000, (int) (us % 1000) * 1000);
+        }
+    };
+
+    private final Clock mClock;                     // The time source
+    private final double mFraction;                 // Fraction of the frame interval used to send a picture
+    private final int mBurst;                       // Bucket depth in bytes
+    private long mInterval;                         // Measured frame interval in us
+    private long mFrameTimestamp;                   // Timestamp of the current picture in us
+    private long mFrameBytes;                       // Bytes of the current picture
+    private double mRate;                           // Token rate in bytes per us
+    private double mTokens;                         // Available tokens in bytes, negative if in debt
+    private long mLastRefill;                       // Time of the last refill in us
+    private long mQueuedBytes;                      // Bytes passed through the pacer
+    private long mPacedBytes;                       // Bytes that had to wait for their tokens
+
+    /**
+     * Defines the time source of the pacer, so that it can be tested without waiting.
+     */
+    interface Clock {
+        /**
+         * @return the current time in us
+         */
+        long now();
+
+        /**
+         * Waits for the specified time.
+         *
+         * @param us the time to wait in us
+         * @throws InterruptedException if interrupted while waiting
+         */
+        void sleep(long us) throws InterruptedException;
+    }
+
+    /**
+     * Creates a new RTPPacer object.
+     *
+     * @param fraction the fraction of the frame interval (0-1) over which the packets of a
+     *                 picture are spread, 0 not to pace
+     * @param burst    the bytes that can be sent at once, before pacing
+     */
+    RTPPacer(double fraction, int burst) {
+        this(fraction, burst, SYSTEM_CLOCK);
+    }
+
+    /**
+     * Creates a new RTPPacer object that uses the specified clock.
+     *
+     * @param fraction the fraction of the frame interval (0-1) over which the packets of a
+     *                 picture are spread, 0 not to pace
+     * @param burst    the bytes that can be sent at once, before pacing
+     * @param clock    the time source
+     */
+    RTPPacer(double fraction, int burst, Clock clock) {
+        mClock = clock;
+        mFraction = fraction;
+        mBurst = burst;
+        mInterval = DEFAULT_INTERVAL;
+        mFrameTimestamp = -1;
+        mTokens = burst;
+        mLastRefill = mClock.now();
+    }
+
+    /**
+     * Notifies a slice that is about to be sent, to adapt the rate to its picture.<br>
+     * Slices of the same picture share the timestamp.
+     *
+     * @param timestamp the slice timestamp in us
+     * @param bytes     the bytes of the slice, headers included
+     */
+    void onSlice(long timestamp, int bytes) {
+        if (mFraction <= 0)
+            return;
+        refill(mClock.now());
+        if (timestamp != mFrameTimestamp) {
+            if (mFrameTimestamp >= 0 && timestamp > mFrameTimestamp) {
+                long interval = Math.max(MIN_INTERVAL, Math.min(MAX_INTERVAL, timestamp - mFrameTimestamp));
+                mInterval = (mInterval * 7 + interval) / 8;
+            }
+            mFrameTimestamp = timestamp;
+            mFrameBytes = 0;
+        }
+        mFrameBytes += bytes;
+        mRate = mFrameBytes / (mFraction * mInterval);
+    }
+
+    /**
+     * Waits until a packet can be sent.
+     *
+     * @param bytes the packet size, headers included
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void pace(int bytes) throws InterruptedException {
+        mQueuedBytes += bytes;
+        if (mFraction <= 0 || mRate <= 0)
+            return;
+        refill(mClock.now());
+        if (mTokens < 0) {
+            mPacedBytes += bytes;
+            long wait = (long) (-mTokens / mRate);
+            if (wait >= MIN_SLEEP) {
+                mClock.sleep(wait);
+                refill(mClock.now());
+            }
+        }
+        mTokens -= bytes;
+    }
+
+    /**
+     * @return true if the next packet may have to wait for its tokens
+     */
+    boolean isLimited() {
+        return mFraction > 0 && mRate > 0 && mTokens < 0;
+    }
+
+    /**
+     * Adds the tokens accumulated since the last refill.
+     */
+    private void refill(long now) {
+        mTokens = Math.min(mBurst, mTokens + (now - mLastRefill) * mRate);
+        mLastRefill = now;
+    }
+
+    /**
+     * @return the bytes passed through the pacer
+     */
+    long getQueuedBytes() {
+        return mQueuedBytes;
+    }
+
+    /**
+     * @return the bytes that had to wait for their tokens
+     */
+    long getPacedBytes() {
+        return mPacedBytes;
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * This file is part of spyNet Camera, the Android IP camera
+ *
+ * Copyright (C) 2016-2017 Paolo Dematteis
+ *
+ * spyNet Camera is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * spyNet Camera is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Paolo Dematteis - spynet314@gmail.com
+ */
+
+package com.spynet.camera.network;
+
+import com.spynet.camera.media.VideoFrame;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Defines an AVC slice shared by all the RTP video packetizers.<br>
+ * The slice is split into RTP payloads (RFC 6184) only once for each packet size, the
+ * payloads are then sent by every session that only adds its own RTP header.
+ */
+public final class RTPSlice {
+
+    private final VideoFrame mFrame;                    // The slice
+    private final Payloads[] mCache;                    // The payloads for the packet sizes in use
+
+    /**
+     * Defines the RTP payloads of a slice for a given packet size.<br>
+     * The payloads are read-only, they are shared among the sending threads.
+     */
+    public static final class Payloads {
+
+        private final int mPacketSize;                  // Maximum RTP packet size
+        private final byte[] mData;                     // The buffer that holds the payloads
+        private final int[] mOffsets;                   // The offset of each payload in the buffer
+        private final int[] mLengths;                   // The length of each payload
+
+        /**
+         * Creates a new Payloads object.
+         */
+        private Payloads(int packetSize, byte[] data, int[] offsets, int[] lengths) {
+            mPacketSize = packetSize;
+            mData = data;
+            mOffsets = offsets;
+            mLengths = lengths;
+        }
+
+        /**
+         * @return the number of payloads, i.e. the number of RTP packets to send
+         */
+        public int getCount() {
+            return mOffsets.length;
+        }
+
+        /**
+         * @return the buffer that holds the payloads
+         */
+        public byte[] getData() {
+            return mData;
+        }
+
+        /**
+         * @param index the payload index
+         * @return the offset of the payload in the buffer
+         */
+        public int getOffset(int index) {
+            return mOffsets[index];
+        }
+
+        /**
+         * @param index the payload index
+         * @return the length of the payload
+         */
+        public int getLength(int index) {
+            return mLengths[index];
+        }
+    }
+
+    /**
+     * Creates a new RTPSlice object.
+     *
+     * @param frame the slice, it is supposed to start with 0x00 0x00 0x00 0x01
+     */
+    public RTPSlice(@NotNull VideoFrame frame) {
+        mFrame = frame;
+        mCache = new Payloads[2];
+    }
+
+    /**
+     * @return the slice
+     */
+    public VideoFrame getFrame() {
+        return mFrame;
+    }
+
+    /**
+     * @return the NAL unit type, -1 if the slice is not valid
+     */
+    public int getNALType() {
+        byte[] data = mFrame.getData();
+        return data.length < 5 ? -1 : data[4] & 0x1F;
+    }
+
+    /**
+     * @return true if the slice is an IDR picture slice
+     */
+    public boolean isIDR() {
+        return getNALType() == 5;
+    }
+
+    /**
+     * @return true if the slice may be referenced by other slices (nal_ref_idc != 0), so that
+     * dropping it would corrupt the following pictures
+     */
+    public boolean isReference() {
+        byte[] data = mFrame.getData();
+        return data.length < 5 || (data[4] & 0x60) != 0;
+    }
+
+    /**
+     * Returns the RTP payloads for the specified packet size, splitting the slice if it has
+     * not been done yet.
+     *
+     * @param packetSize the maximum RTP packet size, including the 12 bytes header
+     * @return the payloads
+     */
+    public synchronized Payloads getPayloads(int packetSize) {
+        int free = -1;
+        for (int i = 0; i < mCache.length; i++) {
+            if (mCache[i] == null) {
+                if (free < 0)
+                    free = i;
+            } else if (mCache[i].mPacketSize == packetSize) {
+                return mCache[i];
+            }
+        }
+        Payloads payloads = split(packetSize);
+        if (free >= 0)
+            mCache[free] = payloads;
+        return payloads;
+    }
+
+    /**
+     * Splits the slice into single NAL unit or FU-A payloads.
+     */
+    private Payloads split(int packetSize) {
+
+        byte[] slice = mFrame.getData();
+
+        // Single NAL Unit Packet, the slice is sent as is
+        if (slice.length - 4 + 12 <= packetSize)
+            return new Payloads(packetSize, slice, new int[]{4}, new int[]{slice.length - 4});
+
+        // FU-A fragmentation
+        int chunk = packetSize - 14;
+        int count = (slice.length - 5 + chunk - 1) / chunk;
+        byte[] data = new byte[slice.length - 5 + 2 * count];
+        int[] offsets = new int[count];
+        int[] lengths = new int[count];
+        byte FUIndicator = (byte) ((slice[4] & 0xE0) + 28); // F|NRI|Type=28
+        int offset = 5, position = 0;
+        for (int i = 0; i < count; i++) {
+            int size = Math.min(slice.length - offset, chunk);
+            byte FUHeader = (byte) (slice[4] & 0x1F); // S=0|E=0|R=0|Type
+            if (i == 0)
+                FUHeader |= 0x80; // first fragment, S=1
+            if (i == count - 1)
+                FUHeader |= 0x40; // Last fragment, E=1
+            offsets[i] = position;
+            lengths[i] = size + 2;
+            data[position++] = FUIndicator;
+            data[position++] = FUHeader;
+            System.arraycopy(slice, offset, data, position, size);
+            position += size;
+            offset += size;
+        }
+        return new Payloads(packetSize, data, offsets, lengths);
+    }
+}
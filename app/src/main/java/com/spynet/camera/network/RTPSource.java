@@ -0,0 +1,110 @@
+/*
+ * This file is part of spyNet Camera, the Android IP camera
+ *
+ * Copyright (C) 2016-2017 Paolo Dematteis
+ *
+ * spyNet Camera is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * spyNet Camera is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Paolo Dematteis - spynet314@gmail.com
+ */
+
+
+package com.spynet.camera.network;
+
+import com.spynet.camera.media.AudioData;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+
+/**
+ * Defines the source of the media sent by the RTP packetizers.<br>
+ * It holds the queues fed by the server and receives the notifications of the stream.
+ * The StreamConnection is the source of its unicast sessions, the MulticastGroup is the
+ * source of the sender shared by the multicast sessions.
+ */
+public interface RTPSource {
+
+    /**
+     * Removes all slices from the queue.
+     */
+    void clearSlices();
+
+    /**
+     * Pops a compressed slice from the queue.
+     *
+     * @return the slice, null on error or if the timeout expires
+     * @throws InterruptedException if interrupted while waiting
+     */
+    RTPSlice popSlice() throws InterruptedException;
+
+    /**
+     * Gets the next compressed slice of the queue, without removing it.
+     *
+     * @return the slice, null if the queue is empty
+     */
+    @Nullable
+    RTPSlice peekSlice();
+
+    /**
+     * Gets and removes the slices to be sent before the live ones.
+     *
+     * @return the slices of the current GOP, null if none
+     */
+    @Nullable
+    List<RTPSlice> takePreroll();
+
+    /**
+     * Removes all audio buffers from the queue.
+     */
+    void clearAudio();
+
+    /**
+     * Pops an audio buffer from the queue.
+     *
+     * @return the audio data buffer, null on error or if the timeout expires
+     * @throws InterruptedException if interrupted while waiting
+     */
+    AudioData popAudio() throws InterruptedException;
+
+    /**
+     * Notifies that the stream has started.
+     *
+     * @param type the stream type
+     * @param id   the stream id
+     */
+    void notifyStreamStarted(String type, long id);
+
+    /**
+     * Notifies that the stream has stopped.
+     *
+     * @param type the stream type
+     * @param id   the stream id
+     */
+    void notifyStreamStopped(String type, long id);
+
+    /**
+     * Requests an action to be executed.
+     *
+     * @param action the action that has to be handled
+     * @param params the action parameters
+     */
+    void requestControl(String action, String params);
+
+    /**
+     * Stops the streams, e.g. when the client sends an RTCP BYE.<br>
+     * Called on the receiving thread, it must not wait for the streams to stop.
+     */
+    void teardownRTP();
+}
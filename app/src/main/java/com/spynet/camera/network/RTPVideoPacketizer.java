@@ -26,17 +26,19 @@ import android.util.Log;
 import com.google.firebase.crash.FirebaseCrash;
 import com.spynet.camera.common.TimeStamp;
 import com.spynet.camera.common.Utils;
-import com.spynet.camera.media.VideoFrame;
 
 import org.jetbrains.annotations.NotNull;
 
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.SocketException;
+import java.util.List;
 import java.util.Random;
 
 /**
  * Defines the RTP packetizer to stream AVC video slices.<br>
+ * The slices are split into payloads once by the {@link RTPSlice} shared by all the sessions,
+ * the packetizer only prepares the RTP header of each packet.<br>
  * To be subclassed to implement the transmission protocol.
  */
 public abstract class RTPVideoPacketizer implements Closeable {
@@ -45,29 +47,46 @@ public abstract class RTPVideoPacketizer implements Closeable {
 
     protected final int CLOSE_TIMEOUT = 1000;       // Close timeout in ms
     protected final int RTCP_INTERVAL = 2500;       // RTCP interval in ms
+    protected final int PREROLL_INTERVAL = 1000;    // Interval between replayed pictures in us
+    protected final double PACING_FRACTION = 0.5;   // Fraction of the frame interval used to send a picture
+    protected final int PACING_BURST = 8 * 1400;    // Bytes sent at once before pacing
+    protected final int HISTORY_SIZE = 1024;        // Packets kept for the retransmissions
+    protected final int RETRANSMIT_MAX_AGE = 1000;  // Max age of a retransmitted packet in ms
 
-    protected final StreamConnection mConnection;   // The connection that owns the packetizer
+    protected final RTPSource mSource;              // The source of the media
 
     private final int mPacketSize;                  // Maximum RTP packet size
     private final int mClockRate;                   // Clock rate in Hz
     private final int mSSRC;                        // The Synchronization source (SSRC)
+    private final RTCPReceiver mReceiver;           // Receives the client reports
+    private final RTPHistory mHistory;              // The packets sent recently, to retransmit them
+    private final RTPPacer mPacer;                  // Spreads the packets of a picture over time
     private int mSeq;                               // First packet sequence number
     private Thread mStreamThread;                   // The streaming thread
 
     /**
      * Creates a new RTPVideoPacketizer object
      *
-     * @param connection the StreamConnection that owns the packetizer
+     * @param source     the source of the media, e.g. the StreamConnection of the session
      * @param clock      the clock rate in Hz
      * @param packetSize maximum RTP packets size
      * @param seq        the sequence number of the first packet
      */
-    public RTPVideoPacketizer(@NotNull StreamConnection connection, int clock, int packetSize, int seq) {
-        mConnection = connection;
+    public RTPVideoPacketizer(@NotNull RTPSource source, int clock, int packetSize, int seq) {
+        mSource = source;
         mClockRate = clock;
         mPacketSize = packetSize;
         mSSRC = new Random().nextInt();
         mSeq = seq;
+        mHistory = new RTPHistory(HISTORY_SIZE);
+        mReceiver = new RTCPReceiver(source, mSSRC, clock, new RTCPReceiver.NackHandler() {
+            @Override
+            public void onNack(int seq) {
+                StreamMetrics.get().rtpNack();
+                mHistory.request(seq);
+            }
+        });
+        mPacer = new RTPPacer(PACING_FRACTION, PACING_BURST);
     }
 
     /**
@@ -89,11 +108,14 @@ public abstract class RTPVideoPacketizer implements Closeable {
     /**
      * Sends an RTP packet.
      *
-     * @param data   RTP data to send
-     * @param length number of bytes to send
+     * @param header  the 12 bytes RTP header
+     * @param payload the buffer that holds the RTP payload, it must not be modified
+     * @param offset  the offset of the payload in the buffer
+     * @param length  the payload length
      * @throws IOException if sending the data fails
      */
-    protected abstract void rtpSend(byte[] data, int length) throws IOException;
+    protected abstract void rtpSend(byte[] header, byte[] payload, int offset, int length)
+            throws IOException;
 
     /**
      * Sends an RTCP packet.
@@ -104,6 +126,15 @@ public abstract class RTPVideoPacketizer implements Closeable {
      */
     protected abstract void rtcpSend(byte[] data, int length) throws IOException;
 
+    /**
+     * Writes the RTP packets queued so far, if the transmission protocol coalesces them.<br>
+     * Called at the end of each picture, and before waiting for the pacer.
+     *
+     * @throws IOException if sending the data fails
+     */
+    protected void rtpFlush() throws IOException {
+    }
+
     /**
      * Closes the packetizer.<br>
      * In the case of TCP transmission, the thread may be stuck in sending data that are not
@@ -132,6 +163,13 @@ public abstract class RTPVideoPacketizer implements Closeable {
         return mSSRC;
     }
 
+    /**
+     * @return the receiver of the RTCP packets sent by the client
+     */
+    RTCPReceiver getReceiver() {
+        return mReceiver;
+    }
+
     /**
      * Streams the slices using RTP protocol.
      */
@@ -140,19 +178,21 @@ public abstract class RTPVideoPacketizer implements Closeable {
         final long id = Utils.getUniqueID();
         long ntp, timestamp;
         long lastRTCP = 0;
-        byte[] data, rtp, rtcp;
+        byte[] rtp, rtx, rtcp;
         int packets = 0;
         int octets = 0;
         boolean sync = false;
+        List<RTPSlice> preroll;
 
         // Prepare the RTP packet header
-        rtp = new byte[mPacketSize];
+        rtp = new byte[12];
         rtp[0] = (byte) 0x80;   // V=2, P=0, X=0, CC=0
         rtp[1] = (byte) 96;     // M=0, PT=96
         rtp[8] = (byte) (mSSRC >> 24);
         rtp[9] = (byte) (mSSRC >> 16);
         rtp[10] = (byte) (mSSRC >> 8);
         rtp[11] = (byte) (mSSRC);
+        rtx = rtp.clone();
 
         // Prepare the RTCP packet header
         rtcp = new byte[28];
@@ -167,8 +207,11 @@ public abstract class RTPVideoPacketizer implements Closeable {
 
         // Streaming loop
         Log.d(TAG, "packetizer started");
-        mConnection.clearSlices();
-        mConnection.notifyStreamStarted(StreamConnection.TYPE_H264, id);
+        mSource.clearSlices();
+        mSource.notifyStreamStarted(StreamConnection.TYPE_H264, id);
+        preroll = mSource.takePreroll();
+        if (preroll != null && preroll.isEmpty())
+            preroll = null;
         try {
             while (!Thread.currentThread().isInterrupted()) {
                 // Handle RTCP
@@ -201,36 +244,43 @@ public abstract class RTPVideoPacketizer implements Closeable {
                     // Send RTCP SR message
                     rtcpSend(rtcp, rtcp.length);
                 }
+                // Replay the current GOP, so that the client can start immediately
+                if (preroll != null) {
+                    octets += sendPreroll(rtp, preroll);
+                    rtpFlush();
+                    packets += preroll.size();
+                    preroll = null;
+                    sync = true;
+                    continue;
+                }
                 // Improve client startup
-                if (packets < 15 && packets % 5 == 0) {
-                    mConnection.requestControl("video-sync", "send");
+                if (!sync && packets < 15 && packets % 5 == 0) {
+                    mSource.requestControl("video-sync", "send");
                 }
+                // Answer the NACKs, before the new slices
+                if (retransmit(rtx) > 0)
+                    rtpFlush();
                 // Get a slice from the queue
-                VideoFrame frame = mConnection.popSlice();
-                if (frame == null)
+                RTPSlice slice = mSource.popSlice();
+                if (slice == null)
                     return;
-                data = frame.getData();
-                if (data.length < 5)
+                int type = slice.getNALType();
+                if (type < 0)
                     continue;
                 // IDR synchronization
                 if (!sync) {
-                    if ((data[4] & 0x1F) != 5)
+                    if (type != 5)
                         continue;
                     sync = true;
                 }
-                // Set the timestamp
-                timestamp = frame.getTimestamp() * mClockRate / 1000000L;
-                rtp[4] = (byte) (timestamp >> 24);
-                rtp[5] = (byte) (timestamp >> 16);
-                rtp[6] = (byte) (timestamp >> 8);
-                rtp[7] = (byte) (timestamp);
-                // Send the NAL
-                if (data.length - 4 + 12 <= mPacketSize)
-                    sendNAL(rtp, data);
-                else
-                    sendFragmentedNAL(rtp, data);
+                // Send the payloads
+                octets += sendSlice(rtp, slice, slice.getFrame().getTimestamp(), true);
+                // Coalesce the slices of the same picture that are already queued
+                RTPSlice next = mSource.peekSlice();
+                if (next == null || next.getFrame().getTimestamp() != slice.getFrame().getTimestamp())
+                    rtpFlush();
+                StreamMetrics.get().frameOut(StreamMetrics.STREAM_H264, slice.getFrame().getTimestamp());
                 packets++;
-                octets += data.length - 4;
             }
         } catch (InterruptedException e) {
             Log.v(TAG, "stream interrupted");
@@ -240,59 +290,133 @@ public abstract class RTPVideoPacketizer implements Closeable {
             FirebaseCrash.report(e);
             Log.e(TAG, "unexpected exception", e);
         } finally {
-            mConnection.notifyStreamStopped(StreamConnection.TYPE_H264, id);
+            mSource.notifyStreamStopped(StreamConnection.TYPE_H264, id);
             Log.d(TAG, "packetizer stopped");
         }
     }
 
     /**
-     * Sends an single NAL Unit Packet.
-     * The slice is supposed to start with 0x00 0x00 0x00 0x01.
+     * Replays the slices of a GOP.<br>
+     * The timestamps are rebased so that the pictures are close to each other and the last one
+     * keeps its original timestamp: the client decodes the whole GOP at once and then
+     * continues with the live slices.
+     *
+     * @return the number of payload octets sent
      */
-    private void sendNAL(
-            byte[] rtp, byte[] slice)
-            throws IOException {
-        rtp[1] |= 0x80; // M=1
-        rtp[2] = (byte) (mSeq >> 8);
-        rtp[3] = (byte) (mSeq);
-        System.arraycopy(slice, 4, rtp, 12, slice.length - 4);
-        rtpSend(rtp, slice.length - 4 + 12);
-        ++mSeq;
+    private int sendPreroll(byte[] rtp, List<RTPSlice> slices)
+            throws IOException, InterruptedException {
+        int octets = 0;
+        int pictures = 0;
+        long last = -1;
+        // Count the pictures, slices of the same picture share the timestamp
+        for (RTPSlice slice : slices) {
+            if (slice.getFrame().getTimestamp() != last) {
+                last = slice.getFrame().getTimestamp();
+                pictures++;
+            }
+        }
+        last = -1;
+        for (RTPSlice slice : slices) {
+            if (slice.getFrame().getTimestamp() != last) {
+                last = slice.getFrame().getTimestamp();
+                pictures--;
+            }
+            long timestamp = slices.get(slices.size() - 1).getFrame().getTimestamp() -
+                    pictures * PREROLL_INTERVAL;
+            octets += sendSlice(rtp, slice, timestamp, false);
+            StreamMetrics.get().frameOut(StreamMetrics.STREAM_H264, -1);
+        }
+        Log.v(TAG, slices.size() + " slices replayed");
+        return octets;
     }
 
     /**
-     * Sends a FU-A fragmented NAL.
-     * The slice is supposed to start with 0x00 0x00 0x00 0x01.
+     * Retransmits the packets reported lost by the client, if still available and recent
+     * enough to be useful. The packets are sent again as they were, same sequence number
+     * and timestamp, without pacing.
+     *
+     * @param rtp the 12 bytes RTP header, reserved for the retransmissions
+     * @return the number of packets retransmitted
      */
-    private void sendFragmentedNAL(
-            byte[] rtp, byte[] slice)
+    private int retransmit(byte[] rtp)
             throws IOException {
+        int seq, packets = 0;
+        long minTime = TimeStamp.getTimeStamp() - RETRANSMIT_MAX_AGE * 1000L;
+        while ((seq = mHistory.poll()) >= 0) {
+            int i = mHistory.find(seq, minTime);
+            if (i < 0)
+                continue;
+            int timestamp = mHistory.getTimestamp(i);
+            if (mHistory.getMarker(i))
+                rtp[1] |= 0x80; // M=1
+            else
+                rtp[1] &= 0x7F; // M=0
+            rtp[2] = (byte) (seq >> 8);
+            rtp[3] = (byte) (seq);
+            rtp[4] = (byte) (timestamp >> 24);
+            rtp[5] = (byte) (timestamp >> 16);
+            rtp[6] = (byte) (timestamp >> 8);
+            rtp[7] = (byte) (timestamp);
+            RTPSlice.Payloads payloads = mHistory.getPayloads(i);
+            int index = mHistory.getIndex(i);
+            rtpSend(rtp, payloads.getData(), payloads.getOffset(index), payloads.getLength(index));
+            packets++;
+        }
+        if (packets > 0)
+            StreamMetrics.get().rtpRetransmitted(packets);
+        return packets;
+    }
 
-        boolean first = true;
-        int size, offset = 5;
-        byte FUIndicator, FUHeader;
-        FUIndicator = (byte) ((slice[4] & 0xE0) + 28); // F|NRI|Type=28
-        rtp[12] = FUIndicator;
-        while (offset < slice.length) {
+    /**
+     * Sends the payloads of a slice, setting the marker bit on the last packet.
+     *
+     * @param timestamp the slice timestamp in us
+     * @param paced     whether the packets are spread over the frame interval; the replayed
+     *                  slices are not paced, their timestamps do not reflect the frame rate
+     * @return the number of payload octets sent
+     */
+    private int sendSlice(byte[] rtp, RTPSlice slice, long timestamp, boolean paced)
+            throws IOException, InterruptedException {
+        RTPSlice.Payloads payloads = slice.getPayloads(mPacketSize);
+        int count = payloads.getCount();
+        long queued = mPacer.getQueuedBytes();
+        long delayed = mPacer.getPacedBytes();
+        if (paced) {
+            int bytes = 0;
+            for (int i = 0; i < count; i++)
+                bytes += 12 + payloads.getLength(i);
+            mPacer.onSlice(timestamp, bytes);
+        }
+        timestamp = timestamp * mClockRate / 1000000L;
+        rtp[4] = (byte) (timestamp >> 24);
+        rtp[5] = (byte) (timestamp >> 16);
+        rtp[6] = (byte) (timestamp >> 8);
+        rtp[7] = (byte) (timestamp);
+        int octets = 0;
+        long now = TimeStamp.getTimeStamp();
+        for (int i = 0; i < count; i++) {
+            if (i == count - 1)
+                rtp[1] |= 0x80; // M=1
+            else
+                rtp[1] &= 0x7F; // M=0
             rtp[2] = (byte) (mSeq >> 8);
             rtp[3] = (byte) (mSeq);
-            size = Math.min(slice.length - offset, rtp.length - 14);
-            System.arraycopy(slice, offset, rtp, 14, size);
-            offset += size;
-            FUHeader = (byte) (slice[4] & 0x1F); // S=0|E=0|R=0|Type
-            if (offset < slice.length) {
-                rtp[1] &= 0x7F; // M=0
-                if (first) {
-                    FUHeader |= 0x80; // first fragment, S=1
-                    first = false;
-                }
-            } else {
-                rtp[1] |= 0x80; // M=1
-                FUHeader |= 0x40; // Last fragment, E=1
+            if (paced) {
+                // Do not hold the queued packets while waiting
+                if (mPacer.isLimited())
+                    rtpFlush();
+                mPacer.pace(12 + payloads.getLength(i));
             }
-            rtp[13] = FUHeader;
-            rtpSend(rtp, size + 14);
+            rtpSend(rtp, payloads.getData(), payloads.getOffset(i), payloads.getLength(i));
+            mHistory.add(mSeq, (int) timestamp, i == count - 1, payloads, i, now);
+            octets += payloads.getLength(i);
             ++mSeq;
         }
+        StreamMetrics.get().rtpSent(StreamMetrics.STREAM_H264, count, octets);
+        if (paced) {
+            StreamMetrics.get().rtpPaced(mPacer.getQueuedBytes() - queued,
+                    mPacer.getPacedBytes() - delayed);
+        }
+        return octets;
     }
 }
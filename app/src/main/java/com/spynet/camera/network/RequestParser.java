@@ -0,0 +1,540 @@
+/*
+ * This file is part of spyNet Camera, the Android IP camera
+ *
+ * Copyright (C) 2016-2017 Paolo Dematteis
+ *
+ * spyNet Camera is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * spyNet Camera is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Paolo Dematteis - spynet314@gmail.com
+ */
+
+package com.spynet.camera.network;
+
+import android.util.Log;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+
+/**
+ * Defines the incremental parser of the HTTP and RTSP requests received by the StreamServer.<br>
+ * One parser is attached to each connection and reused for all its requests: the data is
+ * read into a fixed buffer, so partial reads and pipelined requests are handled without
+ * allocating intermediate buffers, lines or arrays. Only the strings that are actually
+ * used (URL and known header values) are created.<br>
+ * The parser also delimits the interleaved binary frames (RFC 2326, section 10.12) and
+ * decodes the base64 stream of RTSP tunnelled over HTTP.
+ */
+final class RequestParser {
+
+    // Size of the input buffer, it limits the size of a request line or header
+    private static final int BUFFER_SIZE = 4096;
+
+    // Known methods and protocols, used to avoid allocating their strings
+    private static final String[] TOKENS = {
+            "GET", "POST", "OPTIONS", "DESCRIBE", "SETUP", "PLAY", "GET_PARAMETER",
+            "SET_PARAMETER", "TEARDOWN", "HTTP/1.1", "HTTP/1.0", "RTSP/1.0"
+    };
+
+    // Headers stored by the parser (lowercase), the others are skipped
+    private static final String[] HEADERS = {
+            "accept-encoding", "authorization", "connection", "content-length", "content-type",
+            "cseq", "gps-mode", "if-modified-since", "if-none-match", "sensors", "session",
+            "transport", "user-agent", "x-sessioncookie"
+    };
+
+    // Base64 alphabet decoding table, -1 for the characters to ignore
+    private static final byte[] BASE64 = new byte[128];
+
+    static {
+        for (int i = 0; i < BASE64.length; i++)
+            BASE64[i] = -1;
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++)
+            BASE64[alphabet.charAt(i)] = (byte) i;
+    }
+
+    private final String TAG = getClass().getSimpleName();
+
+    private final byte[] mBuffer;                       // The (decoded) input data
+    private final String[] mRequest;                    // {method, URL, protocol}
+    private final String[] mHeaders;                    // The values of the known headers
+    private int mStart;                                 // Start of the data not parsed yet
+    private int mEnd;                                   // End of the data read so far
+    private boolean mBase64;                            // Whether the input is base64 encoded
+    private int mBits;                                  // Base64 bits not decoded yet
+    private int mBitCount;                              // Number of base64 bits not decoded yet
+    private int mChannel;                               // Channel of the last interleaved frame, -1 if none
+    private int mFrameLength;                           // Length of the last interleaved frame
+    private int mFrameLeft;                             // Bytes of the last interleaved frame not read yet
+
+    /**
+     * Creates a new RequestParser object.
+     */
+    RequestParser() {
+        mBuffer = new byte[BUFFER_SIZE];
+        mRequest = new String[3];
+        mHeaders = new String[HEADERS.length];
+        mChannel = -1;
+    }
+
+    /**
+     * @param connection the TCPConnection the parser reads from
+     * @return true if some data is available and can be parsed without waiting for the client
+     * @throws IOException if an error occurs while checking the stream
+     */
+    boolean hasPendingInput(TCPConnection connection) throws IOException {
+        return mStart < mEnd || connection.hasPendingInput();
+    }
+
+    /**
+     * Reads the next request, blocking until it has been completely received.<br>
+     * When an interleaved binary frame is received, the request line is set to
+     * {null, null, null}: the frame content can be read with {@link #readFrame}, what
+     * is not read is skipped by the next call.
+     *
+     * @param connection the TCPConnection to read from
+     * @param base64     whether the data is base64 encoded (RTSP over HTTP)
+     * @return true if a request has been read, false on end of stream or malformed request
+     * @throws IOException if an error occurs while reading from the connection
+     */
+    boolean next(TCPConnection connection, boolean base64) throws IOException {
+
+        int lineEnd;
+
+        // Switch to base64, the data already read is decoded in place
+        if (base64 && !mBase64) {
+            mBase64 = true;
+            int end = mStart;
+            end = decode(mBuffer, mStart, mEnd - mStart, end);
+            mEnd = end;
+        }
+
+        mRequest[0] = mRequest[1] = mRequest[2] = null;
+        for (int i = 0; i < mHeaders.length; i++)
+            mHeaders[i] = null;
+
+        // Skip what is left of the previous interleaved frame
+        if (mFrameLeft > 0 && !skip(connection, mFrameLeft))
+            return false;
+        mChannel = -1;
+        mFrameLength = mFrameLeft = 0;
+
+        // Delimit the interleaved packets (RTCP over RTSP - see RFC 2326, session 10.12)
+        if (!require(connection, 1))
+            return false;
+        if (mBuffer[mStart] == '$') {
+            if (!require(connection, 4))
+                return false;
+            mChannel = mBuffer[mStart + 1] & 0xFF;
+            mFrameLength = mFrameLeft = ((mBuffer[mStart + 2] & 0xFF) << 8) | (mBuffer[mStart + 3] & 0xFF);
+            mStart += 4;
+            return true;
+        }
+
+        // Read and split the request line
+        if ((lineEnd = readLine(connection)) < 0)
+            return false;
+        int sp1 = indexOf(mBuffer, ' ', mStart, lineEnd);
+        int sp2 = sp1 < 0 ? -1 : indexOf(mBuffer, ' ', sp1 + 1, lineEnd);
+        boolean valid = sp2 > 0 && indexOf(mBuffer, ' ', sp2 + 1, lineEnd) < 0;
+        if (valid) {
+            mRequest[0] = token(mStart, sp1);
+            mRequest[1] = new String(mBuffer, sp1 + 1, sp2 - sp1 - 1);
+            mRequest[2] = token(sp2 + 1, lineEnd);
+        }
+        consumeLine(lineEnd);
+
+        // Read the headers
+        while (true) {
+            if ((lineEnd = readLine(connection)) < 0)
+                return false;
+            if (lineEnd == mStart) {
+                consumeLine(lineEnd);
+                break;
+            }
+            int colon = indexOf(mBuffer, ':', mStart, lineEnd);
+            if (colon > 0) {
+                int header = header(mStart, trimEnd(mStart, colon));
+                if (header >= 0) {
+                    int start = trimStart(colon + 1, lineEnd);
+                    mHeaders[header] = new String(mBuffer, start, trimEnd(start, lineEnd) - start);
+                }
+            }
+            consumeLine(lineEnd);
+        }
+
+        return valid;
+    }
+
+    /**
+     * @return a three-element String array that contains the method, the URL and the protocol
+     * of the last request, the array is reused by the next request
+     */
+    String[] getRequestLine() {
+        return mRequest;
+    }
+
+    /**
+     * Returns the value of a header of the last request.
+     *
+     * @param name the lowercase header name
+     * @return the header value, null if not present
+     */
+    @Nullable
+    String getHeader(String name) {
+        for (int i = 0; i < HEADERS.length; i++) {
+            if (HEADERS[i].equals(name))
+                return mHeaders[i];
+        }
+        return null;
+    }
+
+    /**
+     * @return the channel of the last interleaved frame, -1 if the last item was a request
+     */
+    int getFrameChannel() {
+        return mChannel;
+    }
+
+    /**
+     * @return the length of the last interleaved frame
+     */
+    int getFrameLength() {
+        return mFrameLength;
+    }
+
+    /**
+     * Reads the content of the last interleaved frame.
+     *
+     * @param connection the TCPConnection to read from
+     * @param frame      the buffer where to store the content
+     * @return the number of bytes actually read
+     * @throws IOException if an error occurs while reading from the connection
+     */
+    int readFrame(TCPConnection connection, byte[] frame) throws IOException {
+        int read = 0;
+        while (read < frame.length && mFrameLeft > 0) {
+            if (mStart == mEnd && fill(connection) < 0)
+                break;
+            int size = Math.min(Math.min(frame.length - read, mEnd - mStart), mFrameLeft);
+            System.arraycopy(mBuffer, mStart, frame, read, size);
+            mStart += size;
+            mFrameLeft -= size;
+            read += size;
+        }
+        return read;
+    }
+
+    /**
+     * Reads the content of the last request.<br>
+     * The data already buffered by the parser is returned first.
+     *
+     * @param connection the TCPConnection to read from
+     * @param body       the buffer where to store the content
+     * @return the number of bytes actually read
+     * @throws IOException if an error occurs while reading from the connection
+     */
+    int readBody(TCPConnection connection, byte[] body) throws IOException {
+        int read = 0;
+        while (read < body.length) {
+            if (mStart == mEnd && fill(connection) < 0)
+                break;
+            int size = Math.min(body.length - read, mEnd - mStart);
+            System.arraycopy(mBuffer, mStart, body, read, size);
+            mStart += size;
+            read += size;
+        }
+        return read;
+    }
+
+    /**
+     * Helper to get the path part of a Request-URI.
+     *
+     * @param requestURI the Request-URI the client requested
+     * @return the path part of the requestURI (without the final '/'), null if not valid
+     */
+    @Nullable
+    static String getPath(String requestURI) {
+
+        int start = 0, end;
+
+        // Escaped characters are rare, let URI decode them
+        if (requestURI.indexOf('%') >= 0) {
+            try {
+                return trimPath(new URI(requestURI).getPath());
+            } catch (URISyntaxException e) {
+                return null;
+            }
+        }
+
+        // Skip scheme and authority
+        int scheme = requestURI.indexOf("://");
+        if (scheme > 0 && scheme < indexOfAny(requestURI, 0)) {
+            start = requestURI.indexOf('/', scheme + 3);
+            if (start < 0)
+                return "";
+        }
+        end = indexOfAny(requestURI, start);
+        return trimPath(requestURI.substring(start, end));
+    }
+
+    /**
+     * Helper to get a parameter from the query part of a Request-URI.
+     *
+     * @param requestURI the Request-URI the client requested
+     * @param name       the lowercase parameter name
+     * @return the parameter value, null if not present
+     */
+    @Nullable
+    static String getQueryParameter(String requestURI, String name) {
+        int start = requestURI.indexOf('?');
+        if (start < 0)
+            return null;
+        int end = requestURI.indexOf('#', start);
+        if (end < 0)
+            end = requestURI.length();
+        start++;
+        while (start < end) {
+            int amp = requestURI.indexOf('&', start);
+            if (amp < 0 || amp > end)
+                amp = end;
+            int eq = start + name.length();
+            if (eq + 1 < amp && requestURI.charAt(eq) == '=' &&
+                    requestURI.regionMatches(true, start, name, 0, name.length())) {
+                int next = requestURI.indexOf('=', eq + 1);
+                if (next < 0 || next >= amp)
+                    return requestURI.substring(eq + 1, amp);
+            }
+            start = amp + 1;
+        }
+        return null;
+    }
+
+    /**
+     * Removes the final '/' from a path.
+     */
+    private static String trimPath(String path) {
+        if (path != null && path.length() > 1 && path.endsWith("/"))
+            return path.substring(0, path.length() - 1);
+        return path;
+    }
+
+    /**
+     * @return the index of the first '?' or '#' in the string, or its length if not found
+     */
+    private static int indexOfAny(String str, int start) {
+        for (int i = start; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c == '?' || c == '#')
+                return i;
+        }
+        return str.length();
+    }
+
+    /**
+     * @return the index of the first occurrence of a byte in a range, -1 if not found
+     */
+    private static int indexOf(byte[] buffer, char c, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (buffer[i] == c)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Waits until the specified number of bytes is available in the buffer.
+     *
+     * @return false on end of stream
+     */
+    private boolean require(TCPConnection connection, int count) throws IOException {
+        while (mEnd - mStart < count) {
+            if (fill(connection) < 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Skips the specified number of bytes.
+     *
+     * @return false on end of stream
+     */
+    private boolean skip(TCPConnection connection, int count) throws IOException {
+        while (true) {
+            int size = Math.min(count, mEnd - mStart);
+            mStart += size;
+            count -= size;
+            if (count == 0)
+                return true;
+            if (fill(connection) < 0)
+                return false;
+        }
+    }
+
+    /**
+     * Waits for a complete line.
+     *
+     * @return the end of the line (the index of '\r' or '\n'), -1 on end of stream or
+     * if the line is too long
+     */
+    private int readLine(TCPConnection connection) throws IOException {
+        int scan = mStart;
+        while (true) {
+            int lf = indexOf(mBuffer, '\n', scan, mEnd);
+            if (lf >= 0)
+                return (lf > mStart && mBuffer[lf - 1] == '\r') ? lf - 1 : lf;
+            scan = mEnd - mStart;
+            if (fill(connection) < 0)
+                return -1;
+            scan += mStart;
+        }
+    }
+
+    /**
+     * Consumes the current line.
+     *
+     * @param lineEnd the end of the line returned by {@code readLine()}
+     */
+    private void consumeLine(int lineEnd) {
+        mStart = lineEnd;
+        if (mBuffer[mStart] == '\r')
+            mStart++;
+        mStart++;
+    }
+
+    /**
+     * Reads more data from the connection, compacting the buffer if needed.
+     *
+     * @return the number of bytes added to the buffer, -1 on end of stream or if the buffer is full
+     */
+    private int fill(TCPConnection connection) throws IOException {
+        if (mStart == mEnd) {
+            mStart = mEnd = 0;
+        } else if (mStart > 0 && mEnd == mBuffer.length) {
+            System.arraycopy(mBuffer, mStart, mBuffer, 0, mEnd - mStart);
+            mEnd -= mStart;
+            mStart = 0;
+        }
+        if (mEnd == mBuffer.length) {
+            Log.w(TAG, "request too long");
+            return -1;
+        }
+        while (true) {
+            if (!mBase64) {
+                int read = connection.read(mBuffer, mEnd, mBuffer.length - mEnd);
+                if (read > 0)
+                    mEnd += read;
+                return read;
+            }
+            // Base64 decodes to 3/4 of the input size, read directly past the decoded data
+            int room = mBuffer.length - mEnd;
+            int read = connection.read(mBuffer, mEnd, room);
+            if (read < 0)
+                return -1;
+            int end = decode(mBuffer, mEnd, read, mEnd);
+            if (end > mEnd) {
+                int decoded = end - mEnd;
+                mEnd = end;
+                return decoded;
+            }
+        }
+    }
+
+    /**
+     * Decodes base64 data, possibly in place.<br>
+     * The decoder state is kept between calls, so the data can be split anywhere.
+     *
+     * @return the end of the decoded data
+     */
+    private int decode(byte[] src, int offset, int count, int dst) {
+        for (int i = offset; i < offset + count; i++) {
+            int c = src[i];
+            if (c == '=') {
+                // Padding, drop the incomplete bits
+                mBits = mBitCount = 0;
+                continue;
+            }
+            if (c < 0 || BASE64[c] < 0)
+                continue;
+            mBits = (mBits << 6) | BASE64[c];
+            mBitCount += 6;
+            if (mBitCount >= 8) {
+                mBitCount -= 8;
+                mBuffer[dst++] = (byte) (mBits >> mBitCount);
+                mBits &= (1 << mBitCount) - 1;
+            }
+        }
+        return dst;
+    }
+
+    /**
+     * @return the known token that matches the range, or a new string
+     */
+    private String token(int start, int end) {
+        int length = end - start;
+        for (String t : TOKENS) {
+            if (t.length() == length && matches(t, start, false))
+                return t;
+        }
+        return new String(mBuffer, start, length);
+    }
+
+    /**
+     * @return the index of the known header that matches the range, -1 if not known
+     */
+    private int header(int start, int end) {
+        int length = end - start;
+        for (int i = 0; i < HEADERS.length; i++) {
+            if (HEADERS[i].length() == length && matches(HEADERS[i], start, true))
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if the buffer at start matches the string
+     */
+    private boolean matches(String str, int start, boolean ignoreCase) {
+        for (int i = 0; i < str.length(); i++) {
+            int c = mBuffer[start + i];
+            if (ignoreCase && c >= 'A' && c <= 'Z')
+                c += 'a' - 'A';
+            if (c != str.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the index of the first non blank character in the range
+     */
+    private int trimStart(int start, int end) {
+        while (start < end && (mBuffer[start] == ' ' || mBuffer[start] == '\t'))
+            start++;
+        return start;
+    }
+
+    /**
+     * @return the end of the range without the trailing blank characters
+     */
+    private int trimEnd(int start, int end) {
+        while (end > start && (mBuffer[end - 1] == ' ' || mBuffer[end - 1] == '\t'))
+            end--;
+        return end;
+    }
+}
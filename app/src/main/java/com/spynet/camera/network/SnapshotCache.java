@@ -0,0 +1,194 @@
+/*
+ * This file is part of spyNet Camera, the Android IP camera
+ *
+ * Copyright (C) 2016-2017 Paolo Dematteis
+ *
+ * spyNet Camera is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * spyNet Camera is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Paolo Dematteis - spynet314@gmail.com
+ */
+
+package com.spynet.camera.network;
+
+import com.spynet.camera.common.TimeStamp;
+import com.spynet.camera.media.VideoFrame;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Defines the cache of the last JPEG image, served as a snapshot.<br>
+ * The image is swapped atomically on every new frame, so that the MJPEG path never waits
+ * for the snapshot readers; the readers that need a fresher image wait for the next one.
+ */
+final class SnapshotCache {
+
+    private final AtomicReference<Snapshot> mLast;      // The last image, null if none yet
+    private final Object mLock;                         // Lock used to notify the new images
+    private volatile int mWaiting;                      // Number of readers waiting for an image
+
+    /**
+     * Defines a cached image.
+     */
+    static final class Snapshot {
+
+        private final byte[] mData;                     // The JPEG image
+        private final long mTimestamp;                  // The frame timestamp in us
+        private final long mTime;                       // The wall clock time in ms, whole seconds
+
+        private Snapshot(byte[] data, long timestamp, long time) {
+            mData = data;
+            mTimestamp = timestamp;
+            mTime = time;
+        }
+
+        /**
+         * @return the JPEG image
+         */
+        byte[] getData() {
+            return mData;
+        }
+
+        /**
+         * @return the frame timestamp in microseconds ({@link TimeStamp})
+         */
+        long getTimestamp() {
+            return mTimestamp;
+        }
+
+        /**
+         * @return the image age in microseconds
+         */
+        long getAge() {
+            return TimeStamp.getTimeStamp() - mTimestamp;
+        }
+
+        /**
+         * @return the Last-Modified header value
+         */
+        String getLastModified() {
+            return formatDate(mTime);
+        }
+
+        /**
+         * Checks whether the image is newer than the copy cached by the client.
+         *
+         * @param ifModifiedSince the If-Modified-Since header, may be null
+         * @return true if the image has to be sent
+         */
+        boolean isModifiedSince(@Nullable String ifModifiedSince) {
+            long since = parseDate(ifModifiedSince);
+            return since < 0 || mTime > since;
+        }
+    }
+
+    /**
+     * Creates a new SnapshotCache object.
+     */
+    SnapshotCache() {
+        mLast = new AtomicReference<>();
+        mLock = new Object();
+    }
+
+    /**
+     * Replaces the cached image, to be called for every JPEG frame.
+     *
+     * @param frame the JPEG frame
+     */
+    void update(@NotNull VideoFrame frame) {
+        // HTTP dates have a resolution of one second
+        long time = System.currentTimeMillis() / 1000 * 1000;
+        mLast.set(new Snapshot(frame.getData(), frame.getTimestamp(), time));
+        if (mWaiting > 0) {
+            synchronized (mLock) {
+                mLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return the last image, null if none yet
+     */
+    @Nullable
+    Snapshot get() {
+        return mLast.get();
+    }
+
+    /**
+     * Waits for an image newer than the given timestamp.
+     *
+     * @param timestamp the timestamp of the stale image in us, -1 if none
+     * @param timeout   the max time to wait in ms
+     * @return the new image, null if the operation timed out
+     * @throws InterruptedException if interrupted while waiting
+     */
+    @Nullable
+    Snapshot await(long timestamp, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (mLock) {
+            mWaiting++;
+            try {
+                while (true) {
+                    Snapshot snapshot = mLast.get();
+                    if (snapshot != null && snapshot.mTimestamp > timestamp)
+                        return snapshot;
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0)
+                        return null;
+                    mLock.wait(wait);
+                }
+            } finally {
+                mWaiting--;
+            }
+        }
+    }
+
+    /**
+     * Formats a time as an HTTP date (RFC 7231).
+     */
+    private static String formatDate(long time) {
+        return newDateFormat().format(new Date(time));
+    }
+
+    /**
+     * Parses an HTTP date (RFC 7231).
+     *
+     * @return the time in ms, -1 if missing or invalid
+     */
+    private static long parseDate(String date) {
+        if (date == null)
+            return -1;
+        try {
+            return newDateFormat().parse(date.trim()).getTime();
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return a formatter for the HTTP dates, SimpleDateFormat is not thread-safe
+     */
+    private static SimpleDateFormat newDateFormat() {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format;
+    }
+}
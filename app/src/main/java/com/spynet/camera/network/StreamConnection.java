@@ -26,13 +26,13 @@ import android.util.Base64;
 import android.util.Log;
 
 import com.spynet.camera.media.AudioData;
-import com.spynet.camera.media.VideoFrame;
 
 import org.jetbrains.annotations.NotNull;
 
 import java.io.IOException;
 import java.net.Socket;
 import java.net.SocketException;
+import java.util.List;
 import java.util.Random;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
@@ -41,7 +41,7 @@ import java.util.concurrent.TimeUnit;
 /**
  * Defines a TCP connection that handles requests to the StreamServer.
  */
-public class StreamConnection extends TCPConnection {
+public class StreamConnection extends TCPConnection implements RTPSource {
 
     public final static String TYPE_MJPEG = "mjpeg";    // MJPEG video
     public final static String TYPE_H264 = "h264";      // H264 video
@@ -53,21 +53,30 @@ public class StreamConnection extends TCPConnection {
     protected final int QUEUE_WRITE_TIMEOUT = 1;        // Timeout to write to the queue in ms
     protected final int QUEUE_READ_TIMEOUT = 5000;      // Timeout to read from the queue in ms
 
-    private final BlockingQueue<VideoFrame> mFrameQueue // The queue used to send uncompressed video frames
-            = new ArrayBlockingQueue<>(QUEUE_CAPACITY); //
-    private final BlockingQueue<VideoFrame> mSliceQueue // The queue used to send compressed slices
+    private final BlockingQueue<RTPSlice> mSliceQueue   // The queue used to send compressed slices
             = new ArrayBlockingQueue<>(QUEUE_CAPACITY); //
     private final BlockingQueue<AudioData> mAudioQueue  // The queue used to send compressed audio
             = new ArrayBlockingQueue<>(QUEUE_CAPACITY); //
     private int mRTPSeq;                                // First RTP packet sequential number
     private String mRTSPSession;                        // RTSP session ID
+    private volatile String mTunnelCookie;              // Session cookie for RTSP over HTTP
+    private RequestParser mRequestParser;               // The requests parser, created on demand
+    private byte[] mFrameBuffer;                        // The interleaved frames buffer, created on demand
     private UDPVideoPacketizer mUDPVideoPacketizer;     // UDP video packetizer
     private UDPAudioPacketizer mUDPAudioPacketizer;     // UDP audio packetizer
     private TCPVideoPacketizer mTCPVideoPacketizer;     // TCP video packetizer
     private TCPAudioPacketizer mTCPAudioPacketizer;     // TCP audio packetizer
+    private volatile MulticastGroup mVideoGroup;        // Video multicast group
+    private volatile MulticastGroup mAudioGroup;        // Audio multicast group
     private volatile boolean mStreamingMJPEG;           // Indicates whether this connection is streaming MJPEG
     private volatile boolean mStreamingH264;            // Indicates whether this connection is streaming H264
     private volatile boolean mStreamingAAC;             // Indicates whether this connection is streaming AAC
+    private volatile boolean mDesynced;                 // Whether a reference slice has been dropped
+    private volatile long mDroppedSlices;               // Number of slices dropped so far
+    private volatile long mDroppedAudio;                // Number of audio buffers dropped so far
+    private volatile long mDroppedFrames;               // Number of JPEG frames skipped so far
+    private volatile MJPEGRateControl mMJPEGRate;       // The MJPEG rate control, null if not streaming
+    private volatile List<RTPSlice> mPreroll;           // The slices to replay before the live ones
 
     /**
      * Extends the ConnectionCallback to add StreamConnection specific notifications.
@@ -125,52 +134,156 @@ public class StreamConnection extends TCPConnection {
     }
 
     /**
-     * Pushes a video data buffer to the queue.
+     * Pushes a compressed video slice to the queue.<br>
+     * The same slice is pushed to all the connections, so that it is packetized only once.
+     * JPEG frames are not queued, MJPEG streams read them from the server {@code BroadcastRing}.<br>
+     * When the queue is full, the non-reference slices are dropped first, so that the client
+     * only sees a lower frame rate. If a reference slice has to be dropped, the connection
+     * is desynced: the following slices are dropped up to the next IDR, that is requested.
      *
-     * @param frame the video data
+     * @param slice the video slice
      * @return true if the data was added successfully, false otherwise
      * @throws InterruptedException if interrupted while waiting
      */
-    public boolean push(VideoFrame frame) throws InterruptedException {
-        if (frame.isH264()) {
-            if (!isStreamingH264())
-                return false;
-            if (mSliceQueue.offer(frame, QUEUE_WRITE_TIMEOUT, TimeUnit.MILLISECONDS))
-                return true;
-            Log.v(TAG, "cannot add the slice, the queue is full");
-        } else if (frame.isJPEG()) {
-            if (!isStreamingMJPEG())
-                return false;
-            if (mFrameQueue.offer(frame, QUEUE_WRITE_TIMEOUT, TimeUnit.MILLISECONDS))
-                return true;
-            Log.v(TAG, "cannot add the frame, the queue is full");
+    public boolean push(RTPSlice slice) throws InterruptedException {
+        // The multicast sessions are fed by their group
+        if (!isStreamingH264() || mVideoGroup != null)
+            return false;
+        // An IDR makes the queued slices useless, make room for it
+        if (slice.isIDR()) {
+            if (mDesynced || mSliceQueue.remainingCapacity() == 0) {
+                int flushed = mSliceQueue.size();
+                StreamMetrics.get().drop(StreamMetrics.DROP_H264_FLUSHED, flushed);
+                mDroppedSlices += flushed;
+                mSliceQueue.clear();
+                mDesynced = false;
+            }
+            return mSliceQueue.offer(slice);
         }
+        // Skip to the next IDR
+        if (mDesynced) {
+            StreamMetrics.get().drop(StreamMetrics.DROP_H264_DESYNCED, 1);
+            mDroppedSlices++;
+            return false;
+        }
+        if (mSliceQueue.offer(slice))
+            return true;
+        // The queue is full, drop a non-reference slice
+        StreamMetrics.get().drop(StreamMetrics.DROP_H264_QUEUE_FULL, 1);
+        mDroppedSlices++;
+        if (!slice.isReference()) {
+            Log.v(TAG, "queue full, non-reference slice dropped");
+            return false;
+        }
+        for (RTPSlice s : mSliceQueue) {
+            if (!s.isReference() && mSliceQueue.remove(s)) {
+                Log.v(TAG, "queue full, queued non-reference slice dropped");
+                return mSliceQueue.offer(slice);
+            }
+        }
+        // A reference slice has to be dropped, wait for the next IDR
+        Log.v(TAG, "queue full, reference slice dropped, waiting for the next IDR");
+        mDesynced = true;
+        requestControl("video-sync", "send");
         return false;
     }
 
     /**
-     * Removes all frames from the queue.
+     * Drops the following slices up to the next IDR.<br>
+     * Used when some slices have been lost before reaching the connection.
      */
-    public void clearFrames() {
-        mFrameQueue.clear();
+    public void desync() {
+        mDesynced = true;
     }
 
     /**
-     * Pops an uncompressed video frame from the queue.
+     * @return the number of slices dropped because the client is too slow
+     */
+    public long getDroppedSlices() {
+        return mDroppedSlices;
+    }
+
+    /**
+     * @return the number of audio buffers dropped because the client is too slow
+     */
+    public long getDroppedAudio() {
+        return mDroppedAudio;
+    }
+
+    /**
+     * Counts the JPEG frames skipped because the client is too slow.<br>
+     * To be called by the thread that sends the MJPEG stream.
      *
-     * @return the frame data buffer, null on error or if the timeout expires
-     * @throws InterruptedException if interrupted while waiting
+     * @param count the number of skipped frames
+     */
+    public void addDroppedFrames(long count) {
+        mDroppedFrames += count;
+    }
+
+    /**
+     * Sets the rate control of the MJPEG stream.
+     *
+     * @param rate the rate control, null when the stream stops
+     */
+    void setMJPEGRate(MJPEGRateControl rate) {
+        mMJPEGRate = rate;
+    }
+
+    /**
+     * @return the rate control of the MJPEG stream, null if not streaming
+     */
+    MJPEGRateControl getMJPEGRate() {
+        return mMJPEGRate;
+    }
+
+    /**
+     * @return the number of JPEG frames skipped because the client is too slow
+     */
+    public long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    /**
+     * @return the number of slices waiting to be sent
      */
-    public VideoFrame popFrame() throws InterruptedException {
-        VideoFrame frame = mFrameQueue.poll(QUEUE_READ_TIMEOUT, TimeUnit.MILLISECONDS);
-        if (frame == null)
-            Log.v(TAG, "cannot get the frame, the queue is empty");
-        return frame;
+    public int getSliceQueueDepth() {
+        return mSliceQueue.size();
+    }
+
+    /**
+     * @return the number of audio buffers waiting to be sent
+     */
+    public int getAudioQueueDepth() {
+        return mAudioQueue.size();
+    }
+
+    /**
+     * Sets the slices to be sent before the live ones, so that the client can start to decode
+     * without waiting for the next IDR.
+     *
+     * @param slices the slices of the current GOP, starting with an IDR
+     */
+    public void setPreroll(List<RTPSlice> slices) {
+        mPreroll = slices;
+    }
+
+    /**
+     * Gets and removes the slices to be sent before the live ones.
+     *
+     * @return the slices set with {@code setPreroll()}, null if none
+     */
+    @Override
+    @Nullable
+    public List<RTPSlice> takePreroll() {
+        List<RTPSlice> slices = mPreroll;
+        mPreroll = null;
+        return slices;
     }
 
     /**
      * Removes all slices from the queue.
      */
+    @Override
     public void clearSlices() {
         mSliceQueue.clear();
     }
@@ -178,16 +291,28 @@ public class StreamConnection extends TCPConnection {
     /**
      * Pops a compressed slice from the queue.
      *
-     * @return the slice data buffer, null on error or if the timeout expires
+     * @return the slice, null on error or if the timeout expires
      * @throws InterruptedException if interrupted while waiting
      */
-    public VideoFrame popSlice() throws InterruptedException {
-        VideoFrame slice = mSliceQueue.poll(QUEUE_READ_TIMEOUT, TimeUnit.MILLISECONDS);
+    @Override
+    public RTPSlice popSlice() throws InterruptedException {
+        RTPSlice slice = mSliceQueue.poll(QUEUE_READ_TIMEOUT, TimeUnit.MILLISECONDS);
         if (slice == null)
             Log.v(TAG, "cannot get the slice, the queue is empty");
         return slice;
     }
 
+    /**
+     * Gets the next compressed slice of the queue, without removing it.
+     *
+     * @return the slice, null if the queue is empty
+     */
+    @Override
+    @Nullable
+    public RTPSlice peekSlice() {
+        return mSliceQueue.peek();
+    }
+
     /**
      * Pushes an audio data buffer to the queue.
      *
@@ -197,10 +322,12 @@ public class StreamConnection extends TCPConnection {
      */
     public boolean push(AudioData data) throws InterruptedException {
         if (data.isAAC()) {
-            if (!isStreamingAAC())
+            if (!isStreamingAAC() || mAudioGroup != null)
                 return false;
             if (mAudioQueue.offer(data, QUEUE_WRITE_TIMEOUT, TimeUnit.MILLISECONDS))
                 return true;
+            StreamMetrics.get().drop(StreamMetrics.DROP_AAC_QUEUE_FULL, 1);
+            mDroppedAudio++;
             Log.v(TAG, "cannot add the audio, the queue is full");
         }
         return false;
@@ -209,6 +336,7 @@ public class StreamConnection extends TCPConnection {
     /**
      * Removes all audio buffers from the queue.
      */
+    @Override
     public void clearAudio() {
         mAudioQueue.clear();
     }
@@ -219,6 +347,7 @@ public class StreamConnection extends TCPConnection {
      * @return the audio data buffer, null on error or if the timeout expires
      * @throws InterruptedException if interrupted while waiting
      */
+    @Override
     public AudioData popAudio() throws InterruptedException {
         AudioData data = mAudioQueue.poll(QUEUE_READ_TIMEOUT, TimeUnit.MILLISECONDS);
         if (data == null)
@@ -232,6 +361,7 @@ public class StreamConnection extends TCPConnection {
      * @param type the stream type
      * @param id   the stream id
      */
+    @Override
     public void notifyStreamStarted(String type, long id) {
         switch (type) {
             case TYPE_MJPEG:
@@ -253,6 +383,7 @@ public class StreamConnection extends TCPConnection {
      * @param type the stream type
      * @param id   the stream id
      */
+    @Override
     public void notifyStreamStopped(String type, long id) {
         switch (type) {
             case TYPE_MJPEG:
@@ -274,6 +405,7 @@ public class StreamConnection extends TCPConnection {
      * @param action the action that has to be handled
      * @param params the action parameters
      */
+    @Override
     public void requestControl(String action, String params) {
         ((ConnectionCallback) mCallback).onControlRequest(this, action, params);
     }
@@ -335,21 +467,65 @@ public class StreamConnection extends TCPConnection {
         mRTSPSession = null;
     }
 
+    /**
+     * Returns the parser of the requests received on this connection.<br>
+     * The parser keeps the data read ahead, so the same parser must be used for all the requests.
+     *
+     * @return the request parser
+     */
+    RequestParser getRequestParser() {
+        if (mRequestParser == null)
+            mRequestParser = new RequestParser();
+        return mRequestParser;
+    }
+
+    /**
+     * Returns the buffer used to read the interleaved frames received on this connection.<br>
+     * It is sized for the largest frame, and reused for all the frames: the frame content
+     * must be consumed before the next one is read.
+     *
+     * @return the frame buffer
+     */
+    byte[] getFrameBuffer() {
+        if (mFrameBuffer == null)
+            mFrameBuffer = new byte[0xFFFF];
+        return mFrameBuffer;
+    }
+
+    /**
+     * Stores the session cookie used to tunnel RTSP over HTTP.<br>
+     * It is set on the POST connection, whose requests are then read as base64 RTSP requests.
+     *
+     * @param cookie the x-sessioncookie value
+     */
+    public void setTunnelCookie(String cookie) {
+        mTunnelCookie = cookie;
+    }
+
+    /**
+     * @return the session cookie used to tunnel RTSP over HTTP, null if not tunnelling
+     */
+    @Nullable
+    public String getTunnelCookie() {
+        return mTunnelCookie;
+    }
+
     /**
      * Prepares the video UDP streaming.
      *
+     * @param transport the UDP sockets of the video track
      * @param clockRate the video clock rate in Hz.
      * @param rtpPort   the UDP client port to send the RTP video packets to
      * @param rtcpPort  the UDP client port to send the RTCP video packets to
      * @throws IllegalStateException if the session is not opened or the stream is already playing
-     * @throws SocketException       if the video packetizer can't be created
      */
-    public synchronized void setupVideoUDP(int clockRate, int rtpPort, int rtcpPort) throws IllegalStateException, SocketException {
+    public synchronized void setupVideoUDP(@NotNull UDPTransport transport, int clockRate, int rtpPort, int rtcpPort)
+            throws IllegalStateException {
         if (mRTSPSession == null)
             throw new IllegalStateException("RTSP session non opened");
-        if (mUDPVideoPacketizer != null || mTCPVideoPacketizer != null)
+        if (mUDPVideoPacketizer != null || mTCPVideoPacketizer != null || mVideoGroup != null)
             throw new IllegalStateException("already configured");
-        mUDPVideoPacketizer = new UDPVideoPacketizer(this,
+        mUDPVideoPacketizer = new UDPVideoPacketizer(this, transport,
                 getInetAddress(), rtpPort, rtcpPort,
                 clockRate, mRTPSeq);
     }
@@ -368,6 +544,22 @@ public class StreamConnection extends TCPConnection {
         return mUDPVideoPacketizer != null ? mUDPVideoPacketizer.getRTCPLocalPort() : 0;
     }
 
+    /**
+     * Prepares the video multicast streaming.<br>
+     * The packets are sent to the group by its shared sender, while the session is playing.
+     *
+     * @param group the multicast group of the video track
+     * @throws IllegalStateException if the session is not opened or the stream is already playing
+     */
+    public synchronized void setupVideoMulticast(@NotNull MulticastGroup group)
+            throws IllegalStateException {
+        if (mRTSPSession == null)
+            throw new IllegalStateException("RTSP session non opened");
+        if (mUDPVideoPacketizer != null || mTCPVideoPacketizer != null || mVideoGroup != null)
+            throw new IllegalStateException("already configured");
+        mVideoGroup = group;
+    }
+
     /**
      * Prepares the video TCP streaming.
      *
@@ -380,7 +572,7 @@ public class StreamConnection extends TCPConnection {
     public synchronized void setupVideoTCP(int clockRate, int rtpChannel, int rtcpChannel) throws IllegalStateException, SocketException {
         if (mRTSPSession == null)
             throw new IllegalStateException("RTSP session non opened");
-        if (mUDPVideoPacketizer != null || mTCPVideoPacketizer != null)
+        if (mUDPVideoPacketizer != null || mTCPVideoPacketizer != null || mVideoGroup != null)
             throw new IllegalStateException("already configured");
         mTCPVideoPacketizer = new TCPVideoPacketizer(this,
                 rtpChannel, rtcpChannel,
@@ -390,18 +582,19 @@ public class StreamConnection extends TCPConnection {
     /**
      * Prepares the audio UDP streaming.
      *
+     * @param transport the UDP sockets of the audio track
      * @param clockRate the audio clock rate in Hz.
      * @param rtpPort   the UDP client port to send the RTP audio packets to
      * @param rtcpPort  the UDP client port to send the RTCP audio packets to
      * @throws IllegalStateException if the session is not opened or the stream is already playing
-     * @throws SocketException       if the audio packetizer can't be created
      */
-    public synchronized void setupAudioUDP(int clockRate, int rtpPort, int rtcpPort) throws IllegalStateException, SocketException {
+    public synchronized void setupAudioUDP(@NotNull UDPTransport transport, int clockRate, int rtpPort, int rtcpPort)
+            throws IllegalStateException {
         if (mRTSPSession == null)
             throw new IllegalStateException("RTSP session non opened");
-        if (mUDPAudioPacketizer != null || mTCPAudioPacketizer != null)
+        if (mUDPAudioPacketizer != null || mTCPAudioPacketizer != null || mAudioGroup != null)
             throw new IllegalStateException("already configured");
-        mUDPAudioPacketizer = new UDPAudioPacketizer(this,
+        mUDPAudioPacketizer = new UDPAudioPacketizer(this, transport,
                 getInetAddress(), rtpPort, rtcpPort,
                 clockRate, mRTPSeq);
     }
@@ -420,6 +613,22 @@ public class StreamConnection extends TCPConnection {
         return mUDPAudioPacketizer != null ? mUDPAudioPacketizer.getRTCPLocalPort() : 0;
     }
 
+    /**
+     * Prepares the audio multicast streaming.<br>
+     * The packets are sent to the group by its shared sender, while the session is playing.
+     *
+     * @param group the multicast group of the audio track
+     * @throws IllegalStateException if the session is not opened or the stream is already playing
+     */
+    public synchronized void setupAudioMulticast(@NotNull MulticastGroup group)
+            throws IllegalStateException {
+        if (mRTSPSession == null)
+            throw new IllegalStateException("RTSP session non opened");
+        if (mUDPAudioPacketizer != null || mTCPAudioPacketizer != null || mAudioGroup != null)
+            throw new IllegalStateException("already configured");
+        mAudioGroup = group;
+    }
+
     /**
      * Prepares the audio TCP streaming.
      *
@@ -432,22 +641,93 @@ public class StreamConnection extends TCPConnection {
     public synchronized void setupAudioTCP(int clockRate, int rtpChannel, int rtcpChannel) throws IllegalStateException, SocketException {
         if (mRTSPSession == null)
             throw new IllegalStateException("RTSP session non opened");
-        if (mUDPAudioPacketizer != null || mTCPAudioPacketizer != null)
+        if (mUDPAudioPacketizer != null || mTCPAudioPacketizer != null || mAudioGroup != null)
             throw new IllegalStateException("already configured");
         mTCPAudioPacketizer = new TCPAudioPacketizer(this,
                 rtpChannel, rtcpChannel,
                 clockRate, mRTPSeq);
     }
 
+    /**
+     * Handles an interleaved binary frame received on the RTSP connection.<br>
+     * The RTCP packets of the client are passed to the receiver of their stream,
+     * the other frames are ignored.
+     *
+     * @param channel the frame channel
+     * @param data    the buffer that holds the frame
+     * @param length  the frame length
+     */
+    void onInterleavedFrame(int channel, byte[] data, int length) {
+        RTCPReceiver receiver = null;
+        synchronized (this) {
+            if (mTCPVideoPacketizer != null && mTCPVideoPacketizer.getRTCPChannel() == channel)
+                receiver = mTCPVideoPacketizer.getReceiver();
+            else if (mTCPAudioPacketizer != null && mTCPAudioPacketizer.getRTCPChannel() == channel)
+                receiver = mTCPAudioPacketizer.getReceiver();
+        }
+        if (receiver != null)
+            receiver.onPacket(data, 0, length, true);
+    }
+
+    /**
+     * @return the receiver of the video RTCP packets, null if the video is not set up
+     */
+    @Nullable
+    synchronized RTCPReceiver getVideoReceiver() {
+        if (mUDPVideoPacketizer != null)
+            return mUDPVideoPacketizer.getReceiver();
+        if (mTCPVideoPacketizer != null)
+            return mTCPVideoPacketizer.getReceiver();
+        return null;
+    }
+
+    /**
+     * @return the receiver of the audio RTCP packets, null if the audio is not set up
+     */
+    @Nullable
+    synchronized RTCPReceiver getAudioReceiver() {
+        if (mUDPAudioPacketizer != null)
+            return mUDPAudioPacketizer.getReceiver();
+        if (mTCPAudioPacketizer != null)
+            return mTCPAudioPacketizer.getReceiver();
+        return null;
+    }
+
+    /**
+     * Stops all the streams and closes the RTSP session, e.g. when the client sends an RTCP BYE.<br>
+     * Stopping the packetizers may take some time, it is done asynchronously so that the
+     * thread that receives the RTCP packets of all the sessions is not stalled.
+     */
+    @Override
+    public void teardownRTP() {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (StreamConnection.this) {
+                    stopRTP(1);
+                    stopRTP(2);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return true if a stream of the session is delivered by multicast
+     */
+    public boolean isMulticast() {
+        return mVideoGroup != null || mAudioGroup != null;
+    }
+
     /**
      * Starts playing the stream.
      *
      * @param stream the stream to start
      * @throws IllegalArgumentException if the specified {@code stream} is not valid
      * @throws IllegalStateException    if the session is not opened
+     * @throws IOException              if the multicast sender cannot be started
      */
     public synchronized void playRTP(int stream)
-            throws IllegalArgumentException, IllegalStateException {
+            throws IllegalArgumentException, IllegalStateException, IOException {
         if (stream != 1 && stream != 2)
             throw new IllegalArgumentException("Invalid stream index");
         if (mRTSPSession == null)
@@ -458,12 +738,16 @@ public class StreamConnection extends TCPConnection {
                     mTCPVideoPacketizer.start();
                 if (mUDPVideoPacketizer != null)
                     mUDPVideoPacketizer.start();
+                if (mVideoGroup != null)
+                    mVideoGroup.join(this);
                 break;
             case 2:
                 if (mTCPAudioPacketizer != null)
                     mTCPAudioPacketizer.start();
                 if (mUDPAudioPacketizer != null)
                     mUDPAudioPacketizer.start();
+                if (mAudioGroup != null)
+                    mAudioGroup.join(this);
                 break;
         }
     }
@@ -488,6 +772,10 @@ public class StreamConnection extends TCPConnection {
                     mTCPVideoPacketizer.close();
                     mTCPVideoPacketizer = null;
                 }
+                if (mVideoGroup != null) {
+                    mVideoGroup.leave(this);
+                    mVideoGroup = null;
+                }
                 break;
             case 2:
                 if (mUDPAudioPacketizer != null) {
@@ -498,10 +786,14 @@ public class StreamConnection extends TCPConnection {
                     mTCPAudioPacketizer.close();
                     mTCPAudioPacketizer = null;
                 }
+                if (mAudioGroup != null) {
+                    mAudioGroup.leave(this);
+                    mAudioGroup = null;
+                }
                 break;
         }
-        if (mUDPVideoPacketizer == null && mTCPVideoPacketizer == null &&
-                mUDPAudioPacketizer == null && mTCPAudioPacketizer == null) {
+        if (mUDPVideoPacketizer == null && mTCPVideoPacketizer == null && mVideoGroup == null &&
+                mUDPAudioPacketizer == null && mTCPAudioPacketizer == null && mAudioGroup == null) {
             closeRTSPSession();
         }
     }
@@ -0,0 +1,352 @@
+/*
+ * This file is part of spyNet Camera, the Android IP camera
+ *
+ * Copyright (C) 2016-2017 Paolo Dematteis
+ *
+ * spyNet Camera is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * spyNet Camera is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Paolo Dematteis - spynet314@gmail.com
+ */
+
+package com.spynet.camera.network;
+
+import com.spynet.camera.common.TimeStamp;
+
+import java.net.InetAddress;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Defines the process-wide streaming metrics, exported in the Prometheus text format.<br>
+ * The counters are updated on the streaming threads: the recording methods only use atomic
+ * operations and never allocate. The counters survive the server restarts.
+ */
+final class StreamMetrics {
+
+    // Stream types
+    static final int STREAM_MJPEG = 0;
+    static final int STREAM_H264 = 1;
+    static final int STREAM_AAC = 2;
+    private static final String[] STREAMS = {"mjpeg", "h264", "aac"};
+
+    // Drop reasons
+    static final int DROP_MJPEG_LAGGING = 0;            // A MJPEG client fell behind the ring
+    static final int DROP_H264_QUEUE_FULL = 1;          // The slice queue was full
+    static final int DROP_H264_DESYNCED = 2;            // Waiting for the next IDR
+    static final int DROP_H264_FLUSHED = 3;             // Queued slices discarded by an IDR
+    static final int DROP_H264_OVERRUN = 4;             // Lost before reaching the server
+    static final int DROP_AAC_QUEUE_FULL = 5;           // The audio queue was full
+    private static final String[] DROP_REASONS = {
+            "mjpeg_lagging", "h264_queue_full", "h264_desynced",
+            "h264_flushed", "h264_overrun", "aac_queue_full"
+    };
+
+    // Upper bounds of the latency histogram buckets in us, roughly logarithmic
+    private static final long[] LATENCY_BOUNDS = {
+            1000, 2000, 5000, 10000, 20000, 50000, 100000,
+            200000, 500000, 1000000, 2000000, 5000000
+    };
+
+    private static final StreamMetrics mInstance        // The process-wide metrics
+            = new StreamMetrics();                      //
+
+    private final AtomicLongArray mFramesIn;            // Frames received from the encoders, by stream
+    private final AtomicLongArray mFramesOut;           // Frames sent to the clients, by stream
+    private final AtomicLongArray mDrops;               // Dropped frames, by reason
+    private final AtomicLongArray mRTPPackets;          // RTP packets sent, by stream
+    private final AtomicLongArray mRTPOctets;           // RTP payload octets sent, by stream
+    private final AtomicLong mPacerQueued;              // Bytes passed through the RTP pacers
+    private final AtomicLong mPacerPaced;               // Bytes delayed by the RTP pacers
+    private final AtomicLong mNacks;                    // RTP packets reported lost by NACK
+    private final AtomicLong mRetransmissions;          // RTP packets retransmitted
+    private final AtomicLong mSocketWrites;             // Write calls on the TCP connections
+    private final AtomicLongArray mBitrateDecisions;    // Bitrate controller decisions, by type
+    private final AtomicLong mBitrateTarget;            // The H264 target bitrate in bps
+    private final Histogram[] mLatency;                 // Encoder to socket latency, by stream
+
+    /**
+     * Defines a histogram with fixed buckets.
+     */
+    private static final class Histogram {
+
+        private final AtomicLongArray mCounts;          // Samples in each bucket (not cumulative)
+        private final AtomicLong mSum;                  // Sum of the samples in us
+
+        Histogram() {
+            mCounts = new AtomicLongArray(LATENCY_BOUNDS.length + 1);
+            mSum = new AtomicLong();
+        }
+
+        void record(long value) {
+            int i = 0;
+            while (i < LATENCY_BOUNDS.length && value > LATENCY_BOUNDS[i])
+                i++;
+            mCounts.incrementAndGet(i);
+            mSum.addAndGet(value);
+        }
+    }
+
+    /**
+     * Creates a new StreamMetrics object.
+     */
+    private StreamMetrics() {
+        mFramesIn = new AtomicLongArray(STREAMS.length);
+        mFramesOut = new AtomicLongArray(STREAMS.length);
+        mDrops = new AtomicLongArray(DROP_REASONS.length);
+        mRTPPackets = new AtomicLongArray(STREAMS.length);
+        mRTPOctets = new AtomicLongArray(STREAMS.length);
+        mPacerQueued = new AtomicLong();
+        mPacerPaced = new AtomicLong();
+        mNacks = new AtomicLong();
+        mRetransmissions = new AtomicLong();
+        mSocketWrites = new AtomicLong();
+        mBitrateDecisions = new AtomicLongArray(BitrateController.DECISIONS.length);
+        mBitrateTarget = new AtomicLong();
+        mLatency = new Histogram[STREAMS.length];
+        for (int i = 0; i < mLatency.length; i++)
+            mLatency[i] = new Histogram();
+    }
+
+    /**
+     * @return the process-wide metrics
+     */
+    static StreamMetrics get() {
+        return mInstance;
+    }
+
+    /**
+     * Counts a frame received from the encoders.
+     *
+     * @param stream the stream type
+     */
+    void frameIn(int stream) {
+        mFramesIn.incrementAndGet(stream);
+    }
+
+    /**
+     * Counts a frame sent to a client and records its latency.
+     *
+     * @param stream    the stream type
+     * @param timestamp the frame timestamp in us ({@link TimeStamp}), -1 not to record the
+     *                  latency (e.g. replayed frames)
+     */
+    void frameOut(int stream, long timestamp) {
+        mFramesOut.incrementAndGet(stream);
+        if (timestamp >= 0) {
+            long latency = TimeStamp.getTimeStamp() - timestamp;
+            if (latency >= 0)
+                mLatency[stream].record(latency);
+        }
+    }
+
+    /**
+     * Counts some dropped frames.
+     *
+     * @param reason the drop reason
+     * @param count  the number of dropped frames
+     */
+    void drop(int reason, long count) {
+        mDrops.addAndGet(reason, count);
+    }
+
+    /**
+     * Counts some RTP packets sent.
+     *
+     * @param stream  the stream type
+     * @param packets the number of packets
+     * @param octets  the number of payload octets
+     */
+    void rtpSent(int stream, int packets, int octets) {
+        mRTPPackets.addAndGet(stream, packets);
+        mRTPOctets.addAndGet(stream, octets);
+    }
+
+    /**
+     * Counts the bytes handled by an RTP pacer.
+     *
+     * @param queued the bytes passed through the pacer
+     * @param paced  the bytes that had to wait for their tokens
+     */
+    void rtpPaced(long queued, long paced) {
+        mPacerQueued.addAndGet(queued);
+        mPacerPaced.addAndGet(paced);
+    }
+
+    /**
+     * Counts an RTP packet reported lost by a client NACK.
+     */
+    void rtpNack() {
+        mNacks.incrementAndGet();
+    }
+
+    /**
+     * Counts some RTP packets retransmitted.
+     *
+     * @param packets the number of packets
+     */
+    void rtpRetransmitted(int packets) {
+        mRetransmissions.addAndGet(packets);
+    }
+
+    /**
+     * Counts the write calls on a TCP connection.
+     *
+     * @param calls the number of calls
+     */
+    void socketWrites(int calls) {
+        mSocketWrites.addAndGet(calls);
+    }
+
+    /**
+     * @return the write calls on the TCP connections so far
+     */
+    long getSocketWrites() {
+        return mSocketWrites.get();
+    }
+
+    /**
+     * Counts a decision of the bitrate controller.
+     *
+     * @param decision the decision ({@link BitrateController#HOLD}...)
+     * @param target   the target bitrate in bps
+     */
+    void bitrateDecision(int decision, int target) {
+        mBitrateDecisions.incrementAndGet(decision);
+        mBitrateTarget.set(target);
+    }
+
+    /**
+     * Writes the metrics in the Prometheus text exposition format.
+     *
+     * @param connections the active connections, for the per connection metrics
+     * @return the metrics
+     */
+    String export(Iterable<StreamConnection> connections) {
+        StringBuilder sb = new StringBuilder(4096);
+        writeByStream(sb, "spynet_frames_in_total", "counter",
+                "Frames received from the encoders.", mFramesIn);
+        writeByStream(sb, "spynet_frames_out_total", "counter",
+                "Frames sent to the clients.", mFramesOut);
+        writeByStream(sb, "spynet_rtp_packets_total", "counter",
+                "RTP packets sent.", mRTPPackets);
+        writeByStream(sb, "spynet_rtp_octets_total", "counter",
+                "RTP payload octets sent.", mRTPOctets);
+        writeHeader(sb, "spynet_rtp_pacer_queued_bytes_total", "counter",
+                "Bytes passed through the RTP pacers.");
+        sb.append("spynet_rtp_pacer_queued_bytes_total ").append(mPacerQueued.get()).append('\n');
+        writeHeader(sb, "spynet_rtp_pacer_paced_bytes_total", "counter",
+                "Bytes delayed by the RTP pacers to smooth the bursts.");
+        sb.append("spynet_rtp_pacer_paced_bytes_total ").append(mPacerPaced.get()).append('\n');
+        writeHeader(sb, "spynet_rtp_nacks_total", "counter",
+                "RTP packets reported lost by the clients with a NACK.");
+        sb.append("spynet_rtp_nacks_total ").append(mNacks.get()).append('\n');
+        writeHeader(sb, "spynet_rtp_retransmissions_total", "counter",
+                "RTP packets retransmitted in reply to a NACK.");
+        sb.append("spynet_rtp_retransmissions_total ").append(mRetransmissions.get()).append('\n');
+        writeHeader(sb, "spynet_socket_writes_total", "counter",
+                "Write calls on the TCP connections, a gathering write counts once.");
+        sb.append("spynet_socket_writes_total ").append(mSocketWrites.get()).append('\n');
+        writeHeader(sb, "spynet_bitrate_decisions_total", "counter",
+                "Decisions of the H264 bitrate controller, by type.");
+        for (int i = 0; i < BitrateController.DECISIONS.length; i++) {
+            sb.append("spynet_bitrate_decisions_total{decision=\"").append(BitrateController.DECISIONS[i])
+                    .append("\"} ").append(mBitrateDecisions.get(i)).append('\n');
+        }
+        writeHeader(sb, "spynet_bitrate_target_bps", "gauge",
+                "Target bitrate chosen by the H264 bitrate controller.");
+        sb.append("spynet_bitrate_target_bps ").append(mBitrateTarget.get()).append('\n');
+        writeHeader(sb, "spynet_dropped_frames_total", "counter", "Frames dropped, by reason.");
+        for (int i = 0; i < DROP_REASONS.length; i++) {
+            sb.append("spynet_dropped_frames_total{reason=\"").append(DROP_REASONS[i])
+                    .append("\"} ").append(mDrops.get(i)).append('\n');
+        }
+        writeHeader(sb, "spynet_latency_seconds", "histogram",
+                "Time from the frame capture to the socket write.");
+        for (int i = 0; i < STREAMS.length; i++) {
+            Histogram h = mLatency[i];
+            long cumulative = 0;
+            for (int j = 0; j <= LATENCY_BOUNDS.length; j++) {
+                cumulative += h.mCounts.get(j);
+                sb.append("spynet_latency_seconds_bucket{stream=\"").append(STREAMS[i])
+                        .append("\",le=\"")
+                        .append(j < LATENCY_BOUNDS.length ? seconds(LATENCY_BOUNDS[j]) : "+Inf")
+                        .append("\"} ").append(cumulative).append('\n');
+            }
+            sb.append("spynet_latency_seconds_sum{stream=\"").append(STREAMS[i])
+                    .append("\"} ").append(seconds(h.mSum.get())).append('\n');
+            sb.append("spynet_latency_seconds_count{stream=\"").append(STREAMS[i])
+                    .append("\"} ").append(cumulative).append('\n');
+        }
+        writeHeader(sb, "spynet_connection_bytes_written_total", "counter",
+                "Bytes written to the connection socket.");
+        for (StreamConnection c : connections)
+            writeConnection(sb, "spynet_connection_bytes_written_total", c, null, c.getBytesWritten());
+        writeHeader(sb, "spynet_connection_dropped_frames_total", "counter",
+                "Frames dropped because the client is too slow.");
+        for (StreamConnection c : connections) {
+            writeConnection(sb, "spynet_connection_dropped_frames_total", c, "mjpeg", c.getDroppedFrames());
+            writeConnection(sb, "spynet_connection_dropped_frames_total", c, "h264", c.getDroppedSlices());
+            writeConnection(sb, "spynet_connection_dropped_frames_total", c, "aac", c.getDroppedAudio());
+        }
+        writeHeader(sb, "spynet_connection_queue_depth", "gauge",
+                "Frames waiting to be sent to the client.");
+        for (StreamConnection c : connections) {
+            writeConnection(sb, "spynet_connection_queue_depth", c, "h264", c.getSliceQueueDepth());
+            writeConnection(sb, "spynet_connection_queue_depth", c, "aac", c.getAudioQueueDepth());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writes the HELP and TYPE lines of a metric.
+     */
+    private static void writeHeader(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * Writes a metric with a sample for each stream type.
+     */
+    private static void writeByStream(StringBuilder sb, String name, String type, String help,
+                                      AtomicLongArray values) {
+        writeHeader(sb, name, type, help);
+        for (int i = 0; i < STREAMS.length; i++) {
+            sb.append(name).append("{stream=\"").append(STREAMS[i])
+                    .append("\"} ").append(values.get(i)).append('\n');
+        }
+    }
+
+    /**
+     * Writes a connection sample, labelled with the remote address and port.
+     */
+    private static void writeConnection(StringBuilder sb, String name, StreamConnection c,
+                                        String stream, long value) {
+        InetAddress address = c.getInetAddress();
+        sb.append(name).append("{connection=\"")
+                .append(address != null ? address.getHostAddress() : "0.0.0.0")
+                .append(':').append(c.getPort()).append('"');
+        if (stream != null)
+            sb.append(",stream=\"").append(stream).append('"');
+        sb.append("} ").append(value).append('\n');
+    }
+
+    /**
+     * Converts a time in us to seconds.
+     */
+    private static String seconds(long us) {
+        return String.format(Locale.US, "%.6f", us / 1000000.0);
+    }
+}
@@ -21,6 +21,7 @@
 
 package com.spynet.camera.network;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
@@ -32,10 +33,14 @@ import android.util.Base64;
 import android.util.Log;
 
 import com.google.firebase.crash.FirebaseCrash;
+import com.spynet.camera.common.BroadcastRing;
+import com.spynet.camera.common.TimeStamp;
 import com.spynet.camera.common.TimeoutCache;
 import com.spynet.camera.common.Utils;
 import com.spynet.camera.media.AudioData;
 import com.spynet.camera.media.ByteArrayInputBitStream;
+import com.spynet.camera.media.MJPEGVariant;
+import com.spynet.camera.media.MJPEGVariants;
 import com.spynet.camera.media.VideoFrame;
 import com.spynet.camera.network.DDNS.DDNSClient;
 import com.spynet.camera.network.DDNS.DNSdynamicClient;
@@ -51,21 +56,23 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
-import java.io.StringReader;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.net.SocketException;
 import java.net.SocketTimeoutException;
-import java.net.URI;
-import java.net.URISyntaxException;
-import java.net.URLConnection;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Defines the video server used to stream the encoded video to the remote players.
@@ -74,14 +81,15 @@ public class StreamServer
         implements
         Closeable,
         TCPListener.ListenerCallback,
-        StreamConnection.ConnectionCallback {
+        StreamConnection.ConnectionCallback,
+        SyncFrameArbiter.Callback {
 
     protected final String TAG = getClass().getSimpleName();
 
     // Socket timeout in milliseconds
     private static final int SOCKET_TIMEOUT = 5000;
-    // Socket read buffer size
-    private static final int SOCKET_READ_BUFFER = 1024;
+    // Max number of simultaneous connections, each one may hold a worker thread
+    private static final int MAX_CONNECTIONS = 32;
     // RTSP session timeout in seconds (declared)
     private static final int RTSP_SESSION_TIMEOUT = 30;
     // RTSP session timeout in seconds (effective, extra time to be safe)
@@ -92,11 +100,75 @@ public class StreamServer
     private static final long DDNS_UPDATE_DELAY = 30;
     // DDNS update period in seconds
     private static final long DDNS_UPDATE_PERIOD = 10 * 60;
+    // Number of JPEG frames kept for the MJPEG clients
+    private static final int MJPEG_RING_CAPACITY = 8;
+    // Timeout to wait for a JPEG frame in ms
+    private static final int MJPEG_READ_TIMEOUT = 5000;
+    // Header of each part of the MJPEG stream
+    private static final byte[] MJPEG_PART_HEADER = ("" +
+            "--jpegboundary\r\n" +
+            "Content-Type: image/jpeg\r\n" +
+            "\r\n").getBytes();
+    // Time the clients may use a snapshot without requesting it again, in seconds
+    private static final int SNAPSHOT_MAX_AGE = 1;
+    // Timeout to wait for a fresh snapshot in ms
+    private static final int SNAPSHOT_TIMEOUT = 5000;
+    // Period of the H264 bitrate adaptation in ms
+    private static final long BITRATE_UPDATE_PERIOD = 1000;
+    // Min H264 bitrate in bps, and as a fraction of the configured one
+    private static final int BITRATE_MIN = 100000;
+    private static final int BITRATE_MIN_RATIO = 4;
+    // Max number of slices kept in the GOP cache
+    private static final int GOP_CACHE_MAX_SLICES = 150;
+    // Max number of bytes kept in the GOP cache
+    private static final int GOP_CACHE_MAX_SIZE = 1024 * 1024;
+    // Time the browsers may use the static files without revalidating them, in seconds
+    private static final int ASSET_MAX_AGE = 24 * 60 * 60;
+    // Max time between two writes on an event stream in ms, before sending a keepalive
+    private static final long EVENTS_KEEPALIVE = 15000;
+    // Period to renew the location and sensors requests of an event stream in ms
+    private static final long EVENTS_RENEW_PERIOD = 10000;
+    // Min time between two updates on an event stream in ms, to coalesce the bursts
+    private static final long EVENTS_MIN_INTERVAL = 500;
+    // Period to refresh the live statistics of the status (bytes sent, drops...) in ms
+    private static final long EVENTS_STATS_PERIOD = 2000;
+    // Time the browsers wait before reconnecting a broken event stream in ms
+    private static final int EVENTS_RETRY = 5000;
 
     // List used to keep track of all the active connections
     private final ConcurrentLinkedQueue<StreamConnection> mConnections;
+    // Number of accepted connections not closed yet
+    private final AtomicInteger mConnectionCount;
     // Cache to store the POST-GET tunnel to handle RTSP over HTTP streaming
     private final TimeoutCache<String, StreamConnection> mTunnelCache;
+    // Ring shared by all the MJPEG clients, each one reading at its own pace
+    private final BroadcastRing<VideoFrame> mFrameRing;
+    // Rings of the MJPEG variants requested by the clients, by variant key
+    private final ConcurrentHashMap<String, BroadcastRing<VideoFrame>> mVariantRings;
+    // The last JPEG image, served as a snapshot
+    private final SnapshotCache mSnapshotCache;
+    // The slices of the current GOP, replayed to the new RTSP sessions
+    private final ArrayList<RTPSlice> mGOPCache;
+    // Arbiter that coalesces the sync frame requests of all the connections
+    private final SyncFrameArbiter mSyncArbiter;
+    // Controller that adapts the H264 bitrate to the feedback of the sessions
+    private final BitrateController mBitrateController;
+    // Thread that periodically runs the bitrate controller
+    private final ScheduledExecutorService mBitrateTimer;
+    // The static files of the web interface
+    private final AssetCache mAssetCache;
+    // Lock that guards the versions of the status and sensors events
+    private final Object mEventsLock;
+    // The open event streams, parked on the event loop between two updates
+    private final ConcurrentLinkedQueue<EventStream> mEventStreams;
+    // Thread that periodically checks the event streams for updates
+    private final ScheduledExecutorService mEventsTimer;
+    // Threads that write the updates, only busy while writing
+    private final ExecutorService mEventsWriter;
+    // Receiver that keeps the battery information up to date
+    private final BroadcastReceiver mBatteryReceiver;
+    // Callback that refreshes the status when a client host name is resolved
+    private final HostResolver.Callback mHostResolved;
 
     private final Context mContext;                 // The context that uses the StreamServer
     private final ConcurrentHashMap<Long, String>   // Thread-safe streams list
@@ -107,6 +179,13 @@ public class StreamServer
     private final String mCredentials;              // The authentication credentials
     private final DDNSClient mDDNSClient;           // The DDNS client
     private final PortMapper mPortMapper;           // The UPnP port mapper
+    private UDPTransport mVideoUDP;                 // The UDP sockets of the video track, created on demand
+    private UDPTransport mAudioUDP;                 // The UDP sockets of the audio track, created on demand
+    private final String mMulticastAddress;         // The multicast group address
+    private final int mMulticastPort;               // The first port of the multicast tracks
+    private final int mMulticastTTL;                // The time-to-live of the multicast packets
+    private volatile MulticastGroup mVideoMulticast; // The multicast video track, created on demand
+    private volatile MulticastGroup mAudioMulticast; // The multicast audio track, created on demand
     private StreamServerCallback mCallback;         // The callback to notify the client
     private volatile boolean mWiFiAvailable;        // Whether the WiFi is available
     private volatile boolean mMobileAvailable;      // Indicates that the mobile data is available
@@ -119,6 +198,39 @@ public class StreamServer
     private byte[] mAudioCfg;                       // Audio configuration
     private int mAudioFrequency;                    // Audio sampling rate
     private int mAudioChannels;                     // Audio channel configuration
+    private int mGOPCacheSize;                      // Number of bytes in the GOP cache
+    private volatile String mBatteryConnection;     // Battery connection ("unplugged", "USB", "AC", "unknown")
+    private volatile int mBatteryLevel;             // Battery level in %, -1 if unknown
+    private long mStatusVersion;                    // Incremented on every status change
+    private long mSensorsVersion;                   // Incremented on every sensors change
+    private String mStatusEvent;                    // The last status event data
+    private long mStatusEventVersion;               // The status version of mStatusEvent
+    private String mSensorsEvent;                   // The last sensors event data
+    private long mSensorsEventVersion;              // The sensors version of mSensorsEvent
+    private long mStatsRefresh;                     // Time of the last refresh of the live statistics
+
+    /**
+     * Defines the state of an event stream (Server-Sent Events).<br>
+     * Only one update is written at a time, the fields are accessed by the thread that holds
+     * the {@code busy} flag.
+     */
+    private static final class EventStream {
+        final TCPConnection connection;                 // The connection of the stream
+        final String gpsMode;                           // The location mode to keep requesting, null if none
+        final String sensors;                           // The sensors mode to keep requesting, null if none
+        final AtomicBoolean busy = new AtomicBoolean(); // Whether an update is being written
+        long statusVersion = -1;                        // The status version sent so far
+        long sensorsVersion = -1;                       // The sensors version sent so far
+        long lastRenew = 0;                             // Time of the last location and sensors request
+        long lastWrite;                                 // Time of the last write
+
+        EventStream(TCPConnection connection, String gpsMode, String sensors) {
+            this.connection = connection;
+            this.gpsMode = gpsMode;
+            this.sensors = sensors;
+            this.lastWrite = System.currentTimeMillis();
+        }
+    }
 
     /**
      * Defines the interface that the client has to implement to handle server events.
@@ -174,9 +286,22 @@ public class StreamServer
         } else {
             mCredentials = null;
         }
+        mMulticastAddress = SettingsActivity.getServerMulticastAddress(mContext);
+        mMulticastPort = SettingsActivity.getServerMulticastPort(mContext);
+        mMulticastTTL = SettingsActivity.getServerMulticastTTL(mContext);
         // Setup the server
         mConnections = new ConcurrentLinkedQueue<>();
+        mConnectionCount = new AtomicInteger();
         mTunnelCache = new TimeoutCache<>();
+        mFrameRing = new BroadcastRing<>(MJPEG_RING_CAPACITY);
+        mVariantRings = new ConcurrentHashMap<>();
+        mSnapshotCache = new SnapshotCache();
+        mGOPCache = new ArrayList<>();
+        mSyncArbiter = new SyncFrameArbiter(this);
+        int bitrate = SettingsActivity.getH264Bitrate(mContext);
+        mBitrateController = new BitrateController(
+                Math.max(BITRATE_MIN, bitrate / BITRATE_MIN_RATIO), bitrate);
+        mAssetCache = new AssetCache(mContext, "www");
         mStreams = new ConcurrentHashMap<>();
         mTcpListener = new TCPListener(port, this);
         // Setup the sensors table
@@ -185,6 +310,28 @@ public class StreamServer
         mSensors.put(Sensor.TYPE_RELATIVE_HUMIDITY, 9999.0f);
         mSensors.put(Sensor.TYPE_PRESSURE, 9999.0f);
         mSensors.put(Sensor.TYPE_LIGHT, 9999.0f);
+        // Setup the battery receiver, the sticky intent provides the current state
+        mEventsLock = new Object();
+        mEventStreams = new ConcurrentLinkedQueue<>();
+        mEventsWriter = Executors.newCachedThreadPool();
+        mBatteryConnection = "unknown";
+        mBatteryLevel = -1;
+        mBatteryReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                updateBattery(intent);
+            }
+        };
+        Intent batteryStatus = mContext.registerReceiver(mBatteryReceiver,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (batteryStatus != null)
+            updateBattery(batteryStatus);
+        mHostResolved = new HostResolver.Callback() {
+            @Override
+            public void onHostResolved(InetAddress address, String hostName) {
+                statusChanged();
+            }
+        };
         // Setup the DDNS client
         if (SettingsActivity.getServerUpdateDDNS(mContext)) {
             String hostname = SettingsActivity.getServerDDNSHostname(mContext);
@@ -218,6 +365,21 @@ public class StreamServer
         } else {
             mPortMapper = null;
         }
+        // Start the timers last, nothing would stop them if the listener could not be bound
+        mBitrateTimer = Executors.newSingleThreadScheduledExecutor();
+        mBitrateTimer.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                adaptBitrate();
+            }
+        }, BITRATE_UPDATE_PERIOD, BITRATE_UPDATE_PERIOD, TimeUnit.MILLISECONDS);
+        mEventsTimer = Executors.newSingleThreadScheduledExecutor();
+        mEventsTimer.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                updateEvents();
+            }
+        }, EVENTS_MIN_INTERVAL, EVENTS_MIN_INTERVAL, TimeUnit.MILLISECONDS);
     }
 
     /**
@@ -227,19 +389,100 @@ public class StreamServer
     public void close() {
         mTcpListener.close();
         mTunnelCache.close();
+        mSyncArbiter.close();
+        mBitrateTimer.shutdownNow();
+        mEventsTimer.shutdownNow();
+        mEventsWriter.shutdownNow();
+        try {
+            mContext.unregisterReceiver(mBatteryReceiver);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "battery receiver not registered");
+        }
         for (StreamConnection c : mConnections)
             c.close();
         if (mDDNSClient != null)
             mDDNSClient.close();
         if (mPortMapper != null)
             mPortMapper.close();
+        synchronized (this) {
+            if (mVideoUDP != null)
+                mVideoUDP.close();
+            if (mAudioUDP != null)
+                mAudioUDP.close();
+            if (mVideoMulticast != null)
+                mVideoMulticast.close();
+            if (mAudioMulticast != null)
+                mAudioMulticast.close();
+        }
+    }
+
+    /**
+     * @return the UDP sockets of the video track, shared by all the sessions
+     * @throws IOException if the sockets cannot be bound
+     */
+    private synchronized UDPTransport getVideoUDP() throws IOException {
+        if (mVideoUDP == null)
+            mVideoUDP = new UDPTransport("video");
+        return mVideoUDP;
+    }
+
+    /**
+     * @return the UDP sockets of the audio track, shared by all the sessions
+     * @throws IOException if the sockets cannot be bound
+     */
+    private synchronized UDPTransport getAudioUDP() throws IOException {
+        if (mAudioUDP == null)
+            mAudioUDP = new UDPTransport("audio");
+        return mAudioUDP;
+    }
+
+    /**
+     * @return the multicast video track, shared by all the sessions
+     * @throws IOException if the group address is not valid
+     */
+    private synchronized MulticastGroup getVideoMulticast() throws IOException {
+        if (mVideoMulticast == null)
+            mVideoMulticast = new MulticastGroup("video", true,
+                    getMulticastAddress(), mMulticastPort, mMulticastTTL, 90000);
+        return mVideoMulticast;
+    }
+
+    /**
+     * @return the multicast audio track, shared by all the sessions
+     * @throws IOException if the group address is not valid
+     */
+    private synchronized MulticastGroup getAudioMulticast() throws IOException {
+        // The sampling rate may change when the recorder restarts
+        if (mAudioMulticast != null && mAudioMulticast.getClockRate() != mAudioFrequency &&
+                mAudioMulticast.getMembers() == 0) {
+            mAudioMulticast.close();
+            mAudioMulticast = null;
+        }
+        if (mAudioMulticast == null)
+            mAudioMulticast = new MulticastGroup("audio", false,
+                    getMulticastAddress(), mMulticastPort + 2, mMulticastTTL, mAudioFrequency);
+        return mAudioMulticast;
+    }
+
+    /**
+     * @return the multicast group address
+     * @throws IOException if the configured address is not a multicast one
+     */
+    private InetAddress getMulticastAddress() throws IOException {
+        InetAddress address = InetAddress.getByName(mMulticastAddress);
+        if (!address.isMulticastAddress())
+            throw new IOException(mMulticastAddress + " is not a multicast address");
+        return address;
     }
 
     /**
      * Sets the WiFi availability flag.
      */
     public void setWiFiAvailable(boolean available) {
-        mWiFiAvailable = available;
+        if (mWiFiAvailable != available) {
+            mWiFiAvailable = available;
+            statusChanged();
+        }
         setupDDNSClient();
     }
 
@@ -247,7 +490,10 @@ public class StreamServer
      * Sets the mobile data availability flag.
      */
     public void setMobileAvailable(boolean available) {
-        mMobileAvailable = available;
+        if (mMobileAvailable != available) {
+            mMobileAvailable = available;
+            statusChanged();
+        }
         setupDDNSClient();
     }
 
@@ -273,41 +519,105 @@ public class StreamServer
      * Sets the H264 availability flag.
      */
     public void setH264Available(boolean available) {
-        mH264Available = available;
+        if (mH264Available != available) {
+            mH264Available = available;
+            statusChanged();
+        }
     }
 
     /**
      * Sets the audio availability flag.
      */
     public void setAudioAvailable(boolean available) {
-        mAudioAvailable = available;
+        if (mAudioAvailable != available) {
+            mAudioAvailable = available;
+            statusChanged();
+        }
     }
 
     /**
      * Sets the torch on flag.
      */
     public void setTorch(boolean state) {
-        mTorchOn = state;
+        if (mTorchOn != state) {
+            mTorchOn = state;
+            sensorsChanged();
+        }
     }
 
     /**
      * Sets the last known location.
      */
-    public synchronized void setLocation(Location location) {
-        mLastLocation = location;
+    public void setLocation(Location location) {
+        synchronized (this) {
+            mLastLocation = location;
+        }
+        statusChanged();
     }
 
     /**
      * Sets the value for a sensor.
      */
-    public synchronized void setSensor(int type, float value) {
-        if (mSensors.containsKey(type))
+    public void setSensor(int type, float value) {
+        Float previous = mSensors.get(type);
+        if (previous != null && previous != value) {
             mSensors.put(type, value);
+            sensorsChanged();
+        }
+    }
+
+    /**
+     * Updates the battery information from an ACTION_BATTERY_CHANGED intent.
+     */
+    private void updateBattery(Intent batteryStatus) {
+        String batteryCharge;
+        int status = batteryStatus.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+        boolean isCharging = status == BatteryManager.BATTERY_STATUS_CHARGING ||
+                status == BatteryManager.BATTERY_STATUS_FULL;
+        if (isCharging) {
+            int chargePlug = batteryStatus.getIntExtra(BatteryManager.EXTRA_PLUGGED, -1);
+            if (chargePlug == BatteryManager.BATTERY_PLUGGED_USB)
+                batteryCharge = "USB";
+            else if (chargePlug == BatteryManager.BATTERY_PLUGGED_AC)
+                batteryCharge = "AC";
+            else
+                batteryCharge = "unknown";
+        } else {
+            batteryCharge = "unplugged";
+        }
+        int level = batteryStatus.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = batteryStatus.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        int batteryPct = scale > 0 ? (int) (level * 100.0f / (float) scale) : -1;
+        // The intent is broadcast also on voltage and temperature changes
+        if (!batteryCharge.equals(mBatteryConnection) || batteryPct != mBatteryLevel) {
+            mBatteryConnection = batteryCharge;
+            mBatteryLevel = batteryPct;
+            sensorsChanged();
+        }
+    }
+
+    /**
+     * Notifies a status change to the event streams.
+     */
+    private void statusChanged() {
+        synchronized (mEventsLock) {
+            mStatusVersion++;
+        }
+    }
+
+    /**
+     * Notifies a sensors change to the event streams.
+     */
+    private void sensorsChanged() {
+        synchronized (mEventsLock) {
+            mSensorsVersion++;
+        }
     }
 
     /**
      * Pushes a video data frame to all the active connections.<br>
-     * Saves SPS and PPS locally for later use.
+     * Saves SPS and PPS locally for later use.<br>
+     * JPEG frames are published once to the ring read by all the MJPEG clients of their variant.
      *
      * @param frame the video frame
      * @throws InterruptedException if interrupted while waiting
@@ -327,10 +637,77 @@ public class StreamServer
                     }
                 }
             }
-        } else {
-            // Forward to all the opened connections
+        } else if (frame.isJPEG()) {
+            // Publish to the MJPEG clients, it doesn't wait for them
+            StreamMetrics.get().frameIn(StreamMetrics.STREAM_MJPEG);
+            if (frame.getKey() == null) {
+                mFrameRing.publish(frame);
+                mSnapshotCache.update(frame);
+            } else {
+                BroadcastRing<VideoFrame> ring = mVariantRings.get(frame.getKey());
+                if (ring != null)
+                    ring.publish(frame);
+            }
+        } else if (frame.isH264()) {
+            // Forward to all the opened connections, sharing the packetization
+            StreamMetrics.get().frameIn(StreamMetrics.STREAM_H264);
+            RTPSlice slice = new RTPSlice(frame);
+            mSyncArbiter.onSlice(slice.isIDR());
+            MulticastGroup group = mVideoMulticast;
+            synchronized (mGOPCache) {
+                cacheSlice(slice);
+                for (StreamConnection c : mConnections)
+                    c.push(slice);
+                if (group != null)
+                    group.push(slice);
+            }
+        }
+    }
+
+    /**
+     * Notifies that some H264 slices have been lost before reaching the server.<br>
+     * The current GOP is no longer decodable: the cache is emptied and all the connections
+     * skip to the next IDR, that is requested.
+     *
+     * @param count the number of lost slices
+     */
+    public void onVideoOverrun(long count) {
+        StreamMetrics.get().drop(StreamMetrics.DROP_H264_OVERRUN, count);
+        synchronized (mGOPCache) {
+            mGOPCache.clear();
+            mGOPCacheSize = 0;
             for (StreamConnection c : mConnections)
-                c.push(frame);
+                c.desync();
+            MulticastGroup group = mVideoMulticast;
+            if (group != null)
+                group.desync();
+        }
+        mSyncArbiter.request();
+    }
+
+    /**
+     * Adds a slice to the GOP cache.<br>
+     * The cache starts with the last IDR picture, it is emptied if it grows too much and then
+     * remains empty until the next IDR. The caller must hold the cache lock.
+     */
+    private void cacheSlice(RTPSlice slice) {
+        if (slice.isIDR()) {
+            // A new IDR picture (that may be made of several slices) starts a new GOP
+            int last = mGOPCache.size() - 1;
+            if (last < 0 || !mGOPCache.get(last).isIDR() ||
+                    mGOPCache.get(last).getFrame().getTimestamp() != slice.getFrame().getTimestamp()) {
+                mGOPCache.clear();
+                mGOPCacheSize = 0;
+            }
+        } else if (mGOPCache.isEmpty()) {
+            return;
+        }
+        mGOPCache.add(slice);
+        mGOPCacheSize += slice.getFrame().getData().length;
+        if (mGOPCache.size() > GOP_CACHE_MAX_SLICES || mGOPCacheSize > GOP_CACHE_MAX_SIZE) {
+            Log.v(TAG, "GOP too long, cannot be cached");
+            mGOPCache.clear();
+            mGOPCacheSize = 0;
         }
     }
 
@@ -371,53 +748,89 @@ public class StreamServer
             }
         } else {
             // Forward to all the opened connections
+            StreamMetrics.get().frameIn(StreamMetrics.STREAM_AAC);
             for (StreamConnection c : mConnections) {
                 c.push(data);
             }
+            MulticastGroup group = mAudioMulticast;
+            if (group != null)
+                group.push(data);
         }
     }
 
     @Override
     public void onNewConnection(TCPListener listener, Socket socket) throws IOException {
+        // Reject the connections over the limit, the streams hold their thread
+        if (mConnectionCount.incrementAndGet() > MAX_CONNECTIONS) {
+            mConnectionCount.decrementAndGet();
+            Log.w(TAG, "too many connections, rejecting " + socket.toString());
+            socket.close();
+            return;
+        }
         // Create a new StreamConnection wrapped around the accepted socket
-        new StreamConnection(socket, this, null);
+        try {
+            new StreamConnection(socket, this, null);
+        } catch (IOException e) {
+            mConnectionCount.decrementAndGet();
+            socket.close();
+            throw e;
+        }
     }
 
     @Override
     public void onConnectionOpened(TCPConnection connection) {
         StreamConnection c = (StreamConnection) connection;
         mConnections.add(c);
+        // Set the default socket timeout so that the connection will shutdown
+        // if there's no client activity
+        try {
+            c.setTimeout(SOCKET_TIMEOUT);
+        } catch (SocketException e) {
+            Log.e(TAG, "cannot set the connection timeout", e);
+        }
     }
 
     @Override
     public void handleConnection(TCPConnection connection)
             throws IOException {
 
-        String rtspSessionCookie = null;                    // Session cookie for RTSP over HTTP
+        StreamConnection sc = (StreamConnection) connection;
+        RequestParser parser = sc.getRequestParser();       // The connection request parser
+        String rtspSessionCookie = sc.getTunnelCookie();    // Session cookie for RTSP over HTTP
         String[] request;                                   // {method, URL, protocol}
         String url;                                         // Requested URL
-        HashMap<String, String> headers = new HashMap<>();  // Headers (key-value pairs)
-        HashMap<String, String> query = new HashMap<>();    // Query (key-value pairs)
         byte[] body;                                        // Request body
         int bodyLength;                                     // The length of the body content
 
-        // Set the default socket timeout so that the connection will shutdown
-        // if there's no client activity
-        connection.setTimeout(SOCKET_TIMEOUT);
-
         while (true) {
 
+            // Release the thread while waiting for the next request,
+            // the connection will be handled again when new data is available
+            if (!parser.hasPendingInput(connection)) {
+                connection.keepAlive();
+                return;
+            }
+
             // Read the request
             try {
-                headers.clear();
-                if (rtspSessionCookie != null)
-                    request = getBase64Request(connection, headers);
-                else
-                    request = getRequest(connection, headers);
-                if (request == null)
+                if (!parser.next(connection, rtspSessionCookie != null))
                     return;
-                if (request[0] == null)
+                request = parser.getRequestLine();
+                if (request[0] == null) {
+                    // Interleaved frame, the RTCP packets are passed to the RTSP session
+                    if (parser.getFrameChannel() >= 0) {
+                        StreamConnection c = sc;
+                        if (rtspSessionCookie != null)
+                            c = mTunnelCache.get(rtspSessionCookie);
+                        if (c != null) {
+                            // Reused for all the frames read on this connection
+                            byte[] frame = sc.getFrameBuffer();
+                            int length = parser.readFrame(connection, frame);
+                            c.onInterleavedFrame(parser.getFrameChannel(), frame, length);
+                        }
+                    }
                     continue;
+                }
                 Log.v(TAG, "request: " + request[0] + " " + request[1] + " " + request[2] +
                         " on socket " + connection.toString());
             } catch (SocketTimeoutException e) {
@@ -425,43 +838,34 @@ public class StreamServer
             }
 
             // Parse the request
-            if ((url = parseRequest(request[1], query)) == null) {
+            if ((url = RequestParser.getPath(request[1])) == null) {
                 sendErrorReply(connection, "HTTP/1.1", 400, "Bad Request");
                 return;
             }
 
             // Handle authentication
             if (mCredentials != null) {
-                String authentication = headers.get("authorization");
-                if (authentication == null) {
+                String authentication = parser.getHeader("authorization");
+                if (authentication == null ||
+                        authentication.length() != 6 + mCredentials.length() ||
+                        !authentication.startsWith("Basic ") ||
+                        !authentication.endsWith(mCredentials)) {
                     sendUnauthorizedReply(connection, request[2]);
                     continue;
-                } else {
-                    boolean authorized = false;
-                    String[] parts = authentication.split(" ");
-                    if (parts.length == 2) {
-                        if (parts[0].equals("Basic") && parts[1].equals(mCredentials)) {
-                            authorized = true;
-                        }
-                    }
-                    if (!authorized) {
-                        sendUnauthorizedReply(connection, request[2]);
-                        continue;
-                    }
                 }
             }
 
             // Store the user-agent
-            if (headers.containsKey("user-agent")) {
-                connection.setUserAgent(headers.get("user-agent"));
+            if (parser.getHeader("user-agent") != null) {
+                connection.setUserAgent(parser.getHeader("user-agent"));
             }
 
             // Read the content to flush the input stream
             // Note: 32767 is the dummy size of the RTSP over HTTP POST request content
-            int contentLength = Utils.tryParseInt(headers.get("content-length"), 0);
+            int contentLength = Utils.tryParseInt(parser.getHeader("content-length"), 0);
             if (contentLength > 0 && contentLength != 32767) {
                 body = new byte[contentLength];
-                bodyLength = connection.read(body);
+                bodyLength = parser.readBody(connection, body);
                 Log.v(TAG, "Content-Length = " + contentLength + ", read = " + bodyLength);
             } else {
                 body = null;
@@ -502,6 +906,15 @@ public class StreamServer
                 case "/live/0/mjpeg.sdp":
                     url = "/video/mjpeg";
                     break;
+                case "/snapshot":
+                case "/snapshot.cgi":
+                case "/image.jpg":
+                case "/shot.jpg":
+                case "/jpg/image.jpg":
+                case "/axis-cgi/jpg/image.cgi":
+                case "/cgi-bin/snapshot.cgi":
+                    url = "/snapshot.jpg";
+                    break;
             }
 
             // Serve the request
@@ -519,7 +932,7 @@ public class StreamServer
                                 // using both the CR or the CRLF terminator, or on the same line, using the
                                 // query syntax command1=value1&command2=value2
                                 case "/control":
-                                    String contentType = headers.get("content-type");
+                                    String contentType = parser.getHeader("content-type");
                                     if (contentType == null || !contentType.contains("text/plain")) {
                                         sendErrorReply(connection, request[2], 400, "Bad Request");
                                         return;
@@ -536,7 +949,7 @@ public class StreamServer
                                             for (String cmd : commands) {
                                                 String[] parts = cmd.split("=");
                                                 if (parts.length == 2) {
-                                                    mCallback.onControlRequest(
+                                                    onControlRequest(null,
                                                             parts[0].trim().toLowerCase(),
                                                             parts[1].trim());
                                                 }
@@ -548,11 +961,12 @@ public class StreamServer
                                 // H264 stream (RTSP over HTTP, POST request)
                                 // The POST request is never replied to by the server
                                 case "/video/h264":
-                                    rtspSessionCookie = headers.get("x-sessioncookie");
+                                    rtspSessionCookie = parser.getHeader("x-sessioncookie");
                                     if (rtspSessionCookie == null)
                                         return;
                                     if (mTunnelCache.get(rtspSessionCookie) == null)
                                         return;
+                                    sc.setTunnelCookie(rtspSessionCookie);
                                     connection.setTimeout(RTSP_SAFE_TIMEOUT * 1000);
                                     break;
                                 // Unknown resource
@@ -565,14 +979,26 @@ public class StreamServer
                             switch (url) {
                                 // Debug information
                                 case "/status":
-                                    String gpsMode = headers.get("gps-mode");
+                                    String gpsMode = parser.getHeader("gps-mode");
                                     if (gpsMode != null && mCallback != null)
                                         mCallback.onControlRequest("gps-mode", gpsMode);
                                     sendStatusInfos(connection);
                                     return;
+                                // Status and sensors push channel (Server-Sent Events)
+                                // The connection is parked, the updates are written by the events timer
+                                case "/events":
+                                    startEvents(connection,
+                                            RequestParser.getQueryParameter(request[1], "gps-mode"),
+                                            RequestParser.getQueryParameter(request[1], "sensors"));
+                                    connection.keepAlive();
+                                    return;
+                                // Streaming metrics (Prometheus text format)
+                                case "/metrics":
+                                    sendMetrics(connection);
+                                    return;
                                 // Sensors information
                                 case "/sensors":
-                                    String sensors = headers.get("sensors");
+                                    String sensors = parser.getHeader("sensors");
                                     if (sensors != null && mCallback != null)
                                         mCallback.onControlRequest("sensors", sensors);
                                     sendSensorsInfos(connection);
@@ -585,47 +1011,51 @@ public class StreamServer
                                 case "/audio":
                                     sendAudioList(connection);
                                     return;
-                                // JPEG stream (quality, fps)
+                                // JPEG stream (fps, quality, scale)
                                 case "/video/mjpeg":
                                     if (!canStream(url)) {
                                         sendErrorReply(connection, request[2], 503, "Service Unavailable");
                                         return;
                                     }
-                                    sendMJPEGStream((StreamConnection) connection, query.get("fps"));
+                                    sendMJPEGStream((StreamConnection) connection,
+                                            RequestParser.getQueryParameter(request[1], "fps"),
+                                            RequestParser.getQueryParameter(request[1], "quality"),
+                                            RequestParser.getQueryParameter(request[1], "scale"));
                                     return;
+                                // Last JPEG image
+                                case "/snapshot.jpg":
+                                    sendSnapshot(connection, parser);
+                                    if (isPersistent(parser, request[2]))
+                                        break;
+                                    else
+                                        return;
                                 // H264 stream (RTSP over HTTP, GET connection)
                                 case "/video/h264":
                                     if (!canStream(url)) {
                                         sendErrorReply(connection, request[2], 503, "Service Unavailable");
                                         return;
                                     }
-                                    rtspSessionCookie = headers.get("x-sessioncookie");
+                                    rtspSessionCookie = parser.getHeader("x-sessioncookie");
                                     if (rtspSessionCookie == null) {
                                         sendErrorReply(connection, "HTTP/1.1", 400, "Bad Request");
                                         return;
                                     }
-                                    rtspOverHttpOk((StreamConnection) connection);
-                                    mTunnelCache.put(rtspSessionCookie,
-                                            (StreamConnection) connection, RTSP_SAFE_TIMEOUT);
-                                    while (mTunnelCache.get(rtspSessionCookie) != null) {
-                                        // The streaming is controlled by the POST connection
-                                        // that uses this connection's output stream to send
-                                        // RTP packets and RTSP responses.
-                                        // The cache is controlled by the POST connection as well.
-                                        try {
-                                            Thread.sleep(1000);
-                                        } catch (InterruptedException e) {
-                                            return;
-                                        }
-                                    }
+                                    rtspOverHttpOk(sc);
+                                    mTunnelCache.put(rtspSessionCookie, sc, RTSP_SAFE_TIMEOUT);
+                                    // The streaming is controlled by the POST connection
+                                    // that uses this connection's output stream to send
+                                    // RTP packets and RTSP responses.
+                                    // The POST connection keeps this connection alive until
+                                    // the session is torn down or stays idle too long.
+                                    connection.setTimeout(RTSP_SAFE_TIMEOUT * 1000);
+                                    connection.keepAlive();
                                     return;
                                 // Other files from assets/www
                                 default:
                                     if (url.equals("/"))
                                         url += "index.html";
-                                    sendFile(connection, url);
-                                    String connectionType = headers.get("connection");
-                                    if (connectionType != null && connectionType.equals("keep-alive"))
+                                    sendFile(connection, url, parser);
+                                    if (isPersistent(parser, request[2]))
                                         break;
                                     else
                                         return;
@@ -641,8 +1071,9 @@ public class StreamServer
                         if ((c = mTunnelCache.get(rtspSessionCookie)) == null)
                             return;
                         mTunnelCache.put(rtspSessionCookie, c, RTSP_SAFE_TIMEOUT);
+                        c.touch();
                     }
-                    int seq = Utils.tryParseInt(headers.get("cseq"), 1);
+                    int seq = Utils.tryParseInt(parser.getHeader("cseq"), 1);
 
                     switch (request[0]) {
                         case "OPTIONS":
@@ -656,19 +1087,20 @@ public class StreamServer
                                 sendErrorReply(c, request[2], 503, "Service Unavailable");
                                 return;
                             }
-                            rtspSetup(c, url, seq, headers.get("transport"));
+                            rtspSetup(c, url, seq, parser.getHeader("transport"));
                             break;
                         case "PLAY":
-                            rtspPlay(c, url, seq, headers.get("session"));
+                            rtspPlay(c, url, seq, parser.getHeader("session"));
                             break;
                         case "GET_PARAMETER":
-                            rtspGetParameters(c, url, seq, headers.get("session"));
+                            rtspGetParameters(c, url, seq, parser.getHeader("session"));
                             break;
                         case "TEARDOWN":
-                            rtspTeardown(c, url, seq, headers.get("session"));
+                            rtspTeardown(c, url, seq, parser.getHeader("session"));
                             if (rtspSessionCookie != null) {
-                                // This will shutdown the GET connection
+                                // Shutdown the GET connection
                                 mTunnelCache.remove(rtspSessionCookie);
+                                c.close();
                             }
                             break;
                         default:
@@ -687,7 +1119,16 @@ public class StreamServer
 
     @Override
     public void onStreamStarted(StreamConnection connection, String type, long id) {
+        if (type.equals(StreamConnection.TYPE_H264) && !connection.isMulticast()) {
+            // Hand the current GOP over to the new session, the live slices
+            // queued so far are already in the cache
+            synchronized (mGOPCache) {
+                connection.clearSlices();
+                connection.setPreroll(new ArrayList<>(mGOPCache));
+            }
+        }
         mStreams.putIfAbsent(id, type);
+        statusChanged();
         if (mCallback != null)
             mCallback.onStreamStarted(connection.getInetAddress(), connection.getUserAgent(), type, id);
         Log.v(TAG, "stream started on connection " + connection.toString());
@@ -696,6 +1137,7 @@ public class StreamServer
     @Override
     public void onStreamStopped(StreamConnection connection, String type, long id) {
         mStreams.remove(id);
+        statusChanged();
         if (mCallback != null)
             mCallback.onStreamStopped(connection.getInetAddress(), connection.getUserAgent(), type, id);
         Log.v(TAG, "stream stopped on connection " + connection.toString());
@@ -703,14 +1145,60 @@ public class StreamServer
 
     @Override
     public void onControlRequest(StreamConnection connection, String action, String params) {
-        if (mCallback != null)
+        // Sync frames are requested by many connections at once, let the arbiter coalesce them
+        if (action.equals("video-sync") && params.equals("send")) {
+            mSyncArbiter.request();
+        } else if (mCallback != null) {
             mCallback.onControlRequest(action, params);
+        }
+    }
+
+    @Override
+    public void onSyncFrameRequest() {
+        if (mCallback != null)
+            mCallback.onControlRequest("video-sync", "send");
+    }
+
+    /**
+     * Feeds the bitrate controller with the feedback of the H264 sessions,
+     * and applies its decision. Called on the bitrate timer thread.
+     */
+    private void adaptBitrate() {
+        try {
+            for (StreamConnection c : mConnections) {
+                if (!c.isStreamingH264())
+                    continue;
+                RTCPReceiver receiver = c.getVideoReceiver();
+                if (receiver != null) {
+                    mBitrateController.report(c, receiver.getReports(), receiver.getFractionLost(),
+                            receiver.getRTT(), receiver.getJitter(), c.getSliceQueueDepth());
+                } else {
+                    mBitrateController.report(c, 0, 0, -1, 0, c.getSliceQueueDepth());
+                }
+            }
+            int decision = mBitrateController.update(System.currentTimeMillis());
+            int target = mBitrateController.getTarget();
+            StreamMetrics.get().bitrateDecision(decision, target);
+            if (decision != BitrateController.HOLD) {
+                Log.d(TAG, "H264 bitrate " + BitrateController.DECISIONS[decision] + " to " + target);
+                if (mCallback != null)
+                    mCallback.onControlRequest("video-bitrate", String.valueOf(target));
+            }
+        } catch (Exception e) {
+            FirebaseCrash.report(e);
+            Log.e(TAG, "unexpected exception while adapting the bitrate", e);
+        }
     }
 
     @Override
     public void onConnectionClosed(TCPConnection connection) {
         StreamConnection c = (StreamConnection) connection;
         mConnections.remove(c);
+        mConnectionCount.decrementAndGet();
+        for (EventStream stream : mEventStreams) {
+            if (stream.connection == connection && mEventStreams.remove(stream))
+                Log.v(TAG, "event stream stopped on connection " + connection.toString());
+        }
     }
 
     /**
@@ -737,141 +1225,15 @@ public class StreamServer
     }
 
     /**
-     * Helper to read the client request.
-     *
-     * @param connection the TCPConnection to read from
-     * @param headers    the HashMap that will be filled with the key-value pairs from the headers,
-     *                   pass mull to ignore
-     * @return a three-element String array that contains the method, the URL and the protocol,
-     * null on error, {null, null, null} if the request should be ignored
+     * @return true if the connection has to be kept open after the reply;
+     * HTTP/1.1 connections are persistent unless the client closes them
      */
-    @Nullable
-    private String[] getRequest(TCPConnection connection,
-                                @Nullable HashMap<String, String> headers)
-            throws IOException {
-
-        byte[] buffer = new byte[SOCKET_READ_BUFFER];
-        String request, line;
-        int read;
-
-        // Read some bytes of the request so that we can determine which type it is
-        if (connection.read(buffer, 0, 4) < 4)
-            return null;
-
-        // If we received an interleaved packet just drop it
-        // (RTCP over RTSP - see RFC 2326, session 10.12)
-        if (buffer[0] == '$') {
-            int size = ((int) buffer[2] << 8) + (int) buffer[3];
-            read = 0;
-            while (read < size)
-                read += connection.read(buffer, 0, size - read);
-            return new String[]{null, null, null};
-        }
-
-        // Read the request line
-        request = new String(buffer, 0, 4);
-        request = request.concat(connection.readLine());
-
-        // Read the headers
-        while (true) {
-            line = connection.readLine();
-            if (line == null || line.isEmpty())
-                break;
-            if (headers != null) {
-                String[] parts = line.split(":");
-                if (parts.length == 2) {
-                    headers.put(parts[0].trim().toLowerCase(), parts[1].trim());
-                }
-            }
-        }
-
-        // Return the requested resource
-        String[] parts = request.split(" ");
-        return parts.length == 3 ? parts : null;
-    }
-
-    /**
-     * Helper to read the Base64 encoded client request.
-     *
-     * @param connection the TCPConnection to read from
-     * @param headers    the HashMap that will be filled with the key-value pairs from the headers,
-     *                   pass mull to ignore
-     * @return a three-element String array that contains the method, the URL and the protocol,
-     * null on error
-     */
-    @Nullable
-    private String[] getBase64Request(TCPConnection connection,
-                                      @Nullable HashMap<String, String> headers)
-            throws IOException {
-
-        byte[] buffer = new byte[SOCKET_READ_BUFFER];
-        String request, line;
-        int read;
-
-        // Read the request
-        if ((read = connection.read(buffer)) == -1)
-            return null;
-        buffer = Base64.decode(buffer, 0, read, Base64.NO_WRAP);
-        BufferedReader reader = new BufferedReader(new StringReader(new String(buffer)));
-
-        // Read the request line
-        request = reader.readLine();
-
-        // Read the headers
-        while (true) {
-            line = reader.readLine();
-            if (line == null || line.isEmpty())
-                break;
-            if (headers != null) {
-                String[] parts = line.split(":");
-                if (parts.length == 2) {
-                    headers.put(parts[0].trim().toLowerCase(), parts[1].trim());
-                }
-            }
-        }
-
-        // Return the requested resource
-        String[] parts = request.split(" ");
-        return parts.length == 3 ? parts : null;
-    }
-
-    /**
-     * Helper to parse the Request-URI.
-     *
-     * @param requestURI the Request-URI the client requested
-     * @param params     the HashMap that will be filled with the key-value pairs from the query
-     *                   part of the requestURI (pass mull to ignore)
-     * @return the path part of the requestURI
-     */
-    @Nullable
-    private String parseRequest(String requestURI, HashMap<String, String> params) {
-
-        final URI uri;
-
-        // Create an URI object from the Request-URI
-        try {
-            uri = new URI(requestURI);
-        } catch (URISyntaxException e) {
-            return null;
-        }
-
-        // Parse the query
-        if (params != null) {
-            if (uri.getQuery() != null) {
-                for (String p : uri.getQuery().split("&")) {
-                    String[] kvp = p.split("=");
-                    if (kvp.length == 2) {
-                        params.put(kvp[0].toLowerCase(), kvp[1]);
-                    }
-                }
-            }
-        }
-
-        // Return the path (without the final '/')
-        String path = uri.getPath();
-        if (path.length() > 1 && path.endsWith("/"))
-            path = path.substring(0, path.length() - 1);
-        return path;
+    private boolean isPersistent(RequestParser parser, String protocol) {
+        String connectionType = parser.getHeader("connection");
+        if (connectionType != null)
+            connectionType = connectionType.toLowerCase();
+        return "keep-alive".equals(connectionType) ||
+                (protocol.equals("HTTP/1.1") && !"close".equals(connectionType));
     }
 
     /**
@@ -918,27 +1280,87 @@ public class StreamServer
     }
 
     /**
-     * Helper to send a file from assets/www
+     * Helper to send a file from assets/www<br>
+     * The file is sent gzipped if the client accepts it, or not sent at all if the copy
+     * cached by the client is still valid.
      */
-    private void sendFile(TCPConnection connection, String fileName)
+    private void sendFile(TCPConnection connection, String fileName, RequestParser parser)
             throws IOException {
 
-        fileName = "www" + fileName;
-        String contentType = URLConnection.getFileNameMap().getContentTypeFor(fileName);
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        if (Utils.readAssetFile(mContext, fileName, out)) {
-            String response = "" +
-                    "HTTP/1.1 200 OK\r\n" +
-                    //"Cache-Control: no-cache\r\n" +
-                    //"Pragma: no-cache\r\n" +
-                    "Content-Type: " + contentType + "\r\n" +
-                    "Content-Length: " + out.size() + "\r\n" +
-                    "\r\n";
-            connection.write(response);
-            connection.write(out.toByteArray());
-        } else {
+        AssetCache.Asset asset = mAssetCache.get("www" + fileName);
+        if (asset == null) {
             sendErrorReply(connection, "HTTP/1.1", 404, "Not Found");
+            return;
         }
+        boolean gzip = asset.hasGzip() && AssetCache.acceptsGzip(parser.getHeader("accept-encoding"));
+        String eTag = asset.getETag(gzip);
+        String headers = "" +
+                "Cache-Control: " + (asset.isText() ? "no-cache" : "max-age=" + ASSET_MAX_AGE) + "\r\n" +
+                "ETag: " + eTag + "\r\n" +
+                (asset.hasGzip() ? "Vary: Accept-Encoding\r\n" : "");
+        if (AssetCache.matches(parser.getHeader("if-none-match"), eTag)) {
+            connection.write("HTTP/1.1 304 Not Modified\r\n" + headers + "\r\n");
+            return;
+        }
+        byte[] data = asset.getData(gzip);
+        byte[] response = ("" +
+                "HTTP/1.1 200 OK\r\n" +
+                headers +
+                "Content-Type: " + asset.getContentType() + "\r\n" +
+                (gzip ? "Content-Encoding: gzip\r\n" : "") +
+                "Content-Length: " + data.length + "\r\n" +
+                "\r\n").getBytes();
+        connection.write(response, 0, response.length, data, 0, data.length);
+    }
+
+    /**
+     * Helper to send the last JPEG image.<br>
+     * If the cached image is stale, the next camera frame is encoded once, without
+     * enabling the continuous MJPEG stream. The image is not sent at all if the copy
+     * cached by the client is still valid.
+     */
+    private void sendSnapshot(TCPConnection connection, RequestParser parser)
+            throws IOException {
+
+        SnapshotCache.Snapshot snapshot = mSnapshotCache.get();
+        if (snapshot == null || snapshot.getAge() > SNAPSHOT_MAX_AGE * 1000000L) {
+            int quality = SettingsActivity.getMJPEGQuality(mContext);
+            MJPEGVariants.Subscription request =
+                    MJPEGVariants.get().requestFrame(new MJPEGVariant(quality, 1));
+            try {
+                SnapshotCache.Snapshot fresh = mSnapshotCache.await(
+                        snapshot != null ? snapshot.getTimestamp() : -1, SNAPSHOT_TIMEOUT);
+                if (fresh != null)
+                    snapshot = fresh;
+                else
+                    Log.w(TAG, "cannot get a fresh snapshot, the camera is not delivering frames");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                request.close();
+            }
+        }
+        if (snapshot == null) {
+            sendErrorReply(connection, "HTTP/1.1", 503, "Service Unavailable");
+            return;
+        }
+        String headers = "" +
+                "Cache-Control: max-age=" + SNAPSHOT_MAX_AGE + "\r\n" +
+                "Last-Modified: " + snapshot.getLastModified() + "\r\n";
+        if (!snapshot.isModifiedSince(parser.getHeader("if-modified-since"))) {
+            connection.write("HTTP/1.1 304 Not Modified\r\n" + headers + "\r\n");
+            return;
+        }
+        byte[] data = snapshot.getData();
+        byte[] response = ("" +
+                "HTTP/1.1 200 OK\r\n" +
+                headers +
+                "Content-Type: image/jpeg\r\n" +
+                "Content-Length: " + data.length + "\r\n" +
+                "\r\n").getBytes();
+        connection.write(response, 0, response.length, data, 0, data.length);
+        StreamMetrics.get().frameOut(StreamMetrics.STREAM_MJPEG, -1);
     }
 
     /**
@@ -957,42 +1379,30 @@ public class StreamServer
         connection.write(response + content);
     }
 
+    /**
+     * Helper to send the streaming metrics in the Prometheus text format.
+     */
+    private void sendMetrics(TCPConnection connection)
+            throws IOException {
+        byte[] content = StreamMetrics.get().export(mConnections).getBytes();
+        String response = "" +
+                "HTTP/1.1 200 OK\r\n" +
+                "Cache-Control: no-cache\r\n" +
+                "Pragma: no-cache\r\n" +
+                "Content-Type: text/plain; version=0.0.4\r\n" +
+                "Content-Length: " + content.length + "\r\n" +
+                "\r\n";
+        byte[] header = response.getBytes();
+        connection.write(header, 0, header.length, content, 0, content.length);
+    }
+
     /**
      * Helper to send the debug information.
      */
     private void sendStatusInfos(TCPConnection connection)
             throws IOException {
         try {
-            JSONObject jObject = new JSONObject();
-            JSONObject jObjectLocation = new JSONObject();
-            synchronized (this) {
-                jObjectLocation
-                        .put("latitude", mLastLocation != null ? mLastLocation.getLatitude() : 0)
-                        .put("longitude", mLastLocation != null ? mLastLocation.getLongitude() : 0)
-                        .put("time", mLastLocation != null ? mLastLocation.getTime() : 0)
-                        .put("accuracy", mLastLocation != null ? mLastLocation.getAccuracy() : -1)
-                        .put("provider", mLastLocation != null ? mLastLocation.getProvider() : "none");
-            }
-            JSONArray jArrayConnections = new JSONArray();
-            for (StreamConnection c : mConnections) {
-                InetAddress address = c.getInetAddress();
-                jArrayConnections.put(new JSONObject()
-                        .put("client_address", address != null ? address.getHostName() : "0.0.0.0")
-                        .put("MJPEG_stream", c.isStreamingMJPEG())
-                        .put("H264_stream", c.isStreamingH264())
-                        .put("AAC_stream", c.isStreamingAAC())
-                        .put("RTSP_session_ID", c.getRTSPSessionID())
-                );
-            }
-            jObject
-                    .put("location", jObjectLocation)
-                    .put("connections", jArrayConnections)
-                    .put("streams", mStreams.size())
-                    .put("WiFi", mWiFiAvailable)
-                    .put("mobile", mMobileAvailable)
-                    .put("H264", mH264Available)
-                    .put("audio", mAudioAvailable);
-            sendJSONObject(connection, jObject);
+            sendJSONObject(connection, buildStatusInfos());
         } catch (JSONException e) {
             sendErrorReply(connection, "HTTP/1.1", 500, "Internal Error");
             FirebaseCrash.report(e);
@@ -1005,49 +1415,256 @@ public class StreamServer
      */
     private void sendSensorsInfos(TCPConnection connection)
             throws IOException {
+        try {
+            sendJSONObject(connection, buildSensorsInfos());
+        } catch (JSONException e) {
+            sendErrorReply(connection, "HTTP/1.1", 500, "Internal Error");
+            FirebaseCrash.report(e);
+            Log.e(TAG, "unexpected exception while sending the JSON sensors information", e);
+        }
+    }
 
-        String batteryCharge = "unknown";
-        float batteryPct = -1;
-
-        // Determine battery information
-        IntentFilter filter = new IntentFilter(Intent.ACTION_BATTERY_CHANGED);
-        Intent batteryStatus = mContext.registerReceiver(null, filter);
-        if (batteryStatus != null) {
-            int status = batteryStatus.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
-            boolean isCharging = status == BatteryManager.BATTERY_STATUS_CHARGING ||
-                    status == BatteryManager.BATTERY_STATUS_FULL;
-            if (isCharging) {
-                int chargePlug = batteryStatus.getIntExtra(BatteryManager.EXTRA_PLUGGED, -1);
-                if (chargePlug == BatteryManager.BATTERY_PLUGGED_USB)
-                    batteryCharge = "USB";
-                else if (chargePlug == BatteryManager.BATTERY_PLUGGED_AC)
-                    batteryCharge = "AC";
-                else
-                    batteryCharge = "unknown";
-            } else {
-                batteryCharge = "unplugged";
+    /**
+     * Helper to build the debug information.
+     */
+    private JSONObject buildStatusInfos()
+            throws JSONException {
+        JSONObject jObject = new JSONObject();
+        JSONObject jObjectLocation = new JSONObject();
+        synchronized (this) {
+            jObjectLocation
+                    .put("latitude", mLastLocation != null ? mLastLocation.getLatitude() : 0)
+                    .put("longitude", mLastLocation != null ? mLastLocation.getLongitude() : 0)
+                    .put("time", mLastLocation != null ? mLastLocation.getTime() : 0)
+                    .put("accuracy", mLastLocation != null ? mLastLocation.getAccuracy() : -1)
+                    .put("provider", mLastLocation != null ? mLastLocation.getProvider() : "none");
+        }
+        JSONArray jArrayConnections = new JSONArray();
+        for (StreamConnection c : mConnections) {
+            InetAddress address = c.getInetAddress();
+            MJPEGRateControl rate = c.getMJPEGRate();
+            jArrayConnections.put(new JSONObject()
+                    .put("client_address", address != null ?
+                            HostResolver.get().resolve(address, mHostResolved) : "0.0.0.0")
+                    .put("MJPEG_stream", c.isStreamingMJPEG())
+                    .put("MJPEG_fps", rate != null ? Math.round(rate.getFps() * 100) / 100.0 : 0)
+                    .put("MJPEG_latency", rate != null ? rate.getLatency() / 1000 : 0)
+                    .put("H264_stream", c.isStreamingH264())
+                    .put("AAC_stream", c.isStreamingAAC())
+                    .put("RTSP_session_ID", c.getRTSPSessionID())
+                    .put("H264_dropped_slices", c.getDroppedSlices())
+                    .put("H264_RTCP", buildRTCPInfos(c.getVideoReceiver()))
+                    .put("AAC_RTCP", buildRTCPInfos(c.getAudioReceiver()))
+            );
+        }
+        jObject
+                .put("location", jObjectLocation)
+                .put("connections", jArrayConnections)
+                .put("streams", mStreams.size())
+                .put("WiFi", mWiFiAvailable)
+                .put("mobile", mMobileAvailable)
+                .put("H264", mH264Available)
+                .put("audio", mAudioAvailable)
+                .put("sync_frames_requested", mSyncArbiter.getRequested())
+                .put("sync_frames_honoured", mSyncArbiter.getHonoured());
+        return jObject;
+    }
+
+    /**
+     * Helper to build the network statistics reported by an RTSP client.
+     *
+     * @return the statistics, JSONObject.NULL if the stream is not set up
+     */
+    private Object buildRTCPInfos(RTCPReceiver receiver)
+            throws JSONException {
+        if (receiver == null)
+            return JSONObject.NULL;
+        return new JSONObject()
+                .put("reports", receiver.getReports())
+                .put("fraction_lost", Math.round(receiver.getFractionLost() * 100) / 100.0)
+                .put("cumulative_lost", receiver.getCumulativeLost())
+                .put("jitter", Math.round(receiver.getJitter() * 100) / 100.0)
+                .put("NACKs", receiver.getNacks())
+                .put("RTT", Math.round(receiver.getRTT() * 100) / 100.0)
+                .put("CNAME", receiver.getCName() != null ? receiver.getCName() : JSONObject.NULL);
+    }
+
+    /**
+     * Helper to build the sensors information.<br>
+     * The battery information is kept up to date by the battery receiver.
+     */
+    private JSONObject buildSensorsInfos()
+            throws JSONException {
+        JSONObject jObject = new JSONObject();
+        jObject
+                .put("battery", new JSONObject()
+                        .put("connection", mBatteryConnection)
+                        .put("level", mBatteryLevel))
+                .put("torch", mTorchOn)
+                .put("temperature", mSensors.get(Sensor.TYPE_AMBIENT_TEMPERATURE))
+                .put("humidity", mSensors.get(Sensor.TYPE_RELATIVE_HUMIDITY))
+                .put("pressure", mSensors.get(Sensor.TYPE_PRESSURE))
+                .put("light", mSensors.get(Sensor.TYPE_LIGHT));
+        return jObject;
+    }
+
+    /**
+     * Gets the status event data, built once for each status change
+     * and shared by all the event streams.
+     */
+    private String getStatusEvent()
+            throws JSONException {
+        long version;
+        synchronized (mEventsLock) {
+            if (mStatusEvent != null && mStatusEventVersion == mStatusVersion)
+                return mStatusEvent;
+            version = mStatusVersion;
+        }
+        // Built outside the lock, buildStatusInfos() locks this
+        String event = buildStatusInfos().toString();
+        synchronized (mEventsLock) {
+            if (mStatusEvent == null || version >= mStatusEventVersion) {
+                mStatusEvent = event;
+                mStatusEventVersion = version;
+            }
+        }
+        return event;
+    }
+
+    /**
+     * Gets the sensors event data, built once for each sensors change
+     * and shared by all the event streams.
+     */
+    private String getSensorsEvent()
+            throws JSONException {
+        long version;
+        synchronized (mEventsLock) {
+            if (mSensorsEvent != null && mSensorsEventVersion == mSensorsVersion)
+                return mSensorsEvent;
+            version = mSensorsVersion;
+        }
+        String event = buildSensorsInfos().toString();
+        synchronized (mEventsLock) {
+            if (mSensorsEvent == null || version >= mSensorsEventVersion) {
+                mSensorsEvent = event;
+                mSensorsEventVersion = version;
+            }
+        }
+        return event;
+    }
+
+    /**
+     * Helper to start an event stream (Server-Sent Events).<br>
+     * The stream does not hold a thread: the connection is parked on the event loop, and
+     * {@link #updateEvents()} writes the updates.
+     *
+     * @param gpsMode the location mode to keep requesting, null if none
+     * @param sensors the sensors mode to keep requesting, null if none
+     */
+    private void startEvents(TCPConnection connection, String gpsMode, String sensors)
+            throws IOException {
+        String response = "" +
+                "HTTP/1.1 200 OK\r\n" +
+                "Cache-Control: no-cache\r\n" +
+                "Pragma: no-cache\r\n" +
+                "Content-Type: text/event-stream\r\n" +
+                "\r\n" +
+                "retry: " + EVENTS_RETRY + "\n\n";
+        connection.write(response);
+        // The stream is idle on the input side, the keepalives detect the broken connections
+        connection.setTimeout(0);
+        mEventStreams.add(new EventStream(connection, gpsMode, sensors));
+        Log.v(TAG, "event stream started on connection " + connection.toString());
+    }
+
+    /**
+     * Checks the event streams for updates, called periodically on the events timer thread.<br>
+     * An event is sent as soon as the related information changes, the bursts are coalesced
+     * by the timer period; a keepalive comment is sent when nothing changes for a while.
+     * The live statistics of the status change without notification, they are refreshed
+     * periodically. The updates are written by the writer threads, a slow client does not
+     * delay the others.
+     */
+    private void updateEvents() {
+        if (mEventStreams.isEmpty())
+            return;
+        long now = System.currentTimeMillis();
+        if (now - mStatsRefresh >= EVENTS_STATS_PERIOD) {
+            mStatsRefresh = now;
+            statusChanged();
+        }
+        long statusVersion, sensorsVersion;
+        synchronized (mEventsLock) {
+            statusVersion = mStatusVersion;
+            sensorsVersion = mSensorsVersion;
+        }
+        for (final EventStream stream : mEventStreams) {
+            // Skip the streams that are still writing the previous update
+            if (!stream.busy.compareAndSet(false, true))
+                continue;
+            if (stream.statusVersion == statusVersion && stream.sensorsVersion == sensorsVersion &&
+                    now - stream.lastWrite < EVENTS_KEEPALIVE && now - stream.lastRenew < EVENTS_RENEW_PERIOD) {
+                stream.busy.set(false);
+                continue;
+            }
+            try {
+                mEventsWriter.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        sendEvents(stream);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                stream.busy.set(false);
             }
-            int level = batteryStatus.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
-            int scale = batteryStatus.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
-            batteryPct = level * 100.0f / (float) scale;
         }
+    }
 
+    /**
+     * Helper to send the status and sensors events that changed since the last update.
+     */
+    private void sendEvents(EventStream stream) {
+        TCPConnection connection = stream.connection;
         try {
-            JSONObject jObject = new JSONObject();
-            jObject
-                    .put("battery", new JSONObject()
-                            .put("connection", batteryCharge)
-                            .put("level", (int) batteryPct))
-                    .put("torch", mTorchOn)
-                    .put("temperature", mSensors.get(Sensor.TYPE_AMBIENT_TEMPERATURE))
-                    .put("humidity", mSensors.get(Sensor.TYPE_RELATIVE_HUMIDITY))
-                    .put("pressure", mSensors.get(Sensor.TYPE_PRESSURE))
-                    .put("light", mSensors.get(Sensor.TYPE_LIGHT));
-            sendJSONObject(connection, jObject);
+            // The location and the sensors are stopped when not requested for a while
+            long now = System.currentTimeMillis();
+            if (mCallback != null && now - stream.lastRenew >= EVENTS_RENEW_PERIOD) {
+                if (stream.gpsMode != null)
+                    mCallback.onControlRequest("gps-mode", stream.gpsMode);
+                if (stream.sensors != null)
+                    mCallback.onControlRequest("sensors", stream.sensors);
+                stream.lastRenew = now;
+            }
+            long statusVersion, sensorsVersion;
+            synchronized (mEventsLock) {
+                statusVersion = mStatusVersion;
+                sensorsVersion = mSensorsVersion;
+            }
+            // Send the changes
+            StringBuilder events = new StringBuilder();
+            if (statusVersion != stream.statusVersion) {
+                events.append("event: status\ndata: ").append(getStatusEvent()).append("\n\n");
+                stream.statusVersion = statusVersion;
+            }
+            if (sensorsVersion != stream.sensorsVersion) {
+                events.append("event: sensors\ndata: ").append(getSensorsEvent()).append("\n\n");
+                stream.sensorsVersion = sensorsVersion;
+            }
+            if (events.length() == 0 && now - stream.lastWrite >= EVENTS_KEEPALIVE)
+                events.append(": keepalive\n\n");
+            if (events.length() > 0) {
+                connection.write(events.toString());
+                stream.lastWrite = now;
+            }
+        } catch (IOException e) {
+            Log.v(TAG, "event stream closed");
+            mEventStreams.remove(stream);
+            connection.close();
         } catch (JSONException e) {
-            sendErrorReply(connection, "HTTP/1.1", 500, "Internal Error");
             FirebaseCrash.report(e);
-            Log.e(TAG, "unexpected exception while sending the JSON sensors information", e);
+            Log.e(TAG, "unexpected exception while sending the events", e);
+        } finally {
+            stream.busy.set(false);
         }
     }
 
@@ -1067,7 +1684,15 @@ public class StreamServer
                                     .put(new JSONObject()
                                             .put("name", "fps")
                                             .put("min", MJPEG_MIN_FPS)
-                                            .put("max", SettingsActivity.getMJPEGFrameSpeed(mContext)))))
+                                            .put("max", SettingsActivity.getMJPEGFrameSpeed(mContext)))
+                                    .put(new JSONObject()
+                                            .put("name", "quality")
+                                            .put("min", 1)
+                                            .put("max", SettingsActivity.getMJPEGQuality(mContext)))
+                                    .put(new JSONObject()
+                                            .put("name", "scale")
+                                            .put("min", 0.25)
+                                            .put("max", 1))))
                     .put(new JSONObject()
                             .put("url", "/video/h264")
                             .put("mime", "video/avc")
@@ -1105,19 +1730,28 @@ public class StreamServer
     }
 
     /**
-     * Helper to send the MJPEG stream.
+     * Helper to send the MJPEG stream.<br>
+     * The requested quality and scale are mapped to a variant, encoded only while
+     * some consumer requests it, at the rate of the fastest one.
      */
-    private void sendMJPEGStream(final StreamConnection connection, String fps)
+    private void sendMJPEGStream(final StreamConnection connection, String fps,
+                                 String quality, String scale)
             throws IOException {
 
         final long id = Utils.getUniqueID();
+        final int maxQuality = SettingsActivity.getMJPEGQuality(mContext);
+        final MJPEGVariant variant = MJPEGVariant.select(quality, scale, maxQuality);
+        final boolean isDefault = variant.isDefault(maxQuality);
+        final BroadcastRing<VideoFrame>.Reader reader =
+                (isDefault ? mFrameRing : getVariantRing(variant)).newReader();
         VideoFrame frame;
 
         double mjpegFps = Utils.coerce(
                 Utils.tryParseDouble(fps, SettingsActivity.getMJPEGFrameSpeed(mContext)),
                 MJPEG_MIN_FPS, SettingsActivity.getMJPEGFrameSpeed(mContext));
-        long delay = (long) (1000000.0 / mjpegFps);
+        MJPEGRateControl rate = new MJPEGRateControl(MJPEG_MIN_FPS, mjpegFps);
         long lastTime = 0;
+        long skipped = 0;
 
         String response = "" +
                 "HTTP/1.1 200 OK\r\n" +
@@ -1127,35 +1761,61 @@ public class StreamServer
                 "\r\n";
         connection.write(response);
 
-        connection.clearFrames();
+        connection.setMJPEGRate(rate);
         connection.notifyStreamStarted(StreamConnection.TYPE_MJPEG, id);
+        // The encoder follows the fastest subscriber of each variant
+        MJPEGVariants.Subscription subscription = MJPEGVariants.get().subscribe(variant, mjpegFps);
         try {
-            connection.clearFrames();
+            reader.clear();
             while (!Thread.currentThread().isInterrupted()) {
                 // Check WiFi status
                 if (!canStream("/video/mjpeg"))
                     break;
-                // Get a frame from the queue
-                if ((frame = connection.popFrame()) == null)
+                // Get the most recent frame from the ring, the older ones are already stale
+                if ((frame = reader.pollLatest(MJPEG_READ_TIMEOUT)) == null) {
+                    Log.v(TAG, "cannot get the frame, the ring is empty");
                     continue;
-                // Control the fps
-                if (frame.getTimestamp() < lastTime + delay)
+                }
+                if (reader.getSkipped() != skipped) {
+                    StreamMetrics.get().drop(StreamMetrics.DROP_MJPEG_LAGGING, reader.getSkipped() - skipped);
+                    connection.addDroppedFrames(reader.getSkipped() - skipped);
+                    skipped = reader.getSkipped();
+                }
+                // Control the fps, adapted to what the link can carry
+                if (frame.getTimestamp() < lastTime + rate.getInterval())
                     continue;
                 lastTime = frame.getTimestamp();
-                // Compress and send the JPEG image
-                connection.write("" +
-                        "--jpegboundary\r\n" +
-                        "Content-Type: image/jpeg\r\n" +
-                        "\r\n");
-                connection.write(frame.getData());
+                // Send the part header and the JPEG image at once, without copying the image,
+                // timing the write to detect the backpressure
+                long writeStart = TimeStamp.getTimeStamp();
+                byte[] data = frame.getData();
+                connection.write(MJPEG_PART_HEADER, 0, MJPEG_PART_HEADER.length, data, 0, data.length);
+                rate.onFrameSent(frame.getTimestamp(), TimeStamp.getTimeStamp() - writeStart);
+                StreamMetrics.get().frameOut(StreamMetrics.STREAM_MJPEG, frame.getTimestamp());
             }
         } catch (InterruptedException e) {
             Log.v(TAG, "stream interrupted");
         } finally {
+            subscription.close();
+            connection.setMJPEGRate(null);
             connection.notifyStreamStopped(StreamConnection.TYPE_MJPEG, id);
         }
     }
 
+    /**
+     * Gets the ring of a MJPEG variant, creating it if required.
+     */
+    private BroadcastRing<VideoFrame> getVariantRing(MJPEGVariant variant) {
+        BroadcastRing<VideoFrame> ring = mVariantRings.get(variant.getKey());
+        if (ring == null) {
+            BroadcastRing<VideoFrame> newRing = new BroadcastRing<>(MJPEG_RING_CAPACITY);
+            ring = mVariantRings.putIfAbsent(variant.getKey(), newRing);
+            if (ring == null)
+                ring = newRing;
+        }
+        return ring;
+    }
+
     /**
      * Sends RTSP OPTIONS response.
      */
@@ -1218,6 +1878,7 @@ public class StreamServer
                 "m=video 0 RTP/AVP 96\r\n" +
                 "a=rtpmap:96 H264/90000\r\n" +
                 "a=fmtp:96 packetization-mode=1;sprop-parameter-sets=" + sps + "," + pps + "\r\n" +
+                "a=rtcp-fb:96 nack\r\n" +
                 "a=control:trackID=1\r\n";
         if (mAudioAvailable && audioCfg != null && frequency > 0 && channels > 0) {
             content += "" +
@@ -1259,7 +1920,28 @@ public class StreamServer
             sendErrorReply(connection, "RTSP/1.0", 400, "Bad Request");
             return;
         }
-        if (transport.startsWith("RTP/AVP/UDP;") || transport.startsWith("RTP/AVP;")) {
+        if ((transport.startsWith("RTP/AVP/UDP;") || transport.startsWith("RTP/AVP;")) &&
+                Arrays.asList(transport.split(";")).contains("multicast")) {
+            // The group is chosen by the server, the requested destination is ignored
+            MulticastGroup group;
+            try {
+                group = url.equals("/video/h264/trackID=1") ? getVideoMulticast() : getAudioMulticast();
+            } catch (IOException e) {
+                Log.e(TAG, "cannot set up the multicast group", e);
+                sendErrorReply(connection, "RTSP/1.0", 461, "Unsupported Transport");
+                return;
+            }
+            if (url.equals("/video/h264/trackID=1")) {
+                connection.setupVideoMulticast(group);
+            } else {    // "/video/h264/trackID=2"
+                connection.setupAudioMulticast(group);
+            }
+            transportSetup = "RTP/AVP;multicast" +
+                    ";destination=" + group.getAddress().getHostAddress() +
+                    ";port=" + group.getRTPPort() + "-" + group.getRTCPPort() +
+                    ";ttl=" + group.getTTL();
+            session = connection.getRTSPSessionID();
+        } else if (transport.startsWith("RTP/AVP/UDP;") || transport.startsWith("RTP/AVP;")) {
             int rtpPort = -1, rtcpPort = -1;
             int rtpServerPort, rtcpServerPort;
             for (String p : transport.split(";")) {
@@ -1274,11 +1956,11 @@ public class StreamServer
                 return;
             }
             if (url.equals("/video/h264/trackID=1")) {
-                connection.setupVideoUDP(90000, rtpPort, rtcpPort);
+                connection.setupVideoUDP(getVideoUDP(), 90000, rtpPort, rtcpPort);
                 rtpServerPort = connection.getRTPVideoLocalPort();
                 rtcpServerPort = connection.getRTCPVideoLocalPort();
             } else {    // "/video/h264/trackID=2"
-                connection.setupAudioUDP(mAudioFrequency, rtpPort, rtcpPort);
+                connection.setupAudioUDP(getAudioUDP(), mAudioFrequency, rtpPort, rtcpPort);
                 rtpServerPort = connection.getRTPAudioLocalPort();
                 rtcpServerPort = connection.getRTCPAudioLocalPort();
             }
@@ -1348,11 +2030,12 @@ public class StreamServer
             return;
         }
 
-        // Play
+        // Play, the multicast packets do not start from the session sequence number
+        String rtpInfo = connection.isMulticast() ? url : url + ";seq=" + connection.getRTPSeq();
         String response = "" +
                 "RTSP/1.0 200 OK\r\n" +
                 "CSeq: " + seq + "\r\n" +
-                "RTP-Info: url=" + url + ";seq=" + connection.getRTPSeq() + "\r\n" +
+                "RTP-Info: url=" + rtpInfo + "\r\n" +
                 "Session: " + connection.getRTSPSessionID() + ";timeout=" + RTSP_SESSION_TIMEOUT + "\r\n" +
                 "\r\n";
         connection.write(response);
@@ -0,0 +1,153 @@
+/*
+ * This file is part of spyNet Camera, the Android IP camera
+ *
+ * Copyright (C) 2016-2017 Paolo Dematteis
+ *
+ * spyNet Camera is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * spyNet Camera is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Paolo Dematteis - spynet314@gmail.com
+ */
+
+package com.spynet.camera.network;
+
+import android.util.Log;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Defines the arbiter that coalesces the sync frame (IDR) requests of all the connections.<br>
+ * A request is honoured only if no IDR is already on its way and the previous one has been
+ * requested long enough ago; otherwise it is merged with the pending one, or deferred to the
+ * end of the min interval. The encoder is notified on the arbiter thread, so that requests
+ * coming from the streaming threads never call back into the encoder owner.
+ */
+final class SyncFrameArbiter implements Closeable {
+
+    // Min time between two honoured requests in ms
+    private static final long MIN_INTERVAL = 2000;
+    // Max time to wait for the IDR of an honoured request in ms
+    private static final long PENDING_TIMEOUT = 1000;
+
+    private static final String TAG = SyncFrameArbiter.class.getSimpleName();
+
+    private final Callback mCallback;                   // The callback that requests the IDR
+    private final ScheduledExecutorService mExecutor;   // The thread that notifies the callback
+    private ScheduledFuture<?> mDeferred;               // The deferred request, null if none
+    private long mLastHonoured;                         // Time of the last honoured request
+    private boolean mPending;                           // Whether an IDR is awaited
+    private long mRequested;                            // Number of requested sync frames
+    private long mHonoured;                             // Number of honoured sync frames
+
+    /**
+     * Defines the interface that the owner has to implement to actually request the IDR.
+     */
+    interface Callback {
+        /**
+         * Requests a sync frame to the encoder.<br>
+         * Called on the arbiter thread.
+         */
+        void onSyncFrameRequest();
+    }
+
+    /**
+     * Creates a new SyncFrameArbiter object.
+     *
+     * @param callback the callback to request the sync frames
+     */
+    SyncFrameArbiter(@NotNull Callback callback) {
+        mCallback = callback;
+        mExecutor = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    /**
+     * Stops the arbiter, the deferred request is discarded.
+     */
+    @Override
+    public void close() {
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Requests a sync frame.<br>
+     * Never blocks, may be called from any thread.
+     */
+    synchronized void request() {
+        mRequested++;
+        if (mDeferred != null)
+            return;
+        long now = System.currentTimeMillis();
+        if (mPending && now - mLastHonoured < PENDING_TIMEOUT)
+            return;
+        long delay = mLastHonoured + MIN_INTERVAL - now;
+        mDeferred = mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                honour();
+            }
+        }, Math.max(delay, 0), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Notifies that the encoder produced a slice.<br>
+     * An IDR satisfies the pending request as well as the deferred one.
+     *
+     * @param isIDR whether the slice belongs to an IDR picture
+     */
+    synchronized void onSlice(boolean isIDR) {
+        if (!isIDR)
+            return;
+        mPending = false;
+        mLastHonoured = System.currentTimeMillis();
+        if (mDeferred != null) {
+            mDeferred.cancel(false);
+            mDeferred = null;
+        }
+    }
+
+    /**
+     * @return the number of sync frames requested by the clients
+     */
+    synchronized long getRequested() {
+        return mRequested;
+    }
+
+    /**
+     * @return the number of sync frames actually requested to the encoder
+     */
+    synchronized long getHonoured() {
+        return mHonoured;
+    }
+
+    /**
+     * Honours the request, on the arbiter thread.
+     */
+    private void honour() {
+        synchronized (this) {
+            if (mDeferred == null)
+                return;
+            mDeferred = null;
+            mPending = true;
+            mLastHonoured = System.currentTimeMillis();
+            mHonoured++;
+        }
+        Log.v(TAG, "sync frame requested");
+        mCallback.onSyncFrameRequest();
+    }
+}
@@ -40,7 +40,9 @@ public class TCPAudioPacketizer extends RTPAudioPacketizer {
 
     private static final int RTP_PACKET_SIZE = 2000;
 
-    private final byte[] mPacket;                   // The RTP packet
+    private final byte[] mRTPHeader;                // The interleaved header of the RTP packets
+    private final byte[] mRTCPHeader;               // The interleaved header of the RTCP packets
+    private final StreamConnection mConnection;     // The connection that owns the packetizer
     private final int mRTPChannel;                  // The channel to use to send RTP packets
     private final int mRTCPChannel;                 // The channel to use to send RTCP packets
 
@@ -57,27 +59,31 @@ public class TCPAudioPacketizer extends RTPAudioPacketizer {
                               int rtpChannel, int rtcpChannel,
                               int clock, int seq) {
         super(connection, clock, RTP_PACKET_SIZE, seq);
-        mPacket = new byte[4 + RTP_PACKET_SIZE];
+        mConnection = connection;
         mRTPChannel = rtpChannel;
         mRTCPChannel = rtcpChannel;
-        mPacket[0] = '$';
+        mRTPHeader = new byte[]{'$', (byte) mRTPChannel, 0, 0};
+        mRTCPHeader = new byte[]{'$', (byte) mRTCPChannel, 0, 0};
     }
 
     @Override
     protected void rtpSend(byte[] data, int length) throws IOException {
-        mPacket[1] = (byte) mRTPChannel;
-        mPacket[2] = (byte) (length >> 8);
-        mPacket[3] = (byte) length;
-        System.arraycopy(data, 0, mPacket, 4, length);
-        mConnection.write(mPacket, 0, 4 + length);
+        mRTPHeader[2] = (byte) (length >> 8);
+        mRTPHeader[3] = (byte) length;
+        mConnection.write(mRTPHeader, 0, 4, data, 0, length);
     }
 
     @Override
     protected void rtcpSend(byte[] data, int length) throws IOException {
-        mPacket[1] = (byte) (mRTCPChannel);
-        mPacket[2] = (byte) (length >> 8);
-        mPacket[3] = (byte) length;
-        System.arraycopy(data, 0, mPacket, 4, length);
-        mConnection.write(mPacket, 0, 4 + length);
+        mRTCPHeader[2] = (byte) (length >> 8);
+        mRTCPHeader[3] = (byte) length;
+        mConnection.write(mRTCPHeader, 0, 4, data, 0, length);
+    }
+
+    /**
+     * @return the channel used to send and receive the RTCP packets
+     */
+    public int getRTCPChannel() {
+        return mRTCPChannel;
     }
 }
@@ -34,21 +34,30 @@ import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * Defines a generic TCP connection that can be handled in its own thread.
+ * Defines a generic TCP connection that can be handled in a worker thread.<br>
+ * When the socket is backed by a channel (i.e. it was accepted by a {@link TCPListener}),
+ * the connection is driven by the shared {@link TCPEventLoop}: the handler can release its
+ * thread between two requests by calling {@link #keepAlive()}, and will be called again as
+ * soon as new data is available. Other sockets (e.g. SSL client sockets) use blocking streams.
  */
 public class TCPConnection implements Closeable {
 
-    // Max number of active connections
-    protected final static int MAX_CONNECTIONS = 10;
+    // Size of the input buffer used with non-blocking channels
+    protected final static int INPUT_BUFFER_SIZE = 8192;
 
-    // Used to run the connections in a thread pool
-    protected final static ExecutorService mExecutor =
-            Executors.newFixedThreadPool(MAX_CONNECTIONS);
+    // Used to run the connection handlers, threads are only busy while a request is handled
+    // or a stream is sent; the servers bound the threads by limiting the accepted connections
+    protected final static ExecutorService mExecutor = Executors.newCachedThreadPool();
 
     protected final String TAG = getClass().getSimpleName();
 
@@ -58,9 +67,28 @@ public class TCPConnection implements Closeable {
     protected final ConnectionCallback mCallback;       // The callback to notify the client
     protected final Object mData;                       // Additional data attached to this object
 
+    private final SocketChannel mChannel;               // The non-blocking channel, null to use streams
+    private final TCPEventLoop mLoop;                   // The event loop that drives the channel
+    private final TCPEventLoop.Client mClient;          // The event loop client
+    private final ByteBuffer mInput;                    // The channel input buffer
     private final BufferedInputStream mInputStream;     // The input stream
     private final OutputStream mOutputStream;           // The output stream
-    private final Future<?> mFuture;                    // Future that represents the task
+    private final Object mReadLock = new Object();      // Serializes the reads
+    private final Object mWriteLock = new Object();     // Serializes the writes
+    private final Object mLock = new Object();          // Guards the connection state
+    private final AtomicBoolean mClosedNotified;        // Whether onConnectionClosed has been called
+    private final Runnable mHandler;                    // The task that handles the connection
+
+    private Thread mHandlerThread;                      // The thread that is handling the connection
+    private boolean mClosed;                            // Whether the connection has been closed
+    private boolean mParked;                            // Whether waiting for the next request
+    private boolean mReadWaiting;                       // Whether a reader is waiting for data
+    private boolean mWriteWaiting;                      // Whether a writer is waiting for room
+    private boolean mOpened;                            // Whether onConnectionOpened has been called
+    private boolean mKeepAlive;                         // Whether the handler asked to keep the connection
+    private volatile int mTimeout;                      // The read and idle timeout in ms
+    private volatile long mLastActivity;                // Time of the last activity in ms
+    private volatile long mBytesWritten;                // Number of bytes written, under mWriteLock
 
     private String mUserAgent;                          // The user-agent
 
@@ -76,7 +104,9 @@ public class TCPConnection implements Closeable {
         void onConnectionOpened(TCPConnection connection);
 
         /**
-         * Implement this method to handle client requests.
+         * Implement this method to handle client requests.<br>
+         * The connection is closed when this method returns, unless {@link #keepAlive()} has
+         * been called.
          *
          * @param connection the TCPConnection wrapped around the connection
          * @throws IOException if errors occur
@@ -104,17 +134,54 @@ public class TCPConnection implements Closeable {
         mSocket = socket;
         mHostAddress = socket.getInetAddress();
         mLocalAddress = socket.getLocalAddress();
-        mInputStream = new BufferedInputStream(mSocket.getInputStream());
-        mOutputStream = mSocket.getOutputStream();
+        mChannel = socket.getChannel();
+        if (mChannel != null) {
+            mChannel.configureBlocking(false);
+            mLoop = TCPEventLoop.get();
+            mClient = new TCPEventLoop.Client() {
+                @Override
+                public SelectableChannel getChannel() {
+                    return mChannel;
+                }
+
+                @Override
+                public int getInterestOps() {
+                    return interestOps();
+                }
+
+                @Override
+                public void onReady(int readyOps) {
+                    ready(readyOps);
+                }
+
+                @Override
+                public void onTick(long now) {
+                    tick(now);
+                }
+            };
+            mInput = ByteBuffer.allocate(INPUT_BUFFER_SIZE);
+            mInput.flip();
+            mInputStream = null;
+            mOutputStream = null;
+        } else {
+            mLoop = null;
+            mClient = null;
+            mInput = null;
+            mInputStream = new BufferedInputStream(mSocket.getInputStream());
+            mOutputStream = mSocket.getOutputStream();
+        }
         mCallback = callback;
         mData = data;
-        mFuture = (mCallback == null) ? null :
-                mExecutor.submit(new Runnable() {
-                    @Override
-                    public void run() {
-                        handle();
-                    }
-                });
+        mClosedNotified = new AtomicBoolean();
+        mLastActivity = System.currentTimeMillis();
+        mHandler = new Runnable() {
+            @Override
+            public void run() {
+                handle();
+            }
+        };
+        if (mCallback != null)
+            mExecutor.execute(mHandler);
     }
 
     /**
@@ -125,13 +192,46 @@ public class TCPConnection implements Closeable {
     }
 
     /**
-     * Sets this socket's read timeout in milliseconds.
+     * Sets this socket's read timeout in milliseconds.<br>
+     * The timeout also applies to the time the connection can stay idle between two requests.
      *
      * @param timeout socket read timeout, use 0 for no timeout
      * @throws SocketException if there is an error in the underlying protocol
      */
     public void setTimeout(int timeout) throws SocketException {
-        mSocket.setSoTimeout(timeout);
+        if (mChannel == null)
+            mSocket.setSoTimeout(timeout);
+        mTimeout = timeout;
+    }
+
+    /**
+     * Marks the connection as active, restarting its idle timeout.
+     */
+    public void touch() {
+        mLastActivity = System.currentTimeMillis();
+    }
+
+    /**
+     * Asks to keep the connection open when {@code handleConnection()} returns.<br>
+     * The handler thread is released and {@code handleConnection()} will be called again as
+     * soon as new data is available, or the connection will be closed if it stays idle
+     * longer than the timeout.<br>
+     * To be called only by the thread that is handling the connection.
+     */
+    public void keepAlive() {
+        mKeepAlive = true;
+    }
+
+    /**
+     * @return true if some input data has already been received and can be read without blocking
+     * @throws IOException if an error occurs while checking the stream
+     */
+    public boolean hasPendingInput() throws IOException {
+        synchronized (mReadLock) {
+            if (mChannel == null)
+                return mInputStream.available() > 0;
+            return mInput.hasRemaining();
+        }
     }
 
     /**
@@ -149,6 +249,20 @@ public class TCPConnection implements Closeable {
         return mHostAddress;
     }
 
+    /**
+     * @return the remote port number this socket is connected to
+     */
+    public int getPort() {
+        return mSocket.getPort();
+    }
+
+    /**
+     * @return the number of bytes written to the socket so far
+     */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
     /**
      * @return the local IP address this socket is bound to
      */
@@ -203,8 +317,89 @@ public class TCPConnection implements Closeable {
      * @throws IOException if an error occurs while writing to the stream
      */
     public void write(byte[] buffer, int offset, int count) throws IOException {
-        synchronized (mOutputStream) {
-            mOutputStream.write(buffer, offset, count);
+        synchronized (mWriteLock) {
+            if (mChannel == null) {
+                mOutputStream.write(buffer, offset, count);
+                mBytesWritten += count;
+                StreamMetrics.get().socketWrites(1);
+                return;
+            }
+            try {
+                int calls = 0;
+                ByteBuffer src = ByteBuffer.wrap(buffer, offset, count);
+                while (src.hasRemaining()) {
+                    int written = mChannel.write(src);
+                    calls++;
+                    if (written == 0)
+                        await(SelectionKey.OP_WRITE, 0);
+                    mBytesWritten += written;
+                }
+                StreamMetrics.get().socketWrites(calls);
+            } catch (IOException e) {
+                throw toSocketException(e);
+            }
+        }
+    }
+
+    /**
+     * Writes two buffers to the output stream, without other writes in between.<br>
+     * Channels write both the buffers with a single gathering write.
+     *
+     * @param header       the buffer that contains the first bytes to write
+     * @param headerOffset the start position from where to get the first bytes
+     * @param headerCount  the number of first bytes to write
+     * @param buffer       the buffer that contains the next bytes to write
+     * @param offset       the start position from where to get the next bytes
+     * @param count        the number of next bytes to write
+     * @throws IOException if an error occurs while writing to the stream
+     */
+    public void write(byte[] header, int headerOffset, int headerCount,
+                      byte[] buffer, int offset, int count) throws IOException {
+        write(new ByteBuffer[]{
+                ByteBuffer.wrap(header, headerOffset, headerCount),
+                ByteBuffer.wrap(buffer, offset, count)
+        }, 0, 2);
+    }
+
+    /**
+     * Writes a sequence of buffers to the output stream, without other writes in between.<br>
+     * Channels write the buffers with gathering writes, so that many small buffers (e.g. the
+     * headers and payloads of the packets of a picture) take a single system call, and their
+     * content is not copied to a single array first. The buffers must be backed by an array.
+     *
+     * @param srcs   the buffers that contain the bytes to write, from their position to their limit
+     * @param offset the index of the first buffer to write
+     * @param length the number of buffers to write
+     * @throws IOException if an error occurs while writing to the stream
+     */
+    public void write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        int end = offset + length;
+        synchronized (mWriteLock) {
+            if (mChannel == null) {
+                for (int i = offset; i < end; i++) {
+                    ByteBuffer src = srcs[i];
+                    mOutputStream.write(src.array(), src.arrayOffset() + src.position(), src.remaining());
+                    mBytesWritten += src.remaining();
+                    src.position(src.limit());
+                }
+                StreamMetrics.get().socketWrites(length);
+                return;
+            }
+            try {
+                int calls = 0;
+                while (offset < end) {
+                    long written = mChannel.write(srcs, offset, end - offset);
+                    calls++;
+                    if (written == 0)
+                        await(SelectionKey.OP_WRITE, 0);
+                    mBytesWritten += written;
+                    while (offset < end && !srcs[offset].hasRemaining())
+                        offset++;
+                }
+                StreamMetrics.get().socketWrites(calls);
+            } catch (IOException e) {
+                throw toSocketException(e);
+            }
         }
     }
 
@@ -217,12 +412,12 @@ public class TCPConnection implements Closeable {
      * @throws IOException if an error occurs while reading from the stream
      */
     public String readLine() throws IOException {
-        synchronized (mInputStream) {
+        synchronized (mReadLock) {
             StringBuilder sb = new StringBuilder();
             int c1 = 0, c = 0;
             while (!(c1 == '\r' && c == '\n')) {
                 c1 = c;
-                if ((c = mInputStream.read()) == -1)
+                if ((c = readByte()) == -1)
                     break;
                 if (c != '\r' && c != '\n')
                     sb.append((char) c);
@@ -254,8 +449,19 @@ public class TCPConnection implements Closeable {
      * @throws IOException if an error occurs while reading from the stream
      */
     public int read(byte[] buffer, int offset, int count) throws IOException {
-        synchronized (mInputStream) {
-            return mInputStream.read(buffer, offset, count);
+        synchronized (mReadLock) {
+            if (mChannel == null)
+                return mInputStream.read(buffer, offset, count);
+            if (!mInput.hasRemaining() && fill(true) == -1)
+                return -1;
+            // Like BufferedInputStream, also take what is available without blocking
+            int n = 0;
+            do {
+                int size = Math.min(count - n, mInput.remaining());
+                mInput.get(buffer, offset + n, size);
+                n += size;
+            } while (n < count && fill(false) > 0);
+            return n;
         }
     }
 
@@ -264,33 +470,284 @@ public class TCPConnection implements Closeable {
      */
     @Override
     public void close() {
+        boolean parked;
+        synchronized (mLock) {
+            if (mClosed)
+                return;
+            mClosed = true;
+            parked = mParked;
+            mParked = false;
+            if (mHandlerThread != null && mHandlerThread != Thread.currentThread())
+                mHandlerThread.interrupt();
+            mLock.notifyAll();
+        }
         try {
-            if (mFuture != null)
-                mFuture.cancel(true);
             mSocket.close();
         } catch (Exception e) {
             FirebaseCrash.report(e);
             Log.e(TAG, "unexpected exception while closing the socket", e);
         }
+        // Nobody is handling a parked connection, notify the client here
+        if (parked)
+            notifyClosed();
+    }
+
+    /**
+     * Reads the next byte from the input stream.<br>
+     * The caller must hold {@code mReadLock}.
+     *
+     * @return the read byte or -1 if the end of the stream has been reached
+     * @throws IOException if an error occurs while reading from the stream
+     */
+    private int readByte() throws IOException {
+        if (mChannel == null)
+            return mInputStream.read();
+        if (!mInput.hasRemaining() && fill(true) == -1)
+            return -1;
+        return mInput.get() & 0xFF;
+    }
+
+    /**
+     * Reads more data from the channel into the input buffer.<br>
+     * The caller must hold {@code mReadLock}.
+     *
+     * @param block whether to wait for the data to be available
+     * @return the number of bytes read or -1 if the end of the stream has been reached
+     * @throws IOException if an error occurs while reading from the channel
+     */
+    private int fill(boolean block) throws IOException {
+        mInput.compact();
+        try {
+            while (true) {
+                int n = mChannel.read(mInput);
+                if (n > 0)
+                    touch();
+                if (n != 0 || !block || !mInput.hasRemaining())
+                    return n;
+                await(SelectionKey.OP_READ, mTimeout);
+            }
+        } catch (IOException e) {
+            throw toSocketException(e);
+        } finally {
+            mInput.flip();
+        }
+    }
+
+    /**
+     * Waits for the channel to be ready for an operation.
+     *
+     * @param op      the operation to wait for, OP_READ or OP_WRITE
+     * @param timeout the timeout in ms, use 0 for no timeout
+     * @throws IOException if the connection has been closed or the timeout has expired
+     */
+    private void await(int op, int timeout) throws IOException {
+        synchronized (mLock) {
+            if (mClosed)
+                throw new SocketException("socket closed");
+            setWaiting(op, true);
+        }
+        mLoop.update(mClient);
+        synchronized (mLock) {
+            long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+            try {
+                while (!mClosed && isWaiting(op)) {
+                    long wait = 0;
+                    if (deadline != 0) {
+                        wait = deadline - System.currentTimeMillis();
+                        if (wait <= 0) {
+                            setWaiting(op, false);
+                            throw new SocketTimeoutException();
+                        }
+                    }
+                    mLock.wait(wait);
+                }
+            } catch (InterruptedException e) {
+                setWaiting(op, false);
+                Thread.currentThread().interrupt();
+                throw new SocketException("interrupted");
+            }
+            if (mClosed)
+                throw new SocketException("socket closed");
+        }
+    }
+
+    /**
+     * Sets the waiting flag for an operation, the caller must hold {@code mLock}.
+     */
+    private void setWaiting(int op, boolean waiting) {
+        if (op == SelectionKey.OP_READ)
+            mReadWaiting = waiting;
+        else
+            mWriteWaiting = waiting;
+    }
+
+    /**
+     * Gets the waiting flag for an operation, the caller must hold {@code mLock}.
+     */
+    private boolean isWaiting(int op) {
+        return op == SelectionKey.OP_READ ? mReadWaiting : mWriteWaiting;
+    }
+
+    /**
+     * @return the operations the event loop has to select for this connection
+     */
+    private int interestOps() {
+        synchronized (mLock) {
+            int ops = 0;
+            if (mParked || mReadWaiting)
+                ops |= SelectionKey.OP_READ;
+            if (mWriteWaiting)
+                ops |= SelectionKey.OP_WRITE;
+            return ops;
+        }
+    }
+
+    /**
+     * Called by the event loop when the channel is ready.<br>
+     * Wakes up the waiting threads, or dispatches a parked connection to a worker thread.
+     */
+    private void ready(int readyOps) {
+        boolean dispatch = false;
+        synchronized (mLock) {
+            if ((readyOps & SelectionKey.OP_READ) != 0) {
+                mReadWaiting = false;
+                if (mParked) {
+                    mParked = false;
+                    dispatch = true;
+                }
+            }
+            if ((readyOps & SelectionKey.OP_WRITE) != 0)
+                mWriteWaiting = false;
+            mLock.notifyAll();
+        }
+        if (dispatch)
+            mExecutor.execute(mHandler);
+    }
+
+    /**
+     * Called periodically by the event loop to close the parked connections that are idle.
+     */
+    private void tick(long now) {
+        synchronized (mLock) {
+            if (!mParked || mTimeout <= 0 || now - mLastActivity <= mTimeout)
+                return;
+            mParked = false;
+        }
+        // Closing may take some time, don't do it in the event loop thread
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Log.v(TAG, "connection timed out");
+                close();
+                notifyClosed();
+            }
+        });
+    }
+
+    /**
+     * Parks the connection until new data is available.
+     *
+     * @return false if the connection has been closed
+     */
+    private boolean park() {
+        boolean pending;
+        synchronized (mReadLock) {
+            pending = mInput.hasRemaining();
+        }
+        synchronized (mLock) {
+            mHandlerThread = null;
+            if (mClosed)
+                return false;
+            mParked = !pending;
+        }
+        touch();
+        if (pending)
+            mExecutor.execute(mHandler);
+        else
+            mLoop.update(mClient);
+        return true;
+    }
+
+    /**
+     * Blocks until new data is available on the input stream.
+     *
+     * @return false if the end of the stream has been reached
+     * @throws IOException if an error occurs while reading from the stream
+     */
+    private boolean waitForInput() throws IOException {
+        synchronized (mReadLock) {
+            mInputStream.mark(1);
+            if (mInputStream.read() == -1)
+                return false;
+            mInputStream.reset();
+            return true;
+        }
+    }
+
+    /**
+     * Notifies the client that the connection has closed, only once.
+     */
+    private void notifyClosed() {
+        if (mCallback != null && mClosedNotified.compareAndSet(false, true)) {
+            Log.d(TAG, "stop handling " + mSocket.toString());
+            mCallback.onConnectionClosed(this);
+        }
+    }
+
+    /**
+     * Converts the channel errors to the exceptions thrown by the socket streams.
+     */
+    private static IOException toSocketException(IOException e) {
+        if (e instanceof SocketException || e instanceof SocketTimeoutException)
+            return e;
+        SocketException se = new SocketException(e.getMessage());
+        se.initCause(e);
+        return se;
     }
 
     /**
      * Handle the connections.
      */
     private void handle() {
-        Log.d(TAG, "start handling " + mSocket.toString());
+        boolean keepAlive = false;
+        synchronized (mLock) {
+            mHandlerThread = Thread.currentThread();
+        }
         try {
-            mCallback.onConnectionOpened(this);
-            mCallback.handleConnection(this);
+            if (!mOpened) {
+                mOpened = true;
+                Log.d(TAG, "start handling " + mSocket.toString());
+                mCallback.onConnectionOpened(this);
+            }
+            while (true) {
+                mKeepAlive = false;
+                mCallback.handleConnection(this);
+                keepAlive = mKeepAlive;
+                if (!keepAlive || mChannel != null)
+                    break;
+                // Streams can't be parked, wait for the next request in this thread
+                keepAlive = waitForInput();
+                if (!keepAlive)
+                    break;
+            }
+        } catch (SocketTimeoutException e) {
+            keepAlive = false;
+            Log.v(TAG, "connection timed out");
         } catch (SocketException e) {
+            keepAlive = false;
             Log.v(TAG, "socket closed");
         } catch (Exception e) {
+            keepAlive = false;
             FirebaseCrash.report(e);
             Log.e(TAG, "unexpected exception while handling " + mSocket.toString(), e);
         } finally {
-            Log.d(TAG, "stop handling " + mSocket.toString());
-            close();
-            mCallback.onConnectionClosed(this);
+            if (!keepAlive || !park()) {
+                synchronized (mLock) {
+                    mHandlerThread = null;
+                }
+                close();
+                notifyClosed();
+            }
         }
     }
 }
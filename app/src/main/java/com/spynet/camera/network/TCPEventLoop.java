@@ -0,0 +1,195 @@
+/*
+ * This file is part of spyNet Camera, the Android IP camera
+ *
+ * Copyright (C) 2016-2017 Paolo Dematteis
+ *
+ * spyNet Camera is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * spyNet Camera is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Paolo Dematteis - spynet314@gmail.com
+ */
+
+package com.spynet.camera.network;
+
+import android.util.Log;
+
+import com.google.firebase.crash.FirebaseCrash;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Defines the event loop that multiplexes non-blocking channels on a single selector thread.<br>
+ * A small, fixed number of loops is shared by all the listeners and connections, so that
+ * idle connections do not hold a thread while they wait for the client.
+ */
+final class TCPEventLoop {
+
+    // Number of selector threads
+    private static final int SELECTOR_THREADS = 2;
+    // Max time to wait in select in ms, it is also the resolution of the idle timeouts
+    private static final int SELECT_TIMEOUT = 500;
+
+    private static final String TAG = TCPEventLoop.class.getSimpleName();
+
+    private static TCPEventLoop[] mLoops;               // The shared event loops
+    private static int mNextLoop;                       // Index of the next loop to assign
+
+    private final Selector mSelector;                   // The selector
+    private final ConcurrentLinkedQueue<Client> mUpdates;// Clients whose interest set has changed
+    private final Thread mThread;                       // The selector thread
+
+    /**
+     * Defines the interface that a channel owner has to implement to be driven by the loop.<br>
+     * All the methods are called on the selector thread and must not block.
+     */
+    interface Client {
+        /**
+         * @return the channel to be selected
+         */
+        SelectableChannel getChannel();
+
+        /**
+         * @return the set of operations the client is currently interested in
+         */
+        int getInterestOps();
+
+        /**
+         * Notifies that the channel is ready for some operations.
+         *
+         * @param readyOps the set of ready operations
+         */
+        void onReady(int readyOps);
+
+        /**
+         * Called periodically to let the client check its timeouts.
+         *
+         * @param now the current time in milliseconds
+         */
+        void onTick(long now);
+    }
+
+    /**
+     * Creates a new TCPEventLoop object.
+     *
+     * @param index the loop index, used to name the thread
+     * @throws IOException if the selector cannot be opened
+     */
+    private TCPEventLoop(int index) throws IOException {
+        mSelector = Selector.open();
+        mUpdates = new ConcurrentLinkedQueue<>();
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, TAG + "-" + index);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Returns one of the shared event loops.<br>
+     * Loops are assigned in round-robin to spread the clients among the selector threads.
+     *
+     * @return the event loop to use
+     * @throws IOException if the selectors cannot be opened
+     */
+    static synchronized TCPEventLoop get() throws IOException {
+        if (mLoops == null) {
+            TCPEventLoop[] loops = new TCPEventLoop[SELECTOR_THREADS];
+            for (int i = 0; i < loops.length; i++)
+                loops[i] = new TCPEventLoop(i);
+            mLoops = loops;
+        }
+        mNextLoop = (mNextLoop + 1) % mLoops.length;
+        return mLoops[mNextLoop];
+    }
+
+    /**
+     * Registers a client or updates its interest set.<br>
+     * May be called from any thread, the change is applied by the selector thread.
+     *
+     * @param client the client to update
+     */
+    void update(Client client) {
+        mUpdates.add(client);
+        mSelector.wakeup();
+    }
+
+    /**
+     * Applies the pending registrations and interest set changes.
+     */
+    private void applyUpdates() {
+        Client client;
+        while ((client = mUpdates.poll()) != null) {
+            SelectableChannel channel = client.getChannel();
+            SelectionKey key = channel.keyFor(mSelector);
+            try {
+                if (key == null)
+                    channel.register(mSelector, client.getInterestOps(), client);
+                else if (key.isValid())
+                    key.interestOps(client.getInterestOps());
+            } catch (ClosedChannelException | CancelledKeyException e) {
+                Log.v(TAG, "channel closed");
+            }
+        }
+    }
+
+    /**
+     * Selects the ready channels and notifies their clients.
+     */
+    private void loop() {
+        Log.d(TAG, "event loop started");
+        long lastTick = 0;
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                applyUpdates();
+                mSelector.select(SELECT_TIMEOUT);
+                Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    Client client = (Client) key.attachment();
+                    try {
+                        if (!key.isValid())
+                            continue;
+                        client.onReady(key.readyOps());
+                        if (key.isValid())
+                            key.interestOps(client.getInterestOps());
+                    } catch (CancelledKeyException e) {
+                        Log.v(TAG, "channel closed");
+                    }
+                }
+                long now = System.currentTimeMillis();
+                if (now - lastTick >= SELECT_TIMEOUT) {
+                    lastTick = now;
+                    for (SelectionKey key : mSelector.keys()) {
+                        if (key.isValid())
+                            ((Client) key.attachment()).onTick(now);
+                    }
+                }
+            } catch (Exception e) {
+                FirebaseCrash.report(e);
+                Log.e(TAG, "unexpected exception in the event loop, continue", e);
+            }
+        }
+        Log.d(TAG, "event loop stopped");
+    }
+}
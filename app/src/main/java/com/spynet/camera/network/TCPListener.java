@@ -29,20 +29,25 @@ import org.jetbrains.annotations.NotNull;
 
 import java.io.Closeable;
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.SocketException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 
 /**
- * Defines a generic TCP listener that runs in its own thread.
+ * Defines a generic TCP listener driven by the shared {@link TCPEventLoop}.<br>
+ * Accepted sockets are backed by a non-blocking channel, so that the {@link TCPConnection}
+ * built around them does not hold a thread while the client is idle.
  */
 public class TCPListener implements Closeable {
 
     protected final String TAG = getClass().getSimpleName();
 
-    private final ServerSocket mSocket;             // The listening socket
+    private final ServerSocketChannel mChannel;     // The listening channel
     private final ListenerCallback mCallback;       // The callback to notify the client
-    private final Thread mThread;                   // The listening thread
+    private final TCPEventLoop mLoop;               // The event loop that drives the listener
 
     /**
      * Defines the interface that the client has to implement to receive notifications
@@ -67,15 +72,37 @@ public class TCPListener implements Closeable {
      * @throws IOException if an error occurs while creating the socket
      */
     public TCPListener(int port, @NotNull ListenerCallback callback) throws IOException {
-        mSocket = new ServerSocket(port);
+        mChannel = ServerSocketChannel.open();
+        try {
+            mChannel.socket().bind(new InetSocketAddress(port));
+            mChannel.configureBlocking(false);
+        } catch (IOException e) {
+            mChannel.close();
+            throw e;
+        }
         mCallback = callback;
-        mThread = new Thread(new Runnable() {
+        mLoop = TCPEventLoop.get();
+        mLoop.update(new TCPEventLoop.Client() {
+            @Override
+            public SelectableChannel getChannel() {
+                return mChannel;
+            }
+
+            @Override
+            public int getInterestOps() {
+                return SelectionKey.OP_ACCEPT;
+            }
+
             @Override
-            public void run() {
-                listen();
+            public void onReady(int readyOps) {
+                accept();
+            }
+
+            @Override
+            public void onTick(long now) {
             }
         });
-        mThread.start();
+        Log.d(TAG, "listener started");
     }
 
     /**
@@ -84,8 +111,10 @@ public class TCPListener implements Closeable {
     @Override
     public void close() {
         try {
-            mThread.interrupt();
-            mSocket.close();
+            if (mChannel.isOpen()) {
+                mChannel.close();
+                Log.d(TAG, "listener stopped");
+            }
         } catch (Exception e) {
             FirebaseCrash.report(e);
             Log.e(TAG, "unexpected exception while closing the socket", e);
@@ -93,28 +122,25 @@ public class TCPListener implements Closeable {
     }
 
     /**
-     * Listen for incoming connections and notify the client.
+     * Accepts the pending connections and notify the client.<br>
+     * Called by the event loop thread when the listening channel is ready.
      */
-    private void listen() {
-        Log.d(TAG, "listener started");
-        try {
-            while (true) {
-                try {
-                    Log.v(TAG, "listening for a new connection");
-                    Socket socket = mSocket.accept();
-                    Log.v(TAG, "new connection from " + socket.toString());
-                    mCallback.onNewConnection(this, socket);
-                } catch (SocketException e) {
-                    Log.v(TAG, "socket closed");
+    private void accept() {
+        while (true) {
+            try {
+                SocketChannel channel = mChannel.accept();
+                if (channel == null)
                     break;
-                } catch (Exception e) {
-                    FirebaseCrash.report(e);
-                    Log.e(TAG, "unexpected exception while listening, continue", e);
-                }
+                Socket socket = channel.socket();
+                Log.v(TAG, "new connection from " + socket.toString());
+                mCallback.onNewConnection(this, socket);
+            } catch (IOException e) {
+                Log.v(TAG, "cannot accept the connection");
+                break;
+            } catch (Exception e) {
+                FirebaseCrash.report(e);
+                Log.e(TAG, "unexpected exception while listening, continue", e);
             }
-        } finally {
-            close();
-            Log.d(TAG, "listener stopped");
         }
     }
 }
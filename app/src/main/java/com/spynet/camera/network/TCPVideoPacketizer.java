@@ -24,6 +24,7 @@ package com.spynet.camera.network;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Defines the RTP packetizer to stream AVC video slices over a TCP channel.<br>
@@ -34,13 +35,20 @@ import java.io.IOException;
  * two-byte integer in network byte order. The stream data follows
  * immediately afterwards, without a CRLF, but including the upper-layer
  * protocol headers. Each $ block contains exactly one upper-layer
- * protocol data unit, e.g., one RTP packet.
+ * protocol data unit, e.g., one RTP packet.<br>
+ * The packets of a picture are coalesced and written at once with a gathering write,
+ * the payloads are not copied.
  */
 public class TCPVideoPacketizer extends RTPVideoPacketizer {
 
     private static final int RTP_PACKET_SIZE = 65000;
+    private static final int BATCH_SIZE = 64;       // Max packets coalesced in a single write
 
-    private final byte[] mPacket;                   // The RTP packet
+    private final byte[] mRTCPHeader;               // The interleaved header of the RTCP packets
+    private final byte[] mHeaders;                  // The interleaved and RTP headers of the queued packets
+    private final ByteBuffer[] mBatch;              // The headers and payloads of the queued packets
+    private int mQueued;                            // Number of queued packets
+    private final StreamConnection mConnection;     // The connection that owns the packetizer
     private final int mRTPChannel;                  // The channel to use to send RTP packets
     private final int mRTCPChannel;                 // The channel to use to send RTCP packets
 
@@ -57,27 +65,57 @@ public class TCPVideoPacketizer extends RTPVideoPacketizer {
                               int rtpChannel, int rtcpChannel,
                               int clock, int seq) {
         super(connection, clock, RTP_PACKET_SIZE, seq);
-        mPacket = new byte[4 + RTP_PACKET_SIZE];
+        mConnection = connection;
         mRTPChannel = rtpChannel;
         mRTCPChannel = rtcpChannel;
-        mPacket[0] = '$';
+        mRTCPHeader = new byte[]{'$', (byte) mRTCPChannel, 0, 0};
+        mHeaders = new byte[BATCH_SIZE * (4 + 12)];
+        mBatch = new ByteBuffer[BATCH_SIZE * 2];
+    }
+
+    /**
+     * Queues the packet, it is written by {@code rtpFlush()}.
+     */
+    @Override
+    protected void rtpSend(byte[] header, byte[] payload, int offset, int length)
+            throws IOException {
+        int pos = mQueued * (4 + 12);
+        mHeaders[pos] = '$';
+        mHeaders[pos + 1] = (byte) mRTPChannel;
+        mHeaders[pos + 2] = (byte) ((12 + length) >> 8);
+        mHeaders[pos + 3] = (byte) (12 + length);
+        System.arraycopy(header, 0, mHeaders, pos + 4, 12);
+        mBatch[mQueued * 2] = ByteBuffer.wrap(mHeaders, pos, 4 + 12);
+        mBatch[mQueued * 2 + 1] = ByteBuffer.wrap(payload, offset, length);
+        if (++mQueued == BATCH_SIZE)
+            rtpFlush();
     }
 
     @Override
-    protected void rtpSend(byte[] data, int length) throws IOException {
-        mPacket[1] = (byte) mRTPChannel;
-        mPacket[2] = (byte) (length >> 8);
-        mPacket[3] = (byte) length;
-        System.arraycopy(data, 0, mPacket, 4, length);
-        mConnection.write(mPacket, 0, 4 + length);
+    protected void rtpFlush() throws IOException {
+        if (mQueued == 0)
+            return;
+        try {
+            mConnection.write(mBatch, 0, mQueued * 2);
+        } finally {
+            // Do not keep the payloads referenced
+            for (int i = 0; i < mQueued * 2; i++)
+                mBatch[i] = null;
+            mQueued = 0;
+        }
     }
 
     @Override
     protected void rtcpSend(byte[] data, int length) throws IOException {
-        mPacket[1] = (byte) (mRTCPChannel);
-        mPacket[2] = (byte) (length >> 8);
-        mPacket[3] = (byte) length;
-        System.arraycopy(data, 0, mPacket, 4, length);
-        mConnection.write(mPacket, 0, 4 + length);
+        mRTCPHeader[2] = (byte) (length >> 8);
+        mRTCPHeader[3] = (byte) length;
+        mConnection.write(mRTCPHeader, 0, 4, data, 0, length);
+    }
+
+    /**
+     * @return the channel used to send and receive the RTCP packets
+     */
+    public int getRTCPChannel() {
+        return mRTCPChannel;
     }
 }
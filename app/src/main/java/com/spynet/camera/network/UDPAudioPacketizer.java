@@ -24,79 +24,83 @@ package com.spynet.camera.network;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 
 /**
- * Defines the RTP packetizer to stream AAC audio using the UDP protocol.
+ * Defines the RTP packetizer to stream AAC audio using the UDP protocol.<br>
+ * The packets are sent from the {@link UDPTransport} of the track, shared by all the sessions.
  */
 public class UDPAudioPacketizer extends RTPAudioPacketizer {
 
     protected static final int RTP_PACKET_SIZE = 1400;
 
-    private final DatagramSocket mRTPSocket;        // The socket to send RTP packets to
-    private final DatagramSocket mRTCPSocket;       // The socket to send RTCP packets to
-    private final DatagramPacket mPacket;           // The UDP packet to send
-    private final int mRTPPort;                     // The client port used by the RTP protocol
-    private final int mRTCPPort;                    // The client port used by the RTCP protocol
+    private final UDPTransport mTransport;          // The sockets to send the packets from
+    private final InetSocketAddress mRTPAddress;    // The client address used by the RTP protocol
+    private final InetSocketAddress mRTCPAddress;   // The client address used by the RTCP protocol
+    private final ByteBuffer mBuffer;               // The RTP packet buffer
 
     /**
      * Creates a new UDPAudioPacketizer object.
      *
-     * @param connection the StreamConnection that owns the packetizer
+     * @param source     the source of the media, e.g. the StreamConnection of the session
+     * @param transport  the UDP sockets of the track
      * @param host       the host to send packets to
      * @param rtpPort    the UDP port to send RTP packets to
      * @param rtcpPort   the UDP port to send RTCP packets to
      * @param clock      the clock rate in Hz
      * @param seq        the sequence number of the first packet
      */
-    public UDPAudioPacketizer(@NotNull StreamConnection connection,
+    public UDPAudioPacketizer(@NotNull RTPSource source, @NotNull UDPTransport transport,
                               InetAddress host, int rtpPort, int rtcpPort,
-                              int clock, int seq)
-            throws SocketException {
-        super(connection, clock, RTP_PACKET_SIZE, seq);
-        mRTPSocket = new DatagramSocket();
-        mRTCPSocket = new DatagramSocket(mRTPSocket.getLocalPort() + 1);
-        mPacket = new DatagramPacket(new byte[RTP_PACKET_SIZE], RTP_PACKET_SIZE);
-        mPacket.setAddress(host);
-        mRTPPort = rtpPort;
-        mRTCPPort = rtcpPort;
+                              int clock, int seq) {
+        super(source, clock, RTP_PACKET_SIZE, seq);
+        mTransport = transport;
+        mRTPAddress = new InetSocketAddress(host, rtpPort);
+        mRTCPAddress = new InetSocketAddress(host, rtcpPort);
+        mBuffer = ByteBuffer.allocateDirect(RTP_PACKET_SIZE);
+    }
+
+    /**
+     * Starts to send packets, and to receive the RTCP packets of the client.
+     */
+    @Override
+    public synchronized void start() {
+        super.start();
+        mTransport.register(mRTCPAddress, getReceiver());
     }
 
     @Override
     protected void rtpSend(byte[] data, int length) throws IOException {
-        mPacket.setData(data, 0, length);
-        mPacket.setPort(mRTPPort);
-        mRTPSocket.send(mPacket);
+        mBuffer.clear();
+        mBuffer.put(data, 0, length);
+        mBuffer.flip();
+        mTransport.sendRTP(mBuffer, mRTPAddress);
     }
 
     @Override
     protected void rtcpSend(byte[] data, int length) throws IOException {
-        mPacket.setData(data, 0, length);
-        mPacket.setPort(mRTCPPort);
-        mRTCPSocket.send(mPacket);
+        mTransport.sendRTCP(ByteBuffer.wrap(data, 0, length), mRTCPAddress);
     }
 
     @Override
     public void close() {
         super.close();
-        mRTPSocket.close();
-        mRTCPSocket.close();
+        mTransport.unregister(mRTCPAddress, getReceiver());
     }
 
     /**
      * @return the local port used by the RTP protocol
      */
     public int getRTPLocalPort() {
-        return mRTPSocket.getLocalPort();
+        return mTransport.getRTPPort();
     }
 
     /**
      * @return the local port used by the RTCP protocol
      */
     public int getRTCPLocalPort() {
-        return mRTCPSocket.getLocalPort();
+        return mTransport.getRTCPPort();
     }
 }
@@ -0,0 +1,243 @@
+/*
+ * This file is part of spyNet Camera, the Android IP camera
+ *
+ * Copyright (C) 2016-2017 Paolo Dematteis
+ *
+ * spyNet Camera is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * spyNet Camera is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Paolo Dematteis - spynet314@gmail.com
+ */
+
+package com.spynet.camera.network;
+
+import android.os.Build;
+import android.util.Log;
+
+import com.google.firebase.crash.FirebaseCrash;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Defines the UDP sockets of an RTP track, shared by all the sessions that stream it.<br>
+ * The RTP and RTCP channels are bound once to an even/odd pair of ports, so the server
+ * ports are the same for all the clients. The packets are sent to the address of each
+ * client, and the RTCP packets received are passed to the receiver registered for their
+ * source address, or to the only receiver of their host if a NAT has changed the port.
+ */
+final class UDPTransport implements Closeable {
+
+    private static final String TAG = UDPTransport.class.getSimpleName();
+
+    // Max RTCP compound packet size
+    private static final int MAX_PACKET_SIZE = 1500;
+    // Max number of attempts to bind a free pair of ports
+    private static final int BIND_ATTEMPTS = 10;
+
+    private final DatagramChannel mRTPChannel;      // The channel to send RTP packets from
+    private final DatagramChannel mRTCPChannel;     // The channel to send and receive RTCP packets
+    private final ConcurrentHashMap<InetSocketAddress, RTCPReceiver>
+            mReceivers;                             // The RTCP receivers, by client address
+
+    /**
+     * Creates a new UDPTransport object, and starts receiving the RTCP packets.
+     *
+     * @param name the track name, used to name the receiving thread
+     * @throws IOException if a free pair of ports cannot be bound
+     */
+    UDPTransport(@NotNull String name) throws IOException {
+        DatagramChannel rtp = null, rtcp = null;
+        for (int i = 0; i < BIND_ATTEMPTS && rtcp == null; i++) {
+            rtp = DatagramChannel.open();
+            try {
+                rtp.socket().bind(new InetSocketAddress(0));
+                int port = rtp.socket().getLocalPort();
+                // RFC 3550, section 11: RTP uses an even port, RTCP the next one
+                if ((port & 1) == 0) {
+                    rtcp = DatagramChannel.open();
+                    rtcp.socket().bind(new InetSocketAddress(port + 1));
+                }
+            } catch (IOException e) {
+                if (rtcp != null)
+                    rtcp.close();
+                rtcp = null;
+            }
+            if (rtcp == null)
+                rtp.close();
+        }
+        if (rtcp == null)
+            throw new IOException("cannot bind the RTP/RTCP ports");
+        mRTPChannel = rtp;
+        mRTCPChannel = rtcp;
+        mReceivers = new ConcurrentHashMap<>();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                receive();
+            }
+        }, TAG + "-" + name);
+        thread.setDaemon(true);
+        thread.start();
+        Log.v(TAG, name + " bound to ports " + getRTPPort() + "-" + getRTCPPort());
+    }
+
+    /**
+     * Closes the channels, the receiving thread stops.
+     */
+    @Override
+    public void close() {
+        try {
+            mRTPChannel.close();
+            mRTCPChannel.close();
+        } catch (IOException e) {
+            Log.e(TAG, "cannot close the channels", e);
+        }
+    }
+
+    /**
+     * Sets the time-to-live of the multicast packets.<br>
+     * Before Android 7.0 the channels cannot set it, the system default (1) is kept.
+     *
+     * @param ttl the time-to-live
+     */
+    void setMulticastTTL(int ttl) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            try {
+                mRTPChannel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, ttl);
+                mRTCPChannel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, ttl);
+            } catch (IOException e) {
+                Log.e(TAG, "cannot set the multicast TTL", e);
+            }
+        } else {
+            Log.w(TAG, "multicast TTL not supported, using the default");
+        }
+    }
+
+    /**
+     * @return the local port used by the RTP protocol
+     */
+    int getRTPPort() {
+        return mRTPChannel.socket().getLocalPort();
+    }
+
+    /**
+     * @return the local port used by the RTCP protocol
+     */
+    int getRTCPPort() {
+        return mRTCPChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Registers the receiver of the RTCP packets sent by a client.
+     *
+     * @param address  the client RTCP address
+     * @param receiver the receiver
+     */
+    void register(@NotNull InetSocketAddress address, @NotNull RTCPReceiver receiver) {
+        mReceivers.put(address, receiver);
+    }
+
+    /**
+     * Unregisters the receiver of the RTCP packets sent by a client.
+     *
+     * @param address  the client RTCP address
+     * @param receiver the receiver
+     */
+    void unregister(@NotNull InetSocketAddress address, @NotNull RTCPReceiver receiver) {
+        mReceivers.remove(address, receiver);
+    }
+
+    /**
+     * Sends an RTP packet.
+     *
+     * @param packet  the packet, from its position to its limit
+     * @param address the client RTP address
+     */
+    void sendRTP(@NotNull ByteBuffer packet, @NotNull SocketAddress address)
+            throws IOException {
+        mRTPChannel.send(packet, address);
+    }
+
+    /**
+     * Sends an RTCP packet.
+     *
+     * @param packet  the packet, from its position to its limit
+     * @param address the client RTCP address
+     */
+    void sendRTCP(@NotNull ByteBuffer packet, @NotNull SocketAddress address)
+            throws IOException {
+        mRTCPChannel.send(packet, address);
+    }
+
+    /**
+     * Receives the RTCP packets until the channel is closed.
+     */
+    private void receive() {
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_PACKET_SIZE);
+        try {
+            while (mRTCPChannel.isOpen()) {
+                buffer.clear();
+                InetSocketAddress source = (InetSocketAddress) mRTCPChannel.receive(buffer);
+                RTCPReceiver receiver = mReceivers.get(source);
+                if (receiver != null) {
+                    receiver.onPacket(buffer.array(), 0, buffer.position(), true);
+                } else {
+                    receiver = findReceiver(source.getAddress());
+                    if (receiver != null)
+                        receiver.onPacket(buffer.array(), 0, buffer.position(), false);
+                }
+            }
+        } catch (ClosedChannelException e) {
+            Log.v(TAG, "channel closed");
+        } catch (IOException e) {
+            Log.e(TAG, "cannot receive the RTCP packets", e);
+        } catch (Exception e) {
+            FirebaseCrash.report(e);
+            Log.e(TAG, "unexpected exception", e);
+        }
+    }
+
+    /**
+     * Finds the receiver of a packet whose source address is not used by any client.<br>
+     * A NAT may have changed the port: the receiver is used only if it is the only one
+     * of the host, since the packets of another client cannot be told apart.
+     *
+     * @param host the source host
+     * @return the receiver, null if none or not unique
+     */
+    @Nullable
+    private RTCPReceiver findReceiver(InetAddress host) {
+        RTCPReceiver receiver = null;
+        for (Map.Entry<InetSocketAddress, RTCPReceiver> entry : mReceivers.entrySet()) {
+            if (entry.getKey().getAddress().equals(host)) {
+                if (receiver != null)
+                    return null;
+                receiver = entry.getValue();
+            }
+        }
+        return receiver;
+    }
+}
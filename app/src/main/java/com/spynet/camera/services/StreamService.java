@@ -39,8 +39,9 @@ import android.widget.Toast;
 
 import com.google.firebase.crash.FirebaseCrash;
 import com.spynet.camera.R;
+import com.spynet.camera.common.MediaDispatcher;
 import com.spynet.camera.common.Utils;
-import com.spynet.camera.db.ConnectionsDbHelper;
+import com.spynet.camera.db.ConnectionsJournal;
 import com.spynet.camera.media.AudioData;
 
 import com.spynet.camera.media.CameraInfo;
@@ -82,6 +83,10 @@ public class StreamService extends Service
 
     // The maximum connections log depth in milliseconds
     private static final long LOG_MAX_DEPTH = 30L * 24L * 60L * 60L * 1000L;
+    // Number of H264 slices the server may lag behind the encoder
+    private static final int VIDEO_DISPATCH_CAPACITY = 64;
+    // Number of audio buffers the server may lag behind the encoder
+    private static final int AUDIO_DISPATCH_CAPACITY = 64;
 
     protected final String TAG = getClass().getSimpleName();
 
@@ -94,8 +99,13 @@ public class StreamService extends Service
     private WeakReference<IStreamServiceCallBack>       // Callback to communicate with the client
             mCallBack;                                  //
     private Recorder mRecorder;                         // The audio/video recorder
-    private StreamServer mStreamServer;                 // The stream server
-    private MangocamAdapter mMangocamAdapter;           // The Mangocam Connect API adapter
+    private volatile StreamServer mStreamServer;        // The stream server
+    private volatile MangocamAdapter mMangocamAdapter;  // The Mangocam Connect API adapter
+    private MediaDispatcher<VideoFrame>                 // Decouples the H264 encoder from the server
+            mVideoDispatcher;                           //
+    private MediaDispatcher<AudioData>                  // Decouples the audio encoder from the server
+            mAudioDispatcher;                           //
+    private ConnectionsJournal mConnectionsJournal;     // The connections log journal
     private AngelcamAdapter mAngelcamAdapter;           // The Angelcam Ready API adapter
     private BroadcastReceiver mControlReceiver;         // The BroadcastReceiver to control the service
     private ConnectivityMonitor mConnectivityMonitor;   // The connectivity monitor
@@ -424,6 +434,9 @@ public class StreamService extends Service
     public void onCreate() {
         super.onCreate();
 
+        // Open the connections log, before the StreamServer notifies the first stream
+        mConnectionsJournal = new ConnectionsJournal(this, LOG_MAX_DEPTH);
+
         // Start the StreamServer
         int serverPort = SettingsActivity.getServerPort(this);
         try {
@@ -433,6 +446,39 @@ public class StreamService extends Service
             Log.e(TAG, "cannot create the StreamServer on port " + serverPort, e);
         }
 
+        // Start the media dispatchers, that forward the encoded data to the current StreamServer
+        mVideoDispatcher = new MediaDispatcher<>(VIDEO_DISPATCH_CAPACITY);
+        mVideoDispatcher.addConsumer("video", new MediaDispatcher.Consumer<VideoFrame>() {
+            @Override
+            public void onData(VideoFrame frame) throws InterruptedException {
+                StreamServer server = mStreamServer;
+                if (server != null)
+                    server.push(frame);
+            }
+
+            @Override
+            public void onOverrun(long count) {
+                Log.w(TAG, count + " video slices lost, the server is too slow");
+                StreamServer server = mStreamServer;
+                if (server != null)
+                    server.onVideoOverrun(count);
+            }
+        });
+        mAudioDispatcher = new MediaDispatcher<>(AUDIO_DISPATCH_CAPACITY);
+        mAudioDispatcher.addConsumer("audio", new MediaDispatcher.Consumer<AudioData>() {
+            @Override
+            public void onData(AudioData data) throws InterruptedException {
+                StreamServer server = mStreamServer;
+                if (server != null)
+                    server.push(data);
+            }
+
+            @Override
+            public void onOverrun(long count) {
+                Log.w(TAG, count + " audio buffers lost, the server is too slow");
+            }
+        });
+
         // Start the MangocamAdapter
         if (SettingsActivity.getMangoEnabled(this)) {
             int[] size = SettingsActivity.getVideoResolution(this);
@@ -507,6 +553,10 @@ public class StreamService extends Service
         if (mRecorder != null)
             mRecorder.close();
 
+        // Stop the media dispatchers
+        mVideoDispatcher.close();
+        mAudioDispatcher.close();
+
         // Stop the AngelcamAdapter
         if (mAngelcamAdapter != null)
             mAngelcamAdapter.close();
@@ -518,6 +568,9 @@ public class StreamService extends Service
         // Stop the StreamServer
         if (mStreamServer != null)
             mStreamServer.close();
+
+        // Write the pending connections log entries
+        mConnectionsJournal.close();
     }
 
     @Override
@@ -628,13 +681,10 @@ public class StreamService extends Service
                 Log.e(TAG, "failed to notify stream started", e);
             }
         }
-        // Log the connection
-        ConnectionsDbHelper dbHelper = new ConnectionsDbHelper(this);
-        long timestamp = System.currentTimeMillis();
-        dbHelper.log(host, userAgent,
+        // Log the connection, the entry is written in background
+        mConnectionsJournal.logStart(host, userAgent,
                 String.format(getString(R.string.log_connections_stream_info), type.toUpperCase()),
-                id, timestamp, 0);
-        dbHelper.drop(timestamp - LOG_MAX_DEPTH);
+                id, System.currentTimeMillis());
     }
 
     @Override
@@ -672,8 +722,7 @@ public class StreamService extends Service
         }
         // Log the connection
         try {
-            ConnectionsDbHelper dbHelper = new ConnectionsDbHelper(this);
-            dbHelper.log(host, id, System.currentTimeMillis());
+            mConnectionsJournal.logStop(host, id, System.currentTimeMillis());
         } catch (Exception e) {
             FirebaseCrash.report(e);
             Log.e(TAG, "unexpected exception while logging the connection", e);
@@ -782,6 +831,18 @@ public class StreamService extends Service
                     }
                 }
                 break;
+            // Adapt the H264 bitrate to the network, never above the configured one
+            case "video-bitrate":
+                int bitrate = Utils.tryParseInt(params, 0);
+                if (bitrate > 0) {
+                    synchronized (mRecorderLock) {
+                        if (mRecorder != null) {
+                            mRecorder.setH264Bitrate(
+                                    Math.min(bitrate, SettingsActivity.getH264Bitrate(this)));
+                        }
+                    }
+                }
+                break;
             // Wait for the specified time (useful when using multiple commands on the same request)
             case "delay":
                 int delay = Utils.tryParseInt(params, 0);
@@ -831,32 +892,30 @@ public class StreamService extends Service
 
     @Override
     public void onDataAvailable(VideoFrame frame) {
-        // Forward the video frame (compressed or uncompressed)
-        synchronized (mServerLock) {
+        // Forward the video frame without waiting for the network: JPEG frames are published
+        // to the rings read by the clients, H264 data goes through the video dispatcher
+        if (frame.isJPEG()) {
             try {
-                if (mStreamServer != null)
-                    mStreamServer.push(frame);
-                if (mMangocamAdapter != null)
-                    mMangocamAdapter.push(frame);
+                StreamServer server = mStreamServer;
+                if (server != null)
+                    server.push(frame);
+                MangocamAdapter mangocam = mMangocamAdapter;
+                // Mangocam uploads the frames at the configured quality and size
+                if (mangocam != null && frame.getKey() == null)
+                    mangocam.push(frame);
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
                 Log.e(TAG, "push frame interrupted");
             }
+        } else {
+            mVideoDispatcher.publish(frame);
         }
     }
 
     @Override
     public void onDataAvailable(AudioData data) {
-        // Forward the audio data
-        synchronized (mServerLock) {
-            try {
-                if (mStreamServer != null)
-                    mStreamServer.push(data);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                Log.e(TAG, "push audio interrupted");
-            }
-        }
+        // Forward the audio data without waiting for the network
+        mAudioDispatcher.publish(data);
     }
 
     @Override
@@ -95,6 +95,9 @@ public class SettingsActivity
     private static final String KEY_PREF_SERVER_PORT = "pref_server_port";
     private static final String KEY_PREF_SERVER_UPNP = "pref_server_upnp";
     private static final String KEY_PREF_SERVER_WIFIONLY = "pref_server_wifionly";
+    private static final String KEY_PREF_SERVER_MULTICAST_ADDRESS = "pref_server_multicast_address";
+    private static final String KEY_PREF_SERVER_MULTICAST_PORT = "pref_server_multicast_port";
+    private static final String KEY_PREF_SERVER_MULTICAST_TTL = "pref_server_multicast_ttl";
     private static final String KEY_PREF_SERVER_AUTHENTICATE = "pref_server_authenticate";
     private static final String KEY_PREF_SERVER_USERNAME = "pref_server_username";
     private static final String KEY_PREF_SERVER_PASSWORD = "pref_server_password";
@@ -302,6 +305,32 @@ public class SettingsActivity
         return preferences.getBoolean(KEY_PREF_SERVER_WIFIONLY, true);
     }
 
+    /**
+     * @return the server multicast group address preference
+     */
+    public static String getServerMulticastAddress(Context context) {
+        SharedPreferences preferences = getSharedPreferences(context);
+        return preferences.getString(KEY_PREF_SERVER_MULTICAST_ADDRESS, "239.255.10.10");
+    }
+
+    /**
+     * @return the server multicast first port preference
+     */
+    public static int getServerMulticastPort(Context context) {
+        SharedPreferences preferences = getSharedPreferences(context);
+        String port = preferences.getString(KEY_PREF_SERVER_MULTICAST_PORT, "5004");
+        return Utils.tryParseInt(port, 5004);
+    }
+
+    /**
+     * @return the server multicast time-to-live preference
+     */
+    public static int getServerMulticastTTL(Context context) {
+        SharedPreferences preferences = getSharedPreferences(context);
+        String ttl = preferences.getString(KEY_PREF_SERVER_MULTICAST_TTL, "1");
+        return Utils.tryParseInt(ttl, 1);
+    }
+
     /**
      * @return the server 'use authentication' flag preference
      */
@@ -751,6 +780,60 @@ public class SettingsActivity
                     }
                 });
             }
+            // Setup the change listener to verify the multicast address
+            preference = findPreference(KEY_PREF_SERVER_MULTICAST_ADDRESS);
+            if (preference != null) {
+                preference.setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
+                    @Override
+                    public boolean onPreferenceChange(Preference preference, Object newValue) {
+                        if (!((String) newValue).matches(
+                                "2(2[4-9]|3[0-9])(\\.(25[0-5]|2[0-4][0-9]|1[0-9][0-9]|[1-9]?[0-9])){3}")) {
+                            Toast.makeText(getActivity(), String.format(
+                                    getResources().getString(R.string.error_invalid_multicast),
+                                    preference.getTitle()),
+                                    Toast.LENGTH_LONG).show();
+                            return false;
+                        }
+                        return true;
+                    }
+                });
+            }
+            // Setup the change listener to verify the multicast port range, RTP uses even ports
+            preference = findPreference(KEY_PREF_SERVER_MULTICAST_PORT);
+            if (preference != null) {
+                preference.setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
+                    @Override
+                    public boolean onPreferenceChange(Preference preference, Object newValue) {
+                        int value = Utils.tryParseInt((String) newValue, 0);
+                        if (value < 1024 || value > 65532 || (value & 1) != 0) {
+                            Toast.makeText(getActivity(), String.format(
+                                    getResources().getString(R.string.error_invalid_even_range),
+                                    preference.getTitle(), 1024, 65532),
+                                    Toast.LENGTH_LONG).show();
+                            return false;
+                        }
+                        return true;
+                    }
+                });
+            }
+            // Setup the change listener to verify the multicast TTL range
+            preference = findPreference(KEY_PREF_SERVER_MULTICAST_TTL);
+            if (preference != null) {
+                preference.setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
+                    @Override
+                    public boolean onPreferenceChange(Preference preference, Object newValue) {
+                        int value = Utils.tryParseInt((String) newValue, 0);
+                        if (value < 1 || value > 255) {
+                            Toast.makeText(getActivity(), String.format(
+                                    getResources().getString(R.string.error_invalid_range),
+                                    preference.getTitle(), 1, 255),
+                                    Toast.LENGTH_LONG).show();
+                            return false;
+                        }
+                        return true;
+                    }
+                });
+            }
             // Setup the change listener to warn the user when the mobile data is enabled
             preference = findPreference(KEY_PREF_SERVER_WIFIONLY);
             if (preference != null) {
@@ -1002,6 +1085,9 @@ public class SettingsActivity
             if (key.equals(KEY_PREF_SERVER_PORT) ||
                     key.equals(KEY_PREF_SERVER_UPNP) ||
                     key.equals(KEY_PREF_SERVER_WIFIONLY) ||
+                    key.equals(KEY_PREF_SERVER_MULTICAST_ADDRESS) ||
+                    key.equals(KEY_PREF_SERVER_MULTICAST_PORT) ||
+                    key.equals(KEY_PREF_SERVER_MULTICAST_TTL) ||
                     key.equals(KEY_PREF_SERVER_AUTHENTICATE) ||
                     key.equals(KEY_PREF_SERVER_USERNAME) ||
                     key.equals(KEY_PREF_SERVER_PASSWORD) ||
@@ -0,0 +1,92 @@
+/*
+ * This file is part of spyNet Camera, the Android IP camera
+ *
+ * Copyright (C) 2016-2017 Paolo Dematteis
+ *
+ * spyNet Camera is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * spyNet Camera is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Paolo Dematteis - spynet314@gmail.com
+ */
+
+
+package com.spynet.camera.common;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks that the pool recycles the arrays instead of allocating new ones.
+ */
+public class BufferPoolTest {
+
+    private final int LENGTH = 640 * 480 * 3 / 2;
+
+    @Test
+    public void reusesInSteadyState() {
+        BufferPool pool = new BufferPool(4);
+        // Warm up with the arrays in flight at the same time
+        byte[] a = pool.obtain(LENGTH);
+        byte[] b = pool.obtain(LENGTH);
+        pool.recycle(a);
+        pool.recycle(b);
+        assertEquals(2, pool.getAllocated());
+        assertEquals(0, pool.getReused());
+        for (int i = 0; i < 1000; i++) {
+            a = pool.obtain(LENGTH);
+            b = pool.obtain(LENGTH);
+            assertEquals(LENGTH, a.length);
+            assertNotSame(a, b);
+            pool.recycle(a);
+            pool.recycle(b);
+        }
+        assertEquals(2, pool.getAllocated());
+        assertEquals(2000, pool.getReused());
+    }
+
+    @Test
+    public void keepsSizeClasses() {
+        BufferPool pool = new BufferPool(4);
+        byte[] small = pool.obtain(100);
+        pool.recycle(small);
+        byte[] large = pool.obtain(200);
+        assertEquals(200, large.length);
+        assertSame(small, pool.obtain(100));
+        assertEquals(2, pool.getAllocated());
+        assertEquals(1, pool.getReused());
+    }
+
+    @Test
+    public void dropsBeyondCapacity() {
+        BufferPool pool = new BufferPool(1);
+        pool.recycle(new byte[10]);
+        pool.recycle(new byte[10]);
+        pool.obtain(10);
+        pool.obtain(10);
+        assertEquals(1, pool.getReused());
+        assertEquals(1, pool.getAllocated());
+    }
+
+    @Test
+    public void discardsOnClear() {
+        BufferPool pool = new BufferPool(4);
+        pool.recycle(pool.obtain(10));
+        pool.clear();
+        pool.obtain(10);
+        assertEquals(2, pool.getAllocated());
+        assertEquals(0, pool.getReused());
+    }
+}
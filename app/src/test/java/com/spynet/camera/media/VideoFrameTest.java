@@ -0,0 +1,99 @@
+/*
+ * This file is part of spyNet Camera, the Android IP camera
+ *
+ * Copyright (C) 2016-2017 Paolo Dematteis
+ *
+ * spyNet Camera is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * spyNet Camera is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Paolo Dematteis - spynet314@gmail.com
+ */
+
+
+package com.spynet.camera.media;
+
+import com.spynet.camera.common.BufferPool;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the reference counting of the frames obtained from a pool.
+ */
+public class VideoFrameTest {
+
+    private final int WIDTH = 320;
+    private final int HEIGHT = 240;
+    private final int FORMAT = 17;                  // ImageFormat.NV21
+
+    private final byte[] mData = new byte[WIDTH * HEIGHT * 3 / 2];
+
+    private VideoFrame obtain(BufferPool pool, long timestamp) {
+        return VideoFrame.obtain(pool, mData, WIDTH, HEIGHT, FORMAT, timestamp);
+    }
+
+    @Test
+    public void copiesData() {
+        mData[0] = 42;
+        VideoFrame frame = obtain(new BufferPool(2), 0);
+        assertArrayEquals(mData, frame.getData());
+        frame.release();
+    }
+
+    @Test
+    public void recyclesInSteadyState() {
+        BufferPool pool = new BufferPool(2);
+        obtain(pool, 0).release();
+        assertEquals(1, pool.getAllocated());
+        for (int i = 1; i <= 1000; i++) {
+            // The frame is shared by two consumers, e.g. the H264 and the MJPEG encoders
+            VideoFrame frame = obtain(pool, i).retain();
+            frame.release();
+            frame.release();
+        }
+        assertEquals(1, pool.getAllocated());
+        assertEquals(1000, pool.getReused());
+    }
+
+    @Test
+    public void recyclesOnLastRelease() {
+        BufferPool pool = new BufferPool(2);
+        VideoFrame frame = obtain(pool, 0).retain().retain();
+        frame.release();
+        frame.release();
+        obtain(pool, 1);
+        assertEquals(2, pool.getAllocated());
+        frame.release();
+        obtain(pool, 2);
+        assertEquals(2, pool.getAllocated());
+        assertEquals(1, pool.getReused());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void failsOnExtraRelease() {
+        VideoFrame frame = obtain(new BufferPool(2), 0);
+        frame.release();
+        frame.release();
+    }
+
+    @Test
+    public void ignoresUnpooledFrames() {
+        VideoFrame frame = VideoFrame.wrap(mData, 0);
+        frame.retain();
+        frame.release();
+        frame.release();
+        frame.release();
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * This file is part of spyNet Camera, the Android IP camera
+ *
+ * Copyright (C) 2016-2017 Paolo Dematteis
+ *
+ * spyNet Camera is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * spyNet Camera is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Paolo Dematteis - spynet314@gmail.com
+ */
+
+package com.spynet.camera.network;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the decisions of the congestion controller.
+ */
+public class BitrateControllerTest {
+
+    private final int MIN_BITRATE = 500000;
+    private final int MAX_BITRATE = 2000000;
+
+    private final Object mSession = new Object();
+    private BitrateController mController;
+    private int mReports;
+
+    @Before
+    public void setUp() {
+        mController = new BitrateController(MIN_BITRATE, MAX_BITRATE);
+        mReports = 0;
+    }
+
+    /**
+     * Feeds a new RTCP report of the session and updates the controller.
+     */
+    private int update(long now, double fractionLost, double rtt, double jitter, int backlog) {
+        mController.report(mSession, ++mReports, fractionLost, rtt, jitter, backlog);
+        return mController.update(now);
+    }
+
+    private int lossy(long now) {
+        return update(now, 10, 20, 5, 0);
+    }
+
+    private int clear(long now) {
+        return update(now, 0, 20, 5, 0);
+    }
+
+    @Test
+    public void decreasesOnLoss() {
+        assertEquals(BitrateController.HOLD, update(0, 9.9, 20, 5, 0));
+        assertEquals(MAX_BITRATE, mController.getTarget());
+        assertEquals(BitrateController.DECREASE, lossy(1000));
+        assertEquals((int) (MAX_BITRATE * 0.85), mController.getTarget());
+    }
+
+    @Test
+    public void holdsBetweenDecreases() {
+        assertEquals(BitrateController.DECREASE, lossy(0));
+        int target = mController.getTarget();
+        assertEquals(BitrateController.HOLD, lossy(1000));
+        assertEquals(BitrateController.HOLD, lossy(1999));
+        assertEquals(target, mController.getTarget());
+        assertEquals(BitrateController.DECREASE, lossy(2000));
+        assertEquals((int) (target * 0.85), mController.getTarget());
+    }
+
+    @Test
+    public void increasesAfterClear() {
+        assertEquals(BitrateController.DECREASE, lossy(0));
+        int target = mController.getTarget();
+        assertEquals(BitrateController.HOLD, clear(1000));
+        assertEquals(BitrateController.HOLD, clear(3999));
+        assertEquals(target, mController.getTarget());
+        assertEquals(BitrateController.INCREASE, clear(4000));
+        assertEquals((int) (target * 1.1), mController.getTarget());
+        // The clear period restarts after an increase
+        assertEquals(BitrateController.HOLD, clear(5000));
+        assertEquals(BitrateController.INCREASE, clear(7000));
+    }
+
+    @Test
+    public void holdsBetweenThresholds() {
+        assertEquals(BitrateController.DECREASE, lossy(0));
+        int target = mController.getTarget();
+        // 5% loss is neither congested nor clear
+        for (long now = 1000; now <= 10000; now += 1000)
+            assertEquals(BitrateController.HOLD, update(now, 5, 20, 5, 0));
+        assertEquals(target, mController.getTarget());
+    }
+
+    @Test
+    public void decreasesOnRTTRise() {
+        assertEquals(BitrateController.HOLD, clear(0));
+        assertEquals(BitrateController.HOLD, update(1000, 0, 169, 5, 0));
+        assertEquals(BitrateController.DECREASE, update(2000, 0, 170, 5, 0));
+    }
+
+    @Test
+    public void decreasesOnBacklog() {
+        assertEquals(BitrateController.HOLD, update(0, 0, 20, 5, 4));
+        assertEquals(BitrateController.DECREASE, update(1000, 0, 20, 5, 5));
+        // The backlog is evaluated even without a new report
+        mController.report(mSession, mReports, 0, 20, 5, 5);
+        assertEquals(BitrateController.DECREASE, mController.update(3000));
+    }
+
+    @Test
+    public void clampsToBitrateRange() {
+        long now = 0;
+        for (int i = 0; i < 100; i++, now += 2000)
+            lossy(now);
+        assertEquals(MIN_BITRATE, mController.getTarget());
+        assertEquals(BitrateController.HOLD, lossy(now));
+        for (int i = 0; i < 100; i++, now += 3000)
+            clear(now);
+        assertEquals(MAX_BITRATE, mController.getTarget());
+        assertEquals(BitrateController.HOLD, clear(now + 3000));
+    }
+
+    @Test
+    public void resetsWithoutSessions() {
+        assertEquals(BitrateController.DECREASE, lossy(0));
+        assertEquals(BitrateController.RESET, mController.update(1000));
+        assertEquals(MAX_BITRATE, mController.getTarget());
+        assertEquals(BitrateController.HOLD, mController.update(2000));
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * This file is part of spyNet Camera, the Android IP camera
+ *
+ * Copyright (C) 2016-2017 Paolo Dematteis
+ *
+ * spyNet Camera is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * spyNet Camera is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Paolo Dematteis - spynet314@gmail.com
+ */
+
+
+package com.spynet.camera.network;
+
+import com.spynet.camera.media.AudioData;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that only the client of the session can end it with an RTCP BYE.
+ */
+public class RTCPReceiverTest {
+
+    private final int STREAM_SSRC = 0x11111111;
+    private final int CLIENT_SSRC = 0x22222222;
+    private final int OTHER_SSRC = 0x33333333;
+
+    private int mTeardowns;
+    private RTCPReceiver mReceiver;
+
+    @Before
+    public void setUp() {
+        mTeardowns = 0;
+        mReceiver = new RTCPReceiver(new RTPSource() {
+            @Override
+            public void clearSlices() {
+            }
+
+            @Override
+            public RTPSlice popSlice() {
+                return null;
+            }
+
+            @Override
+            public RTPSlice peekSlice() {
+                return null;
+            }
+
+            @Override
+            public List<RTPSlice> takePreroll() {
+                return null;
+            }
+
+            @Override
+            public void clearAudio() {
+            }
+
+            @Override
+            public AudioData popAudio() {
+                return null;
+            }
+
+            @Override
+            public void notifyStreamStarted(String type, long id) {
+            }
+
+            @Override
+            public void notifyStreamStopped(String type, long id) {
+            }
+
+            @Override
+            public void requestControl(String action, String params) {
+            }
+
+            @Override
+            public void teardownRTP() {
+                mTeardowns++;
+            }
+        }, STREAM_SSRC, 90000, null);
+    }
+
+    @Test
+    public void tearsDownOnClientBye() {
+        onPacket(compound(rr(CLIENT_SSRC), bye(CLIENT_SSRC)), true);
+        assertEquals(1, mReceiver.getReports());
+        assertEquals(1, mTeardowns);
+    }
+
+    @Test
+    public void ignoresByeOfAnotherSSRC() {
+        onPacket(rr(CLIENT_SSRC), true);
+        onPacket(compound(rr(OTHER_SSRC), bye(OTHER_SSRC)), true);
+        assertEquals(1, mReceiver.getReports());
+        assertEquals(0, mTeardowns);
+    }
+
+    @Test
+    public void ignoresByeRoutedByHost() {
+        onPacket(rr(CLIENT_SSRC), true);
+        // Same SSRC, but the source address is not the client one
+        onPacket(compound(rr(CLIENT_SSRC), bye(CLIENT_SSRC)), false);
+        assertEquals(2, mReceiver.getReports());
+        assertEquals(0, mTeardowns);
+    }
+
+    @Test
+    public void learnsClientFromItsAddress() {
+        // The client SSRC is unknown, the packets routed by host are dropped
+        onPacket(rr(OTHER_SSRC), false);
+        assertEquals(0, mReceiver.getReports());
+        onPacket(rr(CLIENT_SSRC), true);
+        onPacket(rr(OTHER_SSRC), false);
+        assertEquals(1, mReceiver.getReports());
+    }
+
+    private void onPacket(byte[] packet, boolean verified) {
+        mReceiver.onPacket(packet, 0, packet.length, verified);
+    }
+
+    /**
+     * Builds an RR with one report block about the stream.
+     */
+    private byte[] rr(int sender) {
+        ByteBuffer packet = ByteBuffer.allocate(32);
+        packet.put((byte) 0x81).put((byte) 201).putShort((short) 7);
+        packet.putInt(sender);
+        packet.putInt(STREAM_SSRC);
+        return packet.array();
+    }
+
+    /**
+     * Builds a BYE for a single SSRC.
+     */
+    private static byte[] bye(int ssrc) {
+        ByteBuffer packet = ByteBuffer.allocate(8);
+        packet.put((byte) 0x81).put((byte) 203).putShort((short) 1);
+        packet.putInt(ssrc);
+        return packet.array();
+    }
+
+    private static byte[] compound(byte[] first, byte[] second) {
+        return ByteBuffer.allocate(first.length + second.length).put(first).put(second).array();
+    }
+}
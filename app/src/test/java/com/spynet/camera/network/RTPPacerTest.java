@@ -0,0 +1,117 @@
+/*
+ * This file is part of spyNet Camera, the Android IP camera
+ *
+ * Copyright (C) 2016-2017 Paolo Dematteis
+ *
+ * spyNet Camera is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * spyNet Camera is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Paolo Dematteis - spynet314@gmail.com
+ */
+
+
+package com.spynet.camera.network;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the burst and the rate of the pacer, driven by a fake clock.
+ */
+public class RTPPacerTest {
+
+    private final double FRACTION = 0.5;
+    private final int BURST = 8 * 1400;
+    private final int PACKET = 1400;
+    private final int PACKETS = 100;                // Packets of a picture
+    private final long INTERVAL = 66666;            // Frame interval in us
+
+    private long mNow;                              // The fake time in us
+    private int mSleeps;                            // Number of waits
+    private RTPPacer.Clock mClock;
+
+    @Before
+    public void setUp() {
+        mNow = 1000000;
+        mSleeps = 0;
+        mClock = new RTPPacer.Clock() {
+            @Override
+            public long now() {
+                return mNow;
+            }
+
+            @Override
+            public void sleep(long us) {
+                mNow += us;
+                mSleeps++;
+            }
+        };
+    }
+
+    /**
+     * Sends a picture made of a single slice, the packets take no time to be sent.
+     */
+    private void sendPicture(RTPPacer pacer, long timestamp) throws InterruptedException {
+        pacer.onSlice(timestamp, PACKETS * PACKET);
+        for (int i = 0; i < PACKETS; i++)
+            pacer.pace(PACKET);
+    }
+
+    @Test
+    public void sendsBurstAtOnce() throws InterruptedException {
+        RTPPacer pacer = new RTPPacer(FRACTION, BURST, mClock);
+        sendPicture(pacer, 0);
+        // The bucket is emptied, then the packet that overdraws it is sent too
+        long unpaced = pacer.getQueuedBytes() - pacer.getPacedBytes();
+        assertEquals(BURST + PACKET, unpaced);
+        // The bucket does not grow beyond its depth while idle
+        mNow += 10 * INTERVAL;
+        sendPicture(pacer, 10 * INTERVAL);
+        assertEquals(2 * (BURST + PACKET), pacer.getQueuedBytes() - pacer.getPacedBytes());
+    }
+
+    @Test
+    public void spreadsPictureOverFraction() throws InterruptedException {
+        RTPPacer pacer = new RTPPacer(FRACTION, BURST, mClock);
+        long start = mNow;
+        long bytes = 0;
+        for (int frame = 0; frame < 30; frame++) {
+            long frameStart = start + frame * INTERVAL;
+            assertTrue("picture " + frame + " late", mNow <= frameStart);
+            mNow = frameStart;
+            sendPicture(pacer, frame * INTERVAL);
+            bytes += PACKETS * PACKET;
+            // The paced packets leave at the picture rate, they take the fraction of the interval
+            long elapsed = mNow - frameStart;
+            long expected = (long) (FRACTION * INTERVAL * (PACKETS * PACKET - BURST - PACKET) / (PACKETS * PACKET));
+            assertEquals(expected, elapsed, 1000);
+        }
+        // In the long run, the pacer keeps up with the source
+        double rate = (double) bytes / (mNow - start);
+        double sourceRate = (double) bytes / (29 * INTERVAL + FRACTION * INTERVAL);
+        assertTrue(rate >= sourceRate * 0.95);
+        assertTrue(mSleeps > 0);
+    }
+
+    @Test
+    public void doesNotPaceWithoutFraction() throws InterruptedException {
+        RTPPacer pacer = new RTPPacer(0, BURST, mClock);
+        sendPicture(pacer, 0);
+        assertEquals(PACKETS * PACKET, pacer.getQueuedBytes());
+        assertEquals(0, pacer.getPacedBytes());
+        assertEquals(0, mSleeps);
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * This file is part of spyNet Camera, the Android IP camera
+ *
+ * Copyright (C) 2016-2017 Paolo Dematteis
+ *
+ * spyNet Camera is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * spyNet Camera is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Paolo Dematteis - spynet314@gmail.com
+ */
+
+
+package com.spynet.camera.network;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayDeque;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the incremental parser against requests split and pipelined in arbitrary reads.
+ */
+public class RequestParserTest {
+
+    private final String GET = "" +
+            "GET /video/mjpeg?fps=5 HTTP/1.1\r\n" +
+            "Host: camera\r\n" +
+            "User-Agent: test\r\n" +
+            "Connection: keep-alive\r\n" +
+            "\r\n";
+
+    private ServerSocket mServer;
+    private Socket mClient;
+    private Socket mSocket;
+
+    /**
+     * Defines a connection that returns the scripted chunks, one per read.
+     */
+    private static final class ChunkedConnection extends TCPConnection {
+
+        private final ArrayDeque<byte[]> mChunks;
+
+        ChunkedConnection(Socket socket) throws IOException {
+            super(socket, null, null);
+            mChunks = new ArrayDeque<>();
+        }
+
+        ChunkedConnection add(String data) {
+            return add(data.getBytes());
+        }
+
+        ChunkedConnection add(byte[] data) {
+            mChunks.add(data);
+            return this;
+        }
+
+        /**
+         * Splits the data into chunks of the specified size.
+         */
+        ChunkedConnection split(byte[] data, int size) {
+            for (int i = 0; i < data.length; i += size) {
+                byte[] chunk = new byte[Math.min(size, data.length - i)];
+                System.arraycopy(data, i, chunk, 0, chunk.length);
+                mChunks.add(chunk);
+            }
+            return this;
+        }
+
+        @Override
+        public boolean hasPendingInput() {
+            return !mChunks.isEmpty();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) {
+            byte[] chunk = mChunks.poll();
+            if (chunk == null)
+                return -1;
+            int size = Math.min(count, chunk.length);
+            System.arraycopy(chunk, 0, buffer, offset, size);
+            if (size < chunk.length) {
+                byte[] left = new byte[chunk.length - size];
+                System.arraycopy(chunk, size, left, 0, left.length);
+                mChunks.addFirst(left);
+            }
+            return size;
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        mClient = new Socket(InetAddress.getLoopbackAddress(), mServer.getLocalPort());
+        mSocket = mServer.accept();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mSocket.close();
+        mClient.close();
+        mServer.close();
+    }
+
+    private void assertGet(RequestParser parser) {
+        assertArrayEquals(new String[]{"GET", "/video/mjpeg?fps=5", "HTTP/1.1"}, parser.getRequestLine());
+        assertEquals("test", parser.getHeader("user-agent"));
+        assertEquals("keep-alive", parser.getHeader("connection"));
+        assertNull(parser.getHeader("authorization"));
+    }
+
+    @Test
+    public void parsesSplitRequest() throws IOException {
+        ChunkedConnection connection = new ChunkedConnection(mSocket)
+                .add("GE").add("T /video/mjpeg?fps=5 HT").add("TP/1.1\r").add("\nHost: camera\r\nUser-Ag")
+                .add("ent: test\r\n").add("Connection: keep-alive\r\n").add("\r").add("\n");
+        RequestParser parser = new RequestParser();
+        assertTrue(parser.next(connection, false));
+        assertGet(parser);
+        assertFalse(parser.hasPendingInput(connection));
+    }
+
+    @Test
+    public void parsesRequestSplitAnywhere() throws IOException {
+        byte[] request = GET.getBytes();
+        for (int size = 1; size <= request.length; size++) {
+            ChunkedConnection connection = new ChunkedConnection(mSocket).split(request, size);
+            RequestParser parser = new RequestParser();
+            assertTrue("chunk size " + size, parser.next(connection, false));
+            assertGet(parser);
+        }
+    }
+
+    @Test
+    public void parsesPipelinedRequests() throws IOException {
+        String post = "" +
+                "POST /control HTTP/1.1\r\n" +
+                "Content-Length: 5\r\n" +
+                "\r\n" +
+                "hello";
+        byte[] frame = {'$', 1, 0, 3, 7, 8, 9};
+        String rtsp = "" +
+                "OPTIONS rtsp://camera/video RTSP/1.0\r\n" +
+                "CSeq: 2\r\n" +
+                "\r\n";
+        ChunkedConnection connection = new ChunkedConnection(mSocket)
+                .add(GET + post).add(frame).add(rtsp + GET);
+        RequestParser parser = new RequestParser();
+        // GET
+        assertTrue(parser.next(connection, false));
+        assertGet(parser);
+        assertTrue(parser.hasPendingInput(connection));
+        // POST with a body
+        assertTrue(parser.next(connection, false));
+        assertEquals("POST", parser.getRequestLine()[0]);
+        assertEquals("5", parser.getHeader("content-length"));
+        byte[] body = new byte[5];
+        assertEquals(5, parser.readBody(connection, body));
+        assertArrayEquals("hello".getBytes(), body);
+        // Interleaved frame, partially read
+        assertTrue(parser.next(connection, false));
+        assertNull(parser.getRequestLine()[0]);
+        assertEquals(1, parser.getFrameChannel());
+        assertEquals(3, parser.getFrameLength());
+        byte[] data = new byte[1];
+        assertEquals(1, parser.readFrame(connection, data));
+        assertEquals(7, data[0]);
+        // RTSP, the rest of the frame is skipped
+        assertTrue(parser.next(connection, false));
+        assertArrayEquals(new String[]{"OPTIONS", "rtsp://camera/video", "RTSP/1.0"}, parser.getRequestLine());
+        assertEquals("2", parser.getHeader("cseq"));
+        assertEquals(-1, parser.getFrameChannel());
+        // GET again, the strings of the previous request are not kept
+        assertTrue(parser.next(connection, false));
+        assertGet(parser);
+        assertNull(parser.getHeader("cseq"));
+        assertFalse(parser.hasPendingInput(connection));
+        assertFalse(parser.next(connection, false));
+    }
+
+    @Test
+    public void rejectsOversizedHeader() throws IOException {
+        StringBuilder cookie = new StringBuilder("Cookie: ");
+        for (int i = 0; i < 5000; i++)
+            cookie.append('x');
+        String request = "GET / HTTP/1.1\r\n" + cookie + "\r\n\r\n";
+        ChunkedConnection connection = new ChunkedConnection(mSocket).split(request.getBytes(), 1460);
+        assertFalse(new RequestParser().next(connection, false));
+    }
+
+    @Test
+    public void parsesLongHeaderWithinBuffer() throws IOException {
+        StringBuilder agent = new StringBuilder();
+        for (int i = 0; i < 3000; i++)
+            agent.append('a');
+        String request = "GET / HTTP/1.1\r\nUser-Agent: " + agent + "\r\n\r\n";
+        // The previous request leaves the buffer partially used, it is compacted
+        ChunkedConnection connection = new ChunkedConnection(mSocket)
+                .split((GET + request).getBytes(), 1460);
+        RequestParser parser = new RequestParser();
+        assertTrue(parser.next(connection, false));
+        assertTrue(parser.next(connection, false));
+        assertEquals(agent.toString(), parser.getHeader("user-agent"));
+    }
+
+    @Test
+    public void rejectsMalformedRequestLine() throws IOException {
+        ChunkedConnection connection = new ChunkedConnection(mSocket)
+                .add("GET /path with spaces HTTP/1.1\r\n\r\n" + GET);
+        RequestParser parser = new RequestParser();
+        assertFalse(parser.next(connection, false));
+        // The malformed request is consumed, the next one can be parsed
+        assertTrue(parser.next(connection, false));
+        assertGet(parser);
+    }
+
+    @Test
+    public void keepsConditionalHeaders() throws IOException {
+        String date = "Sun, 06 Nov 1994 08:49:37 GMT";
+        ChunkedConnection connection = new ChunkedConnection(mSocket).add("" +
+                "GET /snapshot.jpg HTTP/1.1\r\n" +
+                "If-Modified-Since: " + date + "\r\n" +
+                "If-None-Match: \"abc\"\r\n" +
+                "\r\n");
+        RequestParser parser = new RequestParser();
+        assertTrue(parser.next(connection, false));
+        assertEquals(date, parser.getHeader("if-modified-since"));
+        assertEquals("\"abc\"", parser.getHeader("if-none-match"));
+    }
+
+    @Test
+    public void parsesManyPipelinedRequests() throws IOException {
+        final int requests = 1000;
+        byte[] request = GET.getBytes();
+        byte[] data = new byte[request.length * requests];
+        for (int i = 0; i < requests; i++)
+            System.arraycopy(request, 0, data, i * request.length, request.length);
+        // TCP-sized reads, the requests straddle the reads
+        ChunkedConnection connection = new ChunkedConnection(mSocket).split(data, 1460);
+        RequestParser parser = new RequestParser();
+        for (int i = 0; i < requests; i++) {
+            assertTrue("request " + i, parser.next(connection, false));
+            assertGet(parser);
+        }
+        assertFalse(parser.hasPendingInput(connection));
+        assertFalse(parser.next(connection, false));
+    }
+}
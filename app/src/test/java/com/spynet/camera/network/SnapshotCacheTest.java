@@ -0,0 +1,70 @@
+/*
+ * This file is part of spyNet Camera, the Android IP camera
+ *
+ * Copyright (C) 2016-2017 Paolo Dematteis
+ *
+ * spyNet Camera is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * spyNet Camera is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Paolo Dematteis - spynet314@gmail.com
+ */
+
+
+package com.spynet.camera.network;
+
+import com.spynet.camera.media.VideoFrame;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the conditional requests of the snapshot, answered with 304 when not modified.
+ */
+public class SnapshotCacheTest {
+
+    private final long TIMESTAMP = 1000000;
+
+    private SnapshotCache.Snapshot newSnapshot() {
+        SnapshotCache cache = new SnapshotCache();
+        assertNull(cache.get());
+        cache.update(VideoFrame.wrap(new byte[16], 320, 240, TIMESTAMP));
+        SnapshotCache.Snapshot snapshot = cache.get();
+        assertNotNull(snapshot);
+        return snapshot;
+    }
+
+    @Test
+    public void notModifiedSinceLastModified() {
+        SnapshotCache.Snapshot snapshot = newSnapshot();
+        // The client sends back the Last-Modified date, the server replies 304
+        assertFalse(snapshot.isModifiedSince(snapshot.getLastModified()));
+        assertFalse(snapshot.isModifiedSince(" " + snapshot.getLastModified() + " "));
+    }
+
+    @Test
+    public void modifiedSinceOlderDate() {
+        SnapshotCache.Snapshot snapshot = newSnapshot();
+        assertTrue(snapshot.isModifiedSince("Sun, 06 Nov 1994 08:49:37 GMT"));
+    }
+
+    @Test
+    public void modifiedWithoutValidDate() {
+        SnapshotCache.Snapshot snapshot = newSnapshot();
+        assertTrue(snapshot.isModifiedSince(null));
+        assertTrue(snapshot.isModifiedSince("yesterday"));
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * This file is part of spyNet Camera, the Android IP camera
+ *
+ * Copyright (C) 2016-2017 Paolo Dematteis
+ *
+ * spyNet Camera is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * spyNet Camera is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Paolo Dematteis - spynet314@gmail.com
+ */
+
+package com.spynet.camera.network;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the interleaved RTP packets of a picture are written with one socket write.
+ */
+public class TCPVideoPacketizerTest {
+
+    private final int RTP_CHANNEL = 0;
+    private final int RTCP_CHANNEL = 1;
+    private final int BATCH_SIZE = 64;
+
+    private ServerSocketChannel mServer;
+    private Socket mClient;
+    private StreamConnection mConnection;
+    private TCPVideoPacketizer mPacketizer;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = ServerSocketChannel.open();
+        mServer.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        mClient = new Socket(InetAddress.getLoopbackAddress(), mServer.socket().getLocalPort());
+        SocketChannel channel = mServer.accept();
+        mConnection = new StreamConnection(channel.socket(), new StreamConnection.ConnectionCallback() {
+            @Override
+            public void onConnectionOpened(TCPConnection connection) {
+            }
+
+            @Override
+            public void handleConnection(TCPConnection connection) throws IOException {
+                connection.keepAlive();
+            }
+
+            @Override
+            public void onConnectionClosed(TCPConnection connection) {
+            }
+
+            @Override
+            public void onStreamStarted(StreamConnection connection, String type, long id) {
+            }
+
+            @Override
+            public void onStreamStopped(StreamConnection connection, String type, long id) {
+            }
+
+            @Override
+            public void onControlRequest(StreamConnection connection, String action, String params) {
+            }
+        }, null);
+        mPacketizer = new TCPVideoPacketizer(mConnection, RTP_CHANNEL, RTCP_CHANNEL, 90000, 0);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mConnection.close();
+        mClient.close();
+        mServer.close();
+    }
+
+    @Test
+    public void writesPictureOnFlush() throws IOException {
+        final int packets = 8;
+        final int length = 1200;
+        long writes = StreamMetrics.get().getSocketWrites();
+        for (int i = 0; i < packets; i++)
+            mPacketizer.rtpSend(header(i), payload(i, length), 0, length);
+        assertEquals(writes, StreamMetrics.get().getSocketWrites());
+        mPacketizer.rtpFlush();
+        assertEquals(writes + 1, StreamMetrics.get().getSocketWrites());
+        // Nothing left to write
+        mPacketizer.rtpFlush();
+        assertEquals(writes + 1, StreamMetrics.get().getSocketWrites());
+        readPackets(packets, length);
+    }
+
+    @Test
+    public void flushesFullBatch() throws IOException {
+        final int length = 100;
+        long writes = StreamMetrics.get().getSocketWrites();
+        for (int i = 0; i < BATCH_SIZE; i++)
+            mPacketizer.rtpSend(header(i), payload(i, length), 0, length);
+        assertEquals(writes + 1, StreamMetrics.get().getSocketWrites());
+        readPackets(BATCH_SIZE, length);
+    }
+
+    /**
+     * Reads the interleaved packets on the client side and checks their framing.
+     */
+    private void readPackets(int packets, int length) throws IOException {
+        DataInputStream input = new DataInputStream(mClient.getInputStream());
+        byte[] header = new byte[12];
+        byte[] payload = new byte[length];
+        for (int i = 0; i < packets; i++) {
+            assertEquals('$', input.readUnsignedByte());
+            assertEquals(RTP_CHANNEL, input.readUnsignedByte());
+            assertEquals(12 + length, input.readUnsignedShort());
+            input.readFully(header);
+            assertEquals((byte) i, header[3]);
+            input.readFully(payload);
+            assertEquals((byte) i, payload[length - 1]);
+        }
+    }
+
+    private static byte[] header(int seq) {
+        byte[] header = new byte[12];
+        header[0] = (byte) 0x80;
+        header[1] = 96;
+        header[3] = (byte) seq;
+        return header;
+    }
+
+    private static byte[] payload(int id, int length) {
+        byte[] payload = new byte[length];
+        payload[length - 1] = (byte) id;
+        return payload;
+    }
+}